@@ -0,0 +1,48 @@
+package com.bdt.kiradb;
+
+/**
+ * A Record whose descriptor is defined by annotations instead of code.
+ * <p>
+ * Subclasses are annotated with @KiraRecord, their primary key member with
+ * &#64;KiraPrimaryKey and each indexed member with @KiraField:
+ * <pre>
+ * &#64;KiraRecord(name = "scores", storeMode = RecordDescriptor.STORE_MODE_INDEX)
+ * public class GameScore extends AnnotatedRecord {
+ *     &#64;KiraPrimaryKey(name = "id")
+ *     private String gameId;
+ *     &#64;KiraField(type = FieldType.NUMBER)
+ *     private int score;
+ *     ...
+ * }
+ * </pre>
+ * The annotations are read once per class into a RecordSchema, which KiraDB
+ * uses directly wherever it only needs the record name, store mode or field
+ * types, so no descriptor is built for those. The record name, primary key,
+ * fields and store mode are therefore fixed per class.
+ *
+ * @see RecordSchema
+ */
+public abstract class AnnotatedRecord implements Record {
+
+	/**
+	 * @return RecordSchema The schema compiled from this class's annotations
+	 */
+	public RecordSchema schema() {
+		return RecordSchema.forClass(getClass());
+	}
+
+	@Override
+	public final RecordDescriptor descriptor() {
+		return schema().describe(this);
+	}
+
+	@Override
+	public final String getRecordName() {
+		return schema().getRecordName();
+	}
+
+	@Override
+	public final String getPrimaryKeyName() {
+		return schema().getPrimaryKeyName();
+	}
+}
@@ -1,26 +1,151 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
-
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author David Beckemeyer and Mark Petrovic
  */
 public abstract class BackingStore {
 
-    abstract void storeObject(XStream xstream, Record r) throws IOException, KiraException;
+    /**
+     * The default number of objects retrieveObjects fetches at once
+     */
+    public static final int DEFAULT_FETCH_THREADS = 8;
+
+    private volatile int fetchThreads = DEFAULT_FETCH_THREADS;
+    private ThreadPoolExecutor fetchExecutor;
 
-    abstract <T extends Record> T retrieveObject(XStream xstream, Record r, String value) throws KiraException, IOException, ClassNotFoundException;
+    abstract void storeObject(RecordCodec codec, Record r) throws IOException, KiraException;
+
+    /**
+     * Store a batch of objects. The default implementation stores them one at a
+     * time; stores with a native batch write should override it.
+     */
+    void storeObjects(RecordCodec codec, List<? extends Record> records) throws IOException, KiraException {
+        for (Record r : records) {
+            storeObject(codec, r);
+        }
+    }
+
+    abstract <T extends Record> T retrieveObject(RecordCodec codec, Record r, String value) throws KiraException, IOException, ClassNotFoundException;
+
+    /**
+     * Retrieve a batch of objects. The default implementation calls
+     * retrieveObject for up to getFetchThreads() keys at once; stores with a
+     * native multi-get, or local stores for which threads do not pay, should
+     * override it.
+     *
+     * @return List<T> The objects, in the order of the keys, with null for those not found
+     */
+    <T extends Record> List<T> retrieveObjects(final RecordCodec codec, final Record r, List<String> values)
+            throws KiraException, IOException, ClassNotFoundException {
+        List<T> results = new ArrayList<T>(values.size());
+        if (values.size() <= 1 || fetchThreads <= 1) {
+            for (String value : values) {
+                results.add(this.<T>retrieveObject(codec, r, value));
+            }
+            return results;
+        }
+        ThreadPoolExecutor executor = getFetchExecutor();
+        List<Future<T>> futures = new ArrayList<Future<T>>(values.size());
+        try {
+            for (final String value : values) {
+                futures.add(executor.submit(new Callable<T>() {
+                    public T call() throws Exception {
+                        return BackingStore.this.<T>retrieveObject(codec, r, value);
+                    }
+                }));
+            }
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KiraException("interrupted retrieving " + values.size() + " objects");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof KiraException) {
+                throw (KiraException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new KiraException("retrieveObjects: " + cause);
+        } finally {
+            // no point fetching the rest once one has failed
+            for (Future<T> f : futures) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Set how many objects retrieveObjects fetches at once. Threads are only
+     * started when needed, and stop after a minute without work.
+     *
+     * @param fetchThreads The number of fetch threads, or 1 to fetch objects one at a time
+     */
+    public void setFetchThreads(int fetchThreads) {
+        if (fetchThreads < 1) {
+            throw new IllegalArgumentException("fetchThreads must be at least 1");
+        }
+        this.fetchThreads = fetchThreads;
+        synchronized (this) {
+            if (fetchExecutor != null) {
+                if (fetchThreads > fetchExecutor.getMaximumPoolSize()) {
+                    fetchExecutor.setMaximumPoolSize(fetchThreads);
+                    fetchExecutor.setCorePoolSize(fetchThreads);
+                } else {
+                    fetchExecutor.setCorePoolSize(fetchThreads);
+                    fetchExecutor.setMaximumPoolSize(fetchThreads);
+                }
+            }
+        }
+    }
+
+    public int getFetchThreads() {
+        return fetchThreads;
+    }
+
+    private synchronized ThreadPoolExecutor getFetchExecutor() {
+        if (fetchExecutor == null) {
+            fetchExecutor = new ThreadPoolExecutor(fetchThreads, fetchThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable task) {
+                            Thread t = new Thread(task, BackingStore.this.getClass().getSimpleName() + "-fetch");
+                            // a store is never closed, so its threads must not keep the JVM alive
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            fetchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return fetchExecutor;
+    }
 
-    abstract void removeObject(XStream xstream, Record r, String value) throws KiraException, IOException, ClassNotFoundException;
+    abstract void removeObject(RecordCodec codec, Record r, String value) throws KiraException, IOException, ClassNotFoundException;
 
-    abstract <T extends Record> T firstObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException;
+    abstract <T extends Record> T firstObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException;
 
-    abstract <T extends Record> T nextObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException;
+    abstract <T extends Record> T nextObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException;
 
     protected String makeKey(Record r) {
-        return makeKey(r, (String) r.descriptor().getPrimaryKey().getValue());
+        return makeKey(r, RecordSchema.primaryKeyOf(r));
     }
 
     protected String makeKey(Record r, String value) {
@@ -0,0 +1,674 @@
+package com.bdt.kiradb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary object format.
+ * <p>
+ * Objects are written field by field using reflection: each value is tagged
+ * with its type, and class and field names are written once per encoded record.
+ * Fields are matched by name when decoding, so fields added to or removed from
+ * a class since it was written are tolerated. Shared references and cycles
+ * within a record are preserved.
+ * <p>
+ * Supported values are primitives and their wrappers, String, Date, BigDecimal,
+ * BigInteger, enums, arrays, java.util collections and maps with a no-argument
+ * constructor, and application classes with a no-argument constructor (of any
+ * visibility) that do not extend a java or javax class. A record containing
+ * anything else is written with the XStream fallback codec inside the same
+ * header, so any record XStream can handle can still be stored.
+ * <p>
+ * Every encoded record starts with the bytes 'K' 'D' 'B' and a format version.
+ * Data without that header, such as objects written by earlier KiraDB
+ * versions, is decoded with the fallback codec.
+ */
+public class BinaryRecordCodec implements RecordCodec {
+
+    /**
+     * The format version written by this codec
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte[] MAGIC = { 'K', 'D', 'B' };
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    private static final byte BODY_FIELDS = 0;
+    private static final byte BODY_FALLBACK = 1;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_INT = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_DOUBLE = 4;
+    private static final byte T_FLOAT = 5;
+    private static final byte T_TRUE = 6;
+    private static final byte T_FALSE = 7;
+    private static final byte T_SHORT = 8;
+    private static final byte T_BYTE = 9;
+    private static final byte T_CHAR = 10;
+    private static final byte T_DATE = 11;
+    private static final byte T_BIG_DECIMAL = 12;
+    private static final byte T_BIG_INTEGER = 13;
+    private static final byte T_ENUM = 14;
+    private static final byte T_OBJECT = 15;
+    private static final byte T_REF = 16;
+    private static final byte T_COLLECTION = 17;
+    private static final byte T_MAP = 18;
+    private static final byte T_BYTES = 19;
+    private static final byte T_ARRAY = 20;
+
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+    static {
+        Class<?>[] types = { boolean.class, byte.class, char.class, short.class, int.class,
+                long.class, float.class, double.class };
+        for (Class<?> c : types) {
+            PRIMITIVES.put(c.getName(), c);
+        }
+    }
+
+    private static final Logger logger = Logger.getLogger(BinaryRecordCodec.class.getName());
+
+    private final RecordCodec fallback;
+    private final ConcurrentHashMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+    private final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+    public BinaryRecordCodec() {
+        this(new XStreamRecordCodec());
+    }
+
+    /**
+     * @param fallback The codec for records this codec cannot write, and for data without a binary header
+     */
+    public BinaryRecordCodec(RecordCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public byte[] encode(Record r) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bos);
+        writeHeader(out, BODY_FIELDS);
+        try {
+            new Encoder(out).writeValue(r);
+        } catch (UnsupportedTypeException e) {
+            logger.fine("encoding " + r.getClass().getName() + " with fallback codec: " + e.getMessage());
+            bos.reset();
+            writeHeader(out, BODY_FALLBACK);
+            out.write(fallback.encode(r));
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Record> T decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (!isBinary(data, offset, length)) {
+            return (T) fallback.decode(data, offset, length);
+        }
+        int version = data[offset + MAGIC.length] & 0xff;
+        if (version > FORMAT_VERSION) {
+            throw new IOException("unsupported record format version " + version);
+        }
+        if (data[offset + MAGIC.length + 1] == BODY_FALLBACK) {
+            return (T) fallback.decode(data, offset + HEADER_LENGTH, length - HEADER_LENGTH);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset + HEADER_LENGTH,
+                length - HEADER_LENGTH));
+        Object o = new Decoder(in).readValue();
+        if (!(o instanceof Record)) {
+            throw new IOException("encoded object is not a Record: " + (o == null ? null : o.getClass().getName()));
+        }
+        return (T) o;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/octet-stream";
+    }
+
+    /**
+     * @return boolean true if the data starts with the binary codec header
+     */
+    static boolean isBinary(byte[] data, int offset, int length) {
+        if (length < HEADER_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[offset + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeHeader(DataOutputStream out, byte body) throws IOException {
+        out.write(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeByte(body);
+    }
+
+    private Class<?> classForName(String name) throws ClassNotFoundException {
+        Class<?> c = PRIMITIVES.get(name);
+        if (c == null) {
+            c = classes.get(name);
+        }
+        if (c == null) {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader == null) {
+                loader = BinaryRecordCodec.class.getClassLoader();
+            }
+            c = Class.forName(name, false, loader);
+            classes.put(name, c);
+        }
+        return c;
+    }
+
+    private ClassLayout layout(Class<?> c) {
+        ClassLayout layout = layouts.get(c);
+        if (layout == null) {
+            layout = new ClassLayout(c);
+            layouts.put(c, layout);
+        }
+        return layout;
+    }
+
+    /**
+     * How instances of an application class are created and which fields are written
+     */
+    private static final class ClassLayout {
+        final Constructor<?> constructor;
+        final java.lang.reflect.Field[] fields;
+        final Map<String, java.lang.reflect.Field> byName = new HashMap<String, java.lang.reflect.Field>();
+        // why the class cannot be written, or null
+        final String unsupported;
+
+        ClassLayout(Class<?> c) {
+            Constructor<?> ctor = null;
+            List<java.lang.reflect.Field> list = new ArrayList<java.lang.reflect.Field>();
+            String reason = null;
+            if (isPlatformClass(c)) {
+                reason = "unsupported platform class " + c.getName();
+            } else {
+                try {
+                    ctor = c.getDeclaredConstructor();
+                    ctor.setAccessible(true);
+                } catch (NoSuchMethodException e) {
+                    reason = "no no-argument constructor in " + c.getName();
+                } catch (RuntimeException e) {
+                    reason = "cannot access the constructor of " + c.getName() + ": " + e;
+                }
+                for (Class<?> k = c; reason == null && k != Object.class; k = k.getSuperclass()) {
+                    // the state of platform classes is theirs to serialize
+                    if (isPlatformClass(k)) {
+                        reason = c.getName() + " extends platform class " + k.getName();
+                        break;
+                    }
+                    for (java.lang.reflect.Field f : k.getDeclaredFields()) {
+                        int mod = f.getModifiers();
+                        if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic()) {
+                            continue;
+                        }
+                        if (byName.containsKey(f.getName())) {
+                            reason = "field " + f.getName() + " is shadowed in " + c.getName();
+                            break;
+                        }
+                        try {
+                            f.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            reason = "cannot access field " + f.getName() + " of " + k.getName() + ": " + e;
+                            break;
+                        }
+                        byName.put(f.getName(), f);
+                        list.add(f);
+                    }
+                }
+            }
+            this.constructor = ctor;
+            this.fields = list.toArray(new java.lang.reflect.Field[list.size()]);
+            this.unsupported = reason;
+        }
+
+        private static boolean isPlatformClass(Class<?> c) {
+            return c.getName().startsWith("java.") || c.getName().startsWith("javax.");
+        }
+    }
+
+    private static final class UnsupportedTypeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedTypeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Writes one record; holds the class names and object handles seen so far
+     */
+    private final class Encoder {
+        private final DataOutputStream out;
+        private final Map<String, Integer> names = new HashMap<String, Integer>();
+        private final Set<Class<?>> described = new HashSet<Class<?>>();
+        private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<Object, Integer>();
+
+        Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void writeValue(Object v) throws IOException {
+            if (v == null) {
+                out.writeByte(T_NULL);
+                return;
+            }
+            Class<?> c = v.getClass();
+            if (c == String.class) {
+                out.writeByte(T_STRING);
+                writeString((String) v);
+            } else if (c == Integer.class) {
+                out.writeByte(T_INT);
+                writeSignedVarLong((Integer) v);
+            } else if (c == Long.class) {
+                out.writeByte(T_LONG);
+                writeSignedVarLong((Long) v);
+            } else if (c == Double.class) {
+                out.writeByte(T_DOUBLE);
+                out.writeDouble((Double) v);
+            } else if (c == Float.class) {
+                out.writeByte(T_FLOAT);
+                out.writeFloat((Float) v);
+            } else if (c == Boolean.class) {
+                out.writeByte((Boolean) v ? T_TRUE : T_FALSE);
+            } else if (c == Short.class) {
+                out.writeByte(T_SHORT);
+                out.writeShort((Short) v);
+            } else if (c == Byte.class) {
+                out.writeByte(T_BYTE);
+                out.writeByte((Byte) v);
+            } else if (c == Character.class) {
+                out.writeByte(T_CHAR);
+                out.writeChar((Character) v);
+            } else if (c == Date.class) {
+                out.writeByte(T_DATE);
+                writeSignedVarLong(((Date) v).getTime());
+            } else if (c == BigDecimal.class) {
+                out.writeByte(T_BIG_DECIMAL);
+                writeString(v.toString());
+            } else if (c == BigInteger.class) {
+                out.writeByte(T_BIG_INTEGER);
+                writeBytes(((BigInteger) v).toByteArray());
+            } else if (v instanceof Enum) {
+                out.writeByte(T_ENUM);
+                writeClassName(((Enum<?>) v).getDeclaringClass());
+                writeString(((Enum<?>) v).name());
+            } else if (c == byte[].class) {
+                out.writeByte(T_BYTES);
+                writeBytes((byte[]) v);
+            } else {
+                Integer handle = handles.get(v);
+                if (handle != null) {
+                    out.writeByte(T_REF);
+                    writeVarInt(handle);
+                    return;
+                }
+                if (c.isArray()) {
+                    writeArray(v, c);
+                } else if (v instanceof Collection) {
+                    writeCollection((Collection<?>) v, c);
+                } else if (v instanceof Map) {
+                    writeMap((Map<?, ?>) v, c);
+                } else {
+                    writeObject(v, c);
+                }
+            }
+        }
+
+        private void writeArray(Object v, Class<?> c) throws IOException {
+            handles.put(v, handles.size());
+            out.writeByte(T_ARRAY);
+            writeClassName(c.getComponentType());
+            int length = Array.getLength(v);
+            writeVarInt(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(Array.get(v, i));
+            }
+        }
+
+        private void writeCollection(Collection<?> v, Class<?> c) throws IOException {
+            checkContainer(c, v instanceof SortedSet && ((SortedSet<?>) v).comparator() != null);
+            handles.put(v, handles.size());
+            out.writeByte(T_COLLECTION);
+            writeClassName(c);
+            writeVarInt(v.size());
+            for (Object e : v) {
+                writeValue(e);
+            }
+        }
+
+        private void writeMap(Map<?, ?> v, Class<?> c) throws IOException {
+            checkContainer(c, v instanceof SortedMap && ((SortedMap<?, ?>) v).comparator() != null);
+            if (v instanceof LinkedHashMap && isAccessOrdered((LinkedHashMap<?, ?>) v)) {
+                throw new UnsupportedTypeException("access-ordered LinkedHashMap");
+            }
+            handles.put(v, handles.size());
+            out.writeByte(T_MAP);
+            writeClassName(c);
+            writeVarInt(v.size());
+            for (Map.Entry<?, ?> e : v.entrySet()) {
+                writeValue(e.getKey());
+                writeValue(e.getValue());
+            }
+        }
+
+        private void checkContainer(Class<?> c, boolean hasComparator) throws UnsupportedTypeException {
+            // only the container contents are written, so subclasses that add
+            // fields or behaviour are left to the fallback codec
+            if (!c.getName().startsWith("java.util.")) {
+                throw new UnsupportedTypeException("container class outside java.util: " + c.getName());
+            }
+            if (hasComparator) {
+                throw new UnsupportedTypeException("sorted container with comparator: " + c.getName());
+            }
+            try {
+                c.getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new UnsupportedTypeException("no public no-argument constructor in " + c.getName());
+            }
+        }
+
+        private boolean isAccessOrdered(LinkedHashMap<?, ?> v) {
+            try {
+                java.lang.reflect.Field f = LinkedHashMap.class.getDeclaredField("accessOrder");
+                f.setAccessible(true);
+                return f.getBoolean(v);
+            } catch (Exception e) {
+                // cannot tell, so assume it is
+                return true;
+            }
+        }
+
+        private void writeObject(Object v, Class<?> c) throws IOException {
+            ClassLayout layout = layout(c);
+            if (layout.unsupported != null) {
+                throw new UnsupportedTypeException(layout.unsupported);
+            }
+            handles.put(v, handles.size());
+            out.writeByte(T_OBJECT);
+            writeClassName(c);
+            if (described.add(c)) {
+                writeVarInt(layout.fields.length);
+                for (java.lang.reflect.Field f : layout.fields) {
+                    writeString(f.getName());
+                }
+            }
+            try {
+                for (java.lang.reflect.Field f : layout.fields) {
+                    writeValue(f.get(v));
+                }
+            } catch (IllegalAccessException e) {
+                throw new UnsupportedTypeException("cannot read fields of " + c.getName() + ": " + e.getMessage());
+            }
+        }
+
+        private void writeClassName(Class<?> c) throws IOException {
+            Integer index = names.get(c.getName());
+            if (index != null) {
+                writeVarInt(index);
+                return;
+            }
+            writeVarInt(names.size());
+            names.put(c.getName(), names.size());
+            writeString(c.getName());
+        }
+
+        private void writeString(String s) throws IOException {
+            writeBytes(s.getBytes("UTF-8"));
+        }
+
+        private void writeBytes(byte[] b) throws IOException {
+            writeVarInt(b.length);
+            out.write(b);
+        }
+
+        private void writeVarInt(int n) throws IOException {
+            while ((n & ~0x7f) != 0) {
+                out.writeByte((n & 0x7f) | 0x80);
+                n >>>= 7;
+            }
+            out.writeByte(n);
+        }
+
+        private void writeSignedVarLong(long n) throws IOException {
+            long z = (n << 1) ^ (n >> 63);
+            while ((z & ~0x7fL) != 0) {
+                out.writeByte((int) ((z & 0x7f) | 0x80));
+                z >>>= 7;
+            }
+            out.writeByte((int) z);
+        }
+    }
+
+    /**
+     * Reads one record, mirroring the Encoder's class name and handle tables
+     */
+    private final class Decoder {
+        private final DataInputStream in;
+        private final List<String> names = new ArrayList<String>();
+        // field names in stream order, per class, resolved against the class as it is now
+        private final Map<String, java.lang.reflect.Field[]> streamFields = new HashMap<String, java.lang.reflect.Field[]>();
+        private final List<Object> handles = new ArrayList<Object>();
+
+        Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        Object readValue() throws IOException, ClassNotFoundException {
+            byte tag = in.readByte();
+            switch (tag) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return readString();
+            case T_INT:
+                return (int) readSignedVarLong();
+            case T_LONG:
+                return readSignedVarLong();
+            case T_DOUBLE:
+                return in.readDouble();
+            case T_FLOAT:
+                return in.readFloat();
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_SHORT:
+                return in.readShort();
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return in.readChar();
+            case T_DATE:
+                return new Date(readSignedVarLong());
+            case T_BIG_DECIMAL:
+                return new BigDecimal(readString());
+            case T_BIG_INTEGER:
+                return new BigInteger(readBytes());
+            case T_ENUM:
+                return readEnum();
+            case T_BYTES:
+                return readBytes();
+            case T_REF:
+                return handles.get(readVarInt());
+            case T_ARRAY:
+                return readArray();
+            case T_COLLECTION:
+                return readCollection();
+            case T_MAP:
+                return readMap();
+            case T_OBJECT:
+                return readObject();
+            default:
+                throw new IOException("corrupt record: unknown value tag " + tag);
+            }
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private Object readEnum() throws IOException, ClassNotFoundException {
+            Class c = classForName(readClassName());
+            return Enum.valueOf(c, readString());
+        }
+
+        private Object readArray() throws IOException, ClassNotFoundException {
+            Class<?> component = classForName(readClassName());
+            int length = readVarInt();
+            Object array = Array.newInstance(component, length);
+            handles.add(array);
+            for (int i = 0; i < length; i++) {
+                Array.set(array, i, readValue());
+            }
+            return array;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readCollection() throws IOException, ClassNotFoundException {
+            Collection<Object> c = (Collection<Object>) newContainer(readClassName());
+            handles.add(c);
+            int size = readVarInt();
+            for (int i = 0; i < size; i++) {
+                c.add(readValue());
+            }
+            return c;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readMap() throws IOException, ClassNotFoundException {
+            Map<Object, Object> m = (Map<Object, Object>) newContainer(readClassName());
+            handles.add(m);
+            int size = readVarInt();
+            for (int i = 0; i < size; i++) {
+                Object k = readValue();
+                m.put(k, readValue());
+            }
+            return m;
+        }
+
+        private Object newContainer(String name) throws IOException, ClassNotFoundException {
+            try {
+                return classForName(name).newInstance();
+            } catch (InstantiationException e) {
+                throw new IOException("cannot create " + name + ": " + e.getMessage());
+            } catch (IllegalAccessException e) {
+                throw new IOException("cannot create " + name + ": " + e.getMessage());
+            }
+        }
+
+        private Object readObject() throws IOException, ClassNotFoundException {
+            String name = readClassName();
+            Class<?> c = classForName(name);
+            ClassLayout layout = layout(c);
+            java.lang.reflect.Field[] fields = streamFields.get(name);
+            if (fields == null) {
+                fields = new java.lang.reflect.Field[readVarInt()];
+                for (int i = 0; i < fields.length; i++) {
+                    // null if the class no longer has the field
+                    fields[i] = layout.byName.get(readString());
+                }
+                streamFields.put(name, fields);
+            }
+            if (layout.constructor == null) {
+                throw new IOException("cannot create " + name + ": " + layout.unsupported);
+            }
+            Object o;
+            try {
+                o = layout.constructor.newInstance();
+            } catch (Exception e) {
+                throw new IOException("cannot create " + name + ": " + e.getMessage());
+            }
+            handles.add(o);
+            for (java.lang.reflect.Field f : fields) {
+                Object value = readValue();
+                if (f == null) {
+                    continue;
+                }
+                try {
+                    f.set(o, value);
+                } catch (IllegalArgumentException e) {
+                    // the field's type has changed since the record was written
+                    logger.fine("skipping field " + f.getName() + " of " + name + ": " + e.getMessage());
+                } catch (IllegalAccessException e) {
+                    throw new IOException("cannot set field " + f.getName() + " of " + name + ": " + e.getMessage());
+                }
+            }
+            return o;
+        }
+
+        private String readClassName() throws IOException {
+            int index = readVarInt();
+            if (index < names.size()) {
+                return names.get(index);
+            }
+            if (index != names.size()) {
+                throw new IOException("corrupt record: bad class reference " + index);
+            }
+            String name = readString();
+            names.add(name);
+            return name;
+        }
+
+        private String readString() throws IOException {
+            return new String(readBytes(), "UTF-8");
+        }
+
+        private byte[] readBytes() throws IOException {
+            byte[] b = new byte[readVarInt()];
+            in.readFully(b);
+            return b;
+        }
+
+        private int readVarInt() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readByte();
+                n |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new IOException("corrupt record: malformed length");
+        }
+
+        private long readSignedVarLong() throws IOException {
+            long z = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = in.readByte();
+                z |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return (z >>> 1) ^ -(z & 1);
+                }
+            }
+            throw new IOException("corrupt record: malformed number");
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.bdt.kiradb;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A bulk-load session for writing large numbers of records in one pass.
+ * <p>
+ * Obtain one from KiraDb.beginBulkLoad(). Records added to the session are
+ * indexed with a large RAM buffer and committed once, when finish() is called.
+ * Backing-store writes are batched, and the cache is not populated with the
+ * loaded records (any stale cached copies are evicted instead).
+ * <p>
+ * When created with more than one thread, records are partitioned by primary key
+ * across worker threads. Each worker builds documents and writes them into its own
+ * temporary index; finish() merges the temporary indexes into the main index with
+ * IndexWriter.addIndexesNoOptimize. Document construction (analysis, stemming and
+ * object serialization) then scales across cores. The merge replaces older copies
+ * of the loaded records all or nothing: if it fails, the main index is rolled
+ * back to its state before the merge. With group commit, the merge and its commit
+ * run alone on the shared writer, and if they fail the shared writer is rolled
+ * back and reopened when next used.
+ * <p>
+ * A session is meant to be driven by a single thread.
+ */
+public class BulkLoadSession {
+
+    /**
+     * Default index writer RAM buffer for bulk loads, in megabytes
+     */
+    public static final double DEFAULT_RAM_BUFFER_MB = 256.0;
+
+    /**
+     * Default number of records per backing-store batch
+     */
+    public static final int DEFAULT_BACKING_BATCH_SIZE = 100;
+
+    private final Logger logger = Logger.getLogger(BulkLoadSession.class.getName());
+
+    private final KiraDb db;
+    private final IndexWriter writer;
+    private final SharedIndexWriter sharedWriter;
+    private final double savedRamBufferMB;
+    private int backingBatchSize = DEFAULT_BACKING_BATCH_SIZE;
+    private final List<Record> backingBatch = new ArrayList<Record>();
+    private final File workDirectory;
+    private final List<IndexBuildWorker> workers = new ArrayList<IndexBuildWorker>();
+    private final List<Thread> workerThreads = new ArrayList<Thread>();
+
+    private final long startTime;
+    private long endTime;
+    private int documentCount;
+    private boolean finished;
+    private boolean released;
+
+    BulkLoadSession(KiraDb db, IndexWriter writer, SharedIndexWriter sharedWriter, double ramBufferMB,
+                    int threads, File workDirectory) {
+        this.db = db;
+        this.writer = writer;
+        this.sharedWriter = sharedWriter;
+        if (sharedWriter != null) {
+            // keys written by the session bypass the primary key filters
+            sharedWriter.getKeyFilters().suspend();
+        }
+        this.savedRamBufferMB = writer.getRAMBufferSizeMB();
+        this.workDirectory = workDirectory;
+        writer.setRAMBufferSizeMB(ramBufferMB);
+        writer.setMaxBufferedDocs(IndexWriter.DISABLE_AUTO_FLUSH);
+        if (threads > 1) {
+            for (int i = 0; i < threads; i++) {
+                IndexBuildWorker worker = new IndexBuildWorker(db, new File(workDirectory, "part-" + i),
+                        ramBufferMB / threads, backingBatchSize);
+                Thread t = new Thread(worker, "KiraDb-index-build-" + i);
+                t.setDaemon(true);
+                workers.add(worker);
+                workerThreads.add(t);
+                t.start();
+            }
+        }
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * @return int The number of worker threads building the index, or zero if records
+     * are indexed on the calling thread
+     */
+    public int getThreads() {
+        return workers.size();
+    }
+
+    /**
+     * Set the number of records written to the backing store per batch.
+     * Worker threads of a parallel load use the default batch size.
+     *
+     * @param backingBatchSize records per batch
+     */
+    public void setBackingBatchSize(int backingBatchSize) {
+        this.backingBatchSize = Math.max(1, backingBatchSize);
+    }
+
+    public int getBackingBatchSize() {
+        return backingBatchSize;
+    }
+
+    /**
+     * Add a record to the bulk load
+     *
+     * @param r The Record object to be indexed/stored
+     *
+     * @throws IOException
+     * @throws KiraException
+     */
+    public void add(Record r) throws IOException, KiraException {
+        if (finished) {
+            throw new KiraException("bulk load session already finished");
+        }
+        if (!workers.isEmpty()) {
+            dispatch(r);
+            return;
+        }
+        RecordDescriptor dr = r.descriptor();
+        Document doc = db.buildDocument(r, dr);
+
+        if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+            backingBatch.add(r);
+            if (backingBatch.size() >= backingBatchSize) {
+                flushBackingBatch();
+            }
+        }
+        Term t = db.primaryKeyTerm(dr);
+        if (t != null) {
+            if (sharedWriter != null) {
+                sharedWriter.beginApply();
+            }
+            try {
+                writer.updateDocument(t, doc);
+            } catch (CorruptIndexException e) {
+                throw new KiraCorruptIndexException(e.getMessage());
+            } finally {
+                if (sharedWriter != null) {
+                    sharedWriter.endApply();
+                }
+            }
+            documentCount++;
+        }
+    }
+
+    /**
+     * Add all of the given records to the bulk load
+     *
+     * @param records The Record objects to be indexed/stored
+     *
+     * @throws IOException
+     * @throws KiraException
+     */
+    public void addAll(Iterable<? extends Record> records) throws IOException, KiraException {
+        for (Record r : records) {
+            add(r);
+        }
+    }
+
+    /**
+     * Write any remaining backing-store batch and commit the index once
+     *
+     * @throws IOException
+     * @throws KiraException
+     */
+    public void finish() throws IOException, KiraException {
+        if (finished) {
+            return;
+        }
+        boolean committed = false;
+        try {
+            if (!workers.isEmpty()) {
+                mergeWorkers();
+            }
+            flushBackingBatch();
+            if (sharedWriter != null) {
+                // lets near-real-time readers see the load
+                sharedWriter.writeApplied();
+                sharedWriter.commit();
+            } else {
+                writer.commit();
+            }
+            committed = true;
+        } catch (CorruptIndexException e) {
+            throw new KiraCorruptIndexException(e.getMessage());
+        } finally {
+            if (!committed) {
+                abort();
+            }
+            finished = true;
+            endTime = System.nanoTime();
+            try {
+                release();
+            } finally {
+                removeWorkDirectory();
+            }
+        }
+        logger.info("bulk loaded " + getDocumentCount() + " documents in " + getElapsedMillis()
+                + "ms (" + Math.round(getDocsPerSecond()) + " docs/s)");
+    }
+
+    /**
+     * Abandon the bulk load. Documents not yet committed are discarded, unless the
+     * session shares the writer of a group-commit KiraDb and indexes on the calling
+     * thread, in which case they are committed along with the next group.
+     *
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        endTime = System.nanoTime();
+        backingBatch.clear();
+        try {
+            for (IndexBuildWorker worker : workers) {
+                worker.abort();
+            }
+            joinWorkers();
+        } catch (InterruptedException e) {
+            logger.warning("interrupted while aborting bulk load workers");
+        }
+        try {
+            if (sharedWriter != null) {
+                if (documentCount > 0 && !sharedWriter.isClosed()) {
+                    // committed with the next group, and visible to near-real-time readers
+                    sharedWriter.writeApplied();
+                }
+                release();
+            } else if (!released) {
+                released = true;
+                writer.rollback();
+            }
+        } finally {
+            removeWorkDirectory();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return int The number of documents indexed so far
+     */
+    public int getDocumentCount() {
+        int n = documentCount;
+        for (IndexBuildWorker worker : workers) {
+            n += worker.getDocumentCount();
+        }
+        return n;
+    }
+
+    /**
+     * @return long Milliseconds elapsed since the session began (until finish or abort)
+     */
+    public long getElapsedMillis() {
+        long end = finished ? endTime : System.nanoTime();
+        return (end - startTime) / 1000000L;
+    }
+
+    /**
+     * @return double Documents indexed per second over the life of the session
+     */
+    public double getDocsPerSecond() {
+        long end = finished ? endTime : System.nanoTime();
+        long elapsed = Math.max(1L, end - startTime);
+        return getDocumentCount() * 1000000000.0 / elapsed;
+    }
+
+    private void dispatch(Record r) throws KiraException {
+        String pk = RecordSchema.primaryKeyOf(r);
+        // the same key always goes to the same worker, so later copies replace earlier ones
+        int h = pk == null ? 0 : pk.hashCode();
+        IndexBuildWorker worker = workers.get((h & 0x7fffffff) % workers.size());
+        try {
+            if (!worker.enqueue(r)) {
+                throw new KiraException("bulk load worker failed: " + worker.getFailure().getMessage());
+            }
+        } catch (InterruptedException e) {
+            throw new KiraException("interrupted while queueing record for bulk load");
+        }
+    }
+
+    private void joinWorkers() throws InterruptedException {
+        for (Thread t : workerThreads) {
+            t.join();
+        }
+    }
+
+    /**
+     * Wait for the workers to finish their temporary indexes and merge them into the main index
+     */
+    private void mergeWorkers() throws IOException, KiraException {
+        try {
+            for (IndexBuildWorker worker : workers) {
+                worker.end();
+            }
+            joinWorkers();
+        } catch (InterruptedException e) {
+            throw new KiraException("interrupted while waiting for bulk load workers");
+        }
+        for (IndexBuildWorker worker : workers) {
+            if (worker.getFailure() != null) {
+                throw new KiraException("bulk load worker failed: " + worker.getFailure().getMessage());
+            }
+        }
+        SharedIndexWriter.Batch merge = createMergeBatch();
+        if (sharedWriter != null) {
+            // the deletes must not be committed or seen without the merged records
+            sharedWriter.applyAtomically(merge);
+        } else {
+            // a failure rolls the session's own writer back in abort()
+            merge.apply(writer);
+        }
+    }
+
+    /**
+     * @return SharedIndexWriter.Batch The batch that replaces older copies of the
+     *         loaded records and adds the workers' indexes to the main index
+     */
+    SharedIndexWriter.Batch createMergeBatch() {
+        return new SharedIndexWriter.Batch() {
+            @Override
+            public void apply(IndexWriter main) throws IOException {
+                // addIndexes does not replace documents, so remove any older copies first
+                if (main.maxDoc() > 0) {
+                    for (IndexBuildWorker worker : workers) {
+                        worker.deleteReplaced(main);
+                    }
+                }
+                Directory[] parts = new Directory[workers.size()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = workers.get(i).getDirectory();
+                }
+                main.addIndexesNoOptimize(parts);
+            }
+        };
+    }
+
+    private void removeWorkDirectory() {
+        if (workers.isEmpty()) {
+            return;
+        }
+        try {
+            FileUtils.deleteDirectory(workDirectory);
+        } catch (IOException e) {
+            logger.warning("cannot remove temporary bulk load directory " + workDirectory + ": " + e.getMessage());
+        }
+    }
+
+    private void flushBackingBatch() throws IOException, KiraException {
+        if (backingBatch.isEmpty()) {
+            return;
+        }
+        try {
+            db.writeThrough(backingBatch);
+        } finally {
+            backingBatch.clear();
+        }
+    }
+
+    private void release() throws IOException {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (sharedWriter != null) {
+            if (!sharedWriter.isClosed()) {
+                writer.setRAMBufferSizeMB(savedRamBufferMB);
+            }
+            sharedWriter.getKeyFilters().resume();
+        } else {
+            writer.close();
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 public class CacheBackingStore extends BackingStore {
 
@@ -24,7 +25,7 @@ public class CacheBackingStore extends BackingStore {
      }
 
 	@Override
-	void storeObject(XStream xstream, Record r) {
+	void storeObject(RecordCodec codec, Record r) {
 		String key = makeKey(r);
 		//System.out.println("r: " + r);
 		//System.out.println(" primaryKey: " + r.getPrimaryKeyName() + " key: " + key);
@@ -33,7 +34,7 @@ public class CacheBackingStore extends BackingStore {
 	}
 
 	@Override
-	public<T extends Record> T retrieveObject(XStream xstream, Record r, String value) {
+	public<T extends Record> T retrieveObject(RecordCodec codec, Record r, String value) {
 		String key = makeKey(r, value);
 
 		Element element = cache.get(key);
@@ -44,20 +45,30 @@ public class CacheBackingStore extends BackingStore {
 	}
 
 	@Override
-	void removeObject(XStream xstream, Record r, String value) {
+	<T extends Record> List<T> retrieveObjects(RecordCodec codec, Record r, List<String> values) {
+		// in memory: not worth a thread
+		List<T> results = new ArrayList<T>(values.size());
+		for (String value : values) {
+			results.add(this.<T>retrieveObject(codec, r, value));
+		}
+		return results;
+	}
+
+	@Override
+	void removeObject(RecordCodec codec, Record r, String value) {
 		String key = makeKey(r, value);
         cache.remove(key);
 
 	}
 
 	@Override
-	public<T extends Record> T firstObject(XStream xstream, Record r) throws KiraException,
+	public<T extends Record> T firstObject(RecordCodec codec, Record r) throws KiraException,
 			IOException, ClassNotFoundException {
 		return null;
 	}
 
 	@Override
-	public<T extends Record> T nextObject(XStream xstream, Record r) throws KiraException,
+	public<T extends Record> T nextObject(RecordCodec codec, Record r) throws KiraException,
 			IOException, ClassNotFoundException {
 		return null;
 	}
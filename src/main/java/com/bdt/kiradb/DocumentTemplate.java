@@ -0,0 +1,197 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericField;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A reusable index document for one record type, owned by a single thread.
+ * <p>
+ * NUMBER and DATE values are stored as strings and indexed by a NumericField
+ * of the same name (see NumericFields).
+ * <p>
+ * Each call to begin() empties the same Document, and each field is set on
+ * the Lucene Field created for that name the first time it was added, so
+ * building a document allocates little beyond the field values. A document
+ * must therefore be added to the index writer before the next one of the
+ * same type is built on the same thread; IndexWriter has consumed a document
+ * by the time addDocument or updateDocument returns.
+ */
+final class DocumentTemplate {
+
+	private static final char[] DIGITS = "0123456789".toCharArray();
+
+	private final String recordName;
+	private final Document doc = new Document();
+	private final Map<String, Slot> slots = new HashMap<String, Slot>();
+	private final Calendar calendar = Calendar.getInstance();
+	private final char[] date = new char[19];
+	private final StringBuilder text = new StringBuilder();
+	private final PorterStemmer stemmer = new PorterStemmer();
+	private final char[] word = new char[501];
+	private String keyName;
+	private String key;
+
+	DocumentTemplate(String recordName) {
+		this.recordName = recordName;
+	}
+
+	/**
+	 * @return Document The emptied document
+	 */
+	Document begin() {
+		doc.getFields().clear();
+		return doc;
+	}
+
+	/**
+	 * The index field name of the primary key, record name + "_" + key name
+	 */
+	String primaryKeyField(String name) {
+		if (!name.equals(keyName)) {
+			key = recordName + "_" + name;
+			keyName = name;
+		}
+		return key;
+	}
+
+	/**
+	 * Add a field to the document, in the form KiraDB indexes its type
+	 *
+	 * @param name The index field name
+	 * @param type The field type
+	 * @param value The field value, not null
+	 */
+	void add(String name, FieldType type, Object value) {
+		if (value == null) {
+			throw new NullPointerException(name + " value cannot be null");
+		}
+		String s;
+		switch (type) {
+		case DATE:
+			s = encodeDate((Date) value);
+			break;
+		case FULLTEXT:
+			s = fulltext((String) value);
+			break;
+		case NUMBER:
+			s = value.toString();
+			break;
+		default:
+			s = (String) value;
+			break;
+		}
+		Slot slot = slots.get(name);
+		if (slot == null || slot.type != type) {
+			slot = new Slot(type, new org.apache.lucene.document.Field(name, s,
+					org.apache.lucene.document.Field.Store.YES, index(type)),
+					NumericFields.isNumeric(type) ? new NumericField(name, NumericFields.PRECISION_STEP,
+							org.apache.lucene.document.Field.Store.NO, true) : null);
+			slots.put(name, slot);
+		} else {
+			slot.field.setValue(s);
+		}
+		// the stored string comes first, so Document.get returns it
+		doc.add(slot.field);
+		if (slot.numeric != null) {
+			if (type == FieldType.DATE) {
+				slot.numeric.setLongValue(((Date) value).getTime());
+			} else {
+				slot.numeric.setDoubleValue(NumericFields.toDouble(value));
+			}
+			doc.add(slot.numeric);
+		}
+	}
+
+	private static org.apache.lucene.document.Field.Index index(FieldType type) {
+		switch (type) {
+		case FULLTEXT:
+			return org.apache.lucene.document.Field.Index.ANALYZED;
+		case NUMBER:
+		case DATE:
+			// indexed by the NumericField
+			return org.apache.lucene.document.Field.Index.NO;
+		default:
+			return org.apache.lucene.document.Field.Index.NOT_ANALYZED;
+		}
+	}
+
+	/**
+	 * Add a stored, unindexed binary field to the document
+	 */
+	void addBinary(String name, byte[] value) {
+		Slot slot = slots.get(name);
+		if (slot == null || slot.type != null) {
+			slot = new Slot(null, new org.apache.lucene.document.Field(name, value,
+					org.apache.lucene.document.Field.Store.YES), null);
+			slots.put(name, slot);
+		} else {
+			slot.field.setValue(value);
+		}
+		doc.add(slot.field);
+	}
+
+	/**
+	 * Encode a date as yyyyMMddHHmmss.SSSS in the default time zone. The month
+	 * is zero-based (Calendar.MONTH), as KiraDB has always indexed it.
+	 */
+	String encodeDate(Date d) {
+		calendar.setTimeInMillis(d.getTime());
+		int year = calendar.get(Calendar.YEAR);
+		if (year > 9999) {
+			return String.format("%04d%02d%02d%02d%02d%02d.%04d",
+					year, calendar.get(Calendar.MONTH), calendar.get(Calendar.DAY_OF_MONTH),
+					calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE),
+					calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND));
+		}
+		put(year, 0, 4);
+		put(calendar.get(Calendar.MONTH), 4, 2);
+		put(calendar.get(Calendar.DAY_OF_MONTH), 6, 2);
+		put(calendar.get(Calendar.HOUR_OF_DAY), 8, 2);
+		put(calendar.get(Calendar.MINUTE), 10, 2);
+		put(calendar.get(Calendar.SECOND), 12, 2);
+		date[14] = '.';
+		put(calendar.get(Calendar.MILLISECOND), 15, 4);
+		return new String(date);
+	}
+
+	private void put(int value, int offset, int digits) {
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			date[i] = DIGITS[value % 10];
+			value /= 10;
+		}
+	}
+
+	/**
+	 * The lowercased text, a newline, and the stems of its words
+	 */
+	private String fulltext(String value) {
+		text.setLength(0);
+		text.append(value.toLowerCase());
+		text.append('\n');
+		int stems = text.length();
+		Stemmer.appendStems(value, StandardAnalyzer.STOP_WORDS_SET, stemmer, word, text);
+		if (text.length() > stems) {
+			// drop the space after the last stem
+			text.setLength(text.length() - 1);
+		}
+		return text.toString();
+	}
+
+	private static final class Slot {
+		final FieldType type;
+		final org.apache.lucene.document.Field field;
+		final NumericField numeric;
+
+		Slot(FieldType type, org.apache.lucene.document.Field field, NumericField numeric) {
+			this.type = type;
+			this.field = field;
+			this.numeric = numeric;
+		}
+	}
+}
@@ -35,6 +35,30 @@ public class FieldQuery {
 	public void setQuerystr(String querystr) {
 		this.querystr = querystr;
 	}
+
+	/**
+	 * Append a form of this constraint that equals another's exactly when they match the same records
+	 */
+	void appendCacheKey(StringBuilder sb) {
+		sb.append("M(");
+		appendValue(sb, queryField.getName());
+		sb.append(queryField.getType());
+		appendValue(sb, querystr);
+		sb.append(')');
+	}
+
+	/**
+	 * Append a value unambiguously, whatever characters it contains
+	 */
+	static void appendValue(StringBuilder sb, Object value) {
+		if (value == null) {
+			sb.append('-');
+			return;
+		}
+		String s = value instanceof java.util.Date ? "D" + ((java.util.Date) value).getTime()
+				: value instanceof Number ? "N" + value : "S" + value;
+		sb.append(s.length()).append(':').append(s);
+	}
 	
 	
 }
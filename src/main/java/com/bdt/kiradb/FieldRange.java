@@ -0,0 +1,66 @@
+package com.bdt.kiradb;
+
+/**
+ * 
+ * A range query on a NUMBER or DATE field
+ * 
+ * @see Query#whereBetween(Field, Object, Object)
+ *
+ */
+public class FieldRange extends FieldQuery {
+
+	private Object lower;
+	private Object upper;
+	private boolean includeLower;
+	private boolean includeUpper;
+
+	/**
+	 * Construct a range query on the specified field
+	 * 
+	 * @param queryField NUMBER or DATE field to query
+	 * @param lower the lower bound, a Number or Date, or null for no lower bound
+	 * @param upper the upper bound, a Number or Date, or null for no upper bound
+	 * @param includeLower true if values equal to the lower bound match
+	 * @param includeUpper true if values equal to the upper bound match
+	 */
+	public FieldRange(Field queryField, Object lower, Object upper, boolean includeLower, boolean includeUpper) {
+		super(queryField, null);
+		if (queryField == null) {
+			throw new IllegalArgumentException("no such field");
+		}
+		if (!NumericFields.isNumeric(queryField.getType())) {
+			throw new IllegalArgumentException(queryField.getName() + " is a " + queryField.getType()
+					+ " field, ranges need a NUMBER or DATE field");
+		}
+		Class<?> c = queryField.getType() == FieldType.DATE ? java.util.Date.class : Number.class;
+		if ((lower != null && !c.isInstance(lower)) || (upper != null && !c.isInstance(upper))) {
+			throw new IllegalArgumentException(queryField.getName() + " range bounds must be " + c.getSimpleName() + "s");
+		}
+		this.lower = lower;
+		this.upper = upper;
+		this.includeLower = includeLower;
+		this.includeUpper = includeUpper;
+	}
+
+	public Object getLower() {
+		return lower;
+	}
+	public Object getUpper() {
+		return upper;
+	}
+	public boolean isIncludeLower() {
+		return includeLower;
+	}
+	public boolean isIncludeUpper() {
+		return includeUpper;
+	}
+
+	@Override
+	void appendCacheKey(StringBuilder sb) {
+		sb.append(includeLower ? '[' : '{');
+		appendValue(sb, getQueryField().getName());
+		appendValue(sb, lower);
+		appendValue(sb, upper);
+		sb.append(includeUpper ? ']' : '}');
+	}
+}
@@ -1,14 +1,12 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
+import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.channels.FileLock;
 import java.util.logging.Logger;
 
@@ -70,7 +68,7 @@ public class FileBackingStore extends BackingStore {
 	}
 
 	@Override
-	public void storeObject(XStream xstream, Record r) throws IOException,
+	public void storeObject(RecordCodec codec, Record r) throws IOException,
 			KiraException {
 		if (r.getRecordName().contains("/")) {
 			logger.warning("storeObject: Invalid record name: " + r.getRecordName());
@@ -83,7 +81,7 @@ public class FileBackingStore extends BackingStore {
 		}
 		String key = makeKey(r);
 
-		File lck = lock(r.getRecordName(), (String)r.descriptor().getPrimaryKey().getValue());
+		File lck = lock(r.getRecordName(), RecordSchema.primaryKeyOf(r));
 		if (lck == null) {
 			logger.severe("storeObject: cannot lock key: " + key);
 			throw new KiraException("storeObject: cannot lock key: " + key);
@@ -98,21 +96,19 @@ public class FileBackingStore extends BackingStore {
 				//logger.info(odir + " " + (status ? "success" : "failure"));
 			}
 			try {
+				byte[] data = codec.encode(r);
 				fos = new FileOutputStream(new File(rootpath,  "/" + key));
-				ObjectOutputStream oos = xstream.createObjectOutputStream(fos);
 
 				FileLock lock = fos.getChannel().lock();
 
 				try {
-					oos.writeObject(r);
-					// Flush and close the ObjectOutputStream.
-					//
-					oos.flush();
+					fos.write(data);
+					fos.flush();
 
 				} finally {
 					lock.release();
 				}
-				oos.close();
+				fos.close();
 			} catch (Exception e) {
 				logger.severe("failed to store Object " + key);
 				throw new KiraException("storeObject: failed to store Object " + key + " error: " + e.getMessage());
@@ -125,7 +121,7 @@ public class FileBackingStore extends BackingStore {
 	}
 
 	@Override
-	public<T extends Record> T retrieveObject(XStream xstream, Record r, String value)
+	public<T extends Record> T retrieveObject(RecordCodec codec, Record r, String value)
 			throws KiraException, IOException, ClassNotFoundException {
 		String key = makeKey(r, value);
 		
@@ -143,19 +139,20 @@ public class FileBackingStore extends BackingStore {
 				return null;
 			}
 
-			ObjectInputStream ois;
-
-			ois = xstream.createObjectInputStream(fis);
-
-			result = ois.readObject();
-			ois.close();
+			byte[] data;
+			try {
+				data = IOUtils.toByteArray(fis);
+			} finally {
+				fis.close();
+			}
+			result = codec.decode(data, 0, data.length);
 		} finally {
 			unlock(lck);
 		}
 		return (T)result;
 	}
 
-	public void removeObject(XStream xstream, Record r, String value) throws KiraException {
+	public void removeObject(RecordCodec codec, Record r, String value) throws KiraException {
 		String key = makeKey(r, value);
 		File lck = lock(r.getRecordName(), value);
 		if (lck == null)
@@ -173,19 +170,19 @@ public class FileBackingStore extends BackingStore {
 	}
 
 	@Override
-	public<T extends Record> T firstObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException {
+	public<T extends Record> T firstObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException {
         File directory = new File(rootpath + "/" + r.getRecordName());
         filesList = directory.listFiles();
         filesIndex = 0;
-		return (T)nextObject(xstream, r);
+		return (T)nextObject(codec, r);
 	}
 
 	@Override
-    public<T extends Record> T nextObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException {
+    public<T extends Record> T nextObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException {
 		while (filesIndex < filesList.length) {
 			File fileEntry = filesList[filesIndex++];
 			if (fileEntry.isFile()) {
-				return retrieveObject(xstream, r, fileEntry.getName());
+				return retrieveObject(codec, r, fileEntry.getName());
 			}
 		}
 		return null;
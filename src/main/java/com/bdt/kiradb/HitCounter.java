@@ -0,0 +1,64 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+
+/**
+ * Counts the hits of a query without scoring, sorting or reading any stored
+ * fields. Hits may be collected out of order, so Lucene can use its fastest
+ * scorer for the query.
+ */
+final class HitCounter extends Collector {
+
+	private int totalHits;
+
+	/**
+	 * @return int The number of hits collected
+	 */
+	int getTotalHits() {
+		return totalHits;
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) throws IOException {
+		// scores are never asked for
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		totalHits++;
+	}
+
+	@Override
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	/**
+	 * Whether a query has any hits, stopping at the first one
+	 */
+	static boolean anyHits(IndexSearcher searcher, org.apache.lucene.search.Query query) throws IOException {
+		Weight weight = query.weight(searcher);
+		IndexReader[] readers = searcher.getIndexReader().getSequentialSubReaders();
+		if (readers == null) {
+			readers = new IndexReader[] { searcher.getIndexReader() };
+		}
+		for (IndexReader reader : readers) {
+			Scorer scorer = weight.scorer(reader, false, false);
+			if (scorer != null && scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,197 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One worker of a parallel bulk load. Builds documents for the records queued to it
+ * and writes them into its own temporary index, to be merged into the main index
+ * when the load finishes.
+ */
+class IndexBuildWorker implements Runnable {
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    // marks the end of the record stream
+    private static final Record END = new Record() {
+        @Override
+        public RecordDescriptor descriptor() {
+            return null;
+        }
+
+        @Override
+        public String getRecordName() {
+            return null;
+        }
+
+        @Override
+        public String getPrimaryKeyName() {
+            return null;
+        }
+    };
+
+    private final Logger logger = Logger.getLogger(IndexBuildWorker.class.getName());
+
+    private final KiraDb db;
+    private final File directory;
+    private final double ramBufferMB;
+    private final int backingBatchSize;
+    private final BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(QUEUE_CAPACITY);
+    private final List<Record> backingBatch = new ArrayList<Record>();
+    // names of the primary key fields seen, for removing replaced documents from the main index
+    private final Set<String> keyFields = new HashSet<String>();
+
+    private volatile int documentCount;
+    private volatile Exception failure;
+    private volatile boolean aborted;
+
+    IndexBuildWorker(KiraDb db, File directory, double ramBufferMB, int backingBatchSize) {
+        this.db = db;
+        this.directory = directory;
+        this.ramBufferMB = ramBufferMB;
+        this.backingBatchSize = backingBatchSize;
+    }
+
+    /**
+     * Queue a record for this worker, waiting while the queue is full
+     *
+     * @return boolean false if the worker has failed and will accept no more records
+     */
+    boolean enqueue(Record r) throws InterruptedException {
+        while (!queue.offer(r, 100L, TimeUnit.MILLISECONDS)) {
+            if (failure != null) {
+                return false;
+            }
+        }
+        return failure == null;
+    }
+
+    void end() throws InterruptedException {
+        enqueue(END);
+    }
+
+    /**
+     * End the record stream, discarding everything indexed so far
+     */
+    void abort() throws InterruptedException {
+        aborted = true;
+        enqueue(END);
+    }
+
+    int getDocumentCount() {
+        return documentCount;
+    }
+
+    Exception getFailure() {
+        return failure;
+    }
+
+    Directory getDirectory() throws IOException {
+        return FSDirectory.open(directory);
+    }
+
+    @Override
+    public void run() {
+        IndexWriter writer = null;
+        try {
+            writer = new IndexWriter(FSDirectory.open(directory),
+                    new StandardAnalyzer(Version.LUCENE_30), true,
+                    IndexWriter.MaxFieldLength.UNLIMITED);
+            writer.setRAMBufferSizeMB(ramBufferMB);
+            while (true) {
+                Record r = queue.take();
+                if (r == END) {
+                    break;
+                }
+                RecordDescriptor dr = r.descriptor();
+                Document doc = db.buildDocument(r, dr);
+                if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+                    backingBatch.add(r);
+                    if (backingBatch.size() >= backingBatchSize) {
+                        flushBackingBatch();
+                    }
+                }
+                Term t = db.primaryKeyTerm(dr);
+                if (t != null) {
+                    keyFields.add(t.field());
+                    writer.updateDocument(t, doc);
+                    documentCount++;
+                }
+            }
+            if (aborted) {
+                // the writer is rolled back below
+                return;
+            }
+            flushBackingBatch();
+            writer.close();
+            writer = null;
+        } catch (Exception e) {
+            logger.severe("index build worker failed: " + e.getMessage());
+            failure = e;
+            // unblock a producer waiting on a full queue
+            queue.clear();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.rollback();
+                } catch (IOException e) {
+                    logger.warning("index build worker rollback failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete from the main index every document this worker is about to replace
+     */
+    void deleteReplaced(IndexWriter main) throws IOException {
+        IndexReader reader = IndexReader.open(FSDirectory.open(directory), true);
+        try {
+            for (String field : keyFields) {
+                TermEnum terms = reader.terms(new Term(field, ""));
+                try {
+                    do {
+                        Term t = terms.term();
+                        if (t == null || !t.field().equals(field)) {
+                            break;
+                        }
+                        main.deleteDocuments(t);
+                    } while (terms.next());
+                } finally {
+                    terms.close();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void flushBackingBatch() throws IOException, KiraException {
+        if (backingBatch.isEmpty()) {
+            return;
+        }
+        try {
+            db.writeThrough(backingBatch);
+        } finally {
+            backingBatch.clear();
+        }
+    }
+}
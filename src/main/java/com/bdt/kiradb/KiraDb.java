@@ -1,10 +1,13 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.KeywordAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.SetBasedFieldSelector;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
@@ -12,38 +15,56 @@ import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
 //import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.similar.MoreLikeThis;
-import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.util.Version;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 
 /**
  * The Core KiraDB API
+ * <p>
+ * A KiraDb instance is safe for use by many threads at once: queries share
+ * one reference-counted searcher, and each query returns its own
+ * QueryResult. Writes through one instance take turns on the index writer,
+ * or are batched by group commit. Configure the instance (backing store,
+ * codec, commit mode) before sharing it between threads. firstObject and
+ * nextObject keep their position in the backing store, so are not thread-safe.
  *
  * @author David Beckemeyer and Mark Petrovic
  *
@@ -56,16 +77,62 @@ public class KiraDb {
 
 	private static final int DEFAULT_PER_PAGE = 100;
 
-    private final File indexDirectory;
-
-    private XStream xstream;
+	private static final String WAL_DIRECTORY = "wal";
 
-    private int totalHits;
+	private static final String OBJECT_KEY = "object";
 
-    private BackingStore backingStore;
-    private BackingStore cacheStore;
+    private final File indexDirectory;
 
-	private String savedQuery;
+    private final SearcherManager searcherManager;
+
+    private volatile RecordCodec codec;
+    private volatile boolean compressObjects;
+
+    // the results of the calling thread's last query, for getTotalHits and getLastQuery
+    private final ThreadLocal<Integer> lastTotalHits = new ThreadLocal<Integer>();
+    private final ThreadLocal<String> lastQuery = new ThreadLocal<String>();
+
+    private volatile BackingStore backingStore;
+    private volatile BackingStore cacheStore;
+    // null unless query results are cached
+    private volatile QueryResultCache queryCache;
+
+	private final Object writerLock = new Object();
+	// serializes this instance's per-call writers, rather than leaving them to race for the index lock
+	private final Object perCallWriterLock = new Object();
+	private SharedIndexWriter sharedWriter;
+	// a log left by an earlier instance is replayed when the index is first
+	// used, not when constructed, so that it is decoded with the codec set
+	// by setRecordCodec
+	private volatile boolean logRecovered;
+	private volatile boolean groupCommit;
+	private volatile boolean writeAheadLog;
+	private int groupCommitMaxWrites;
+	private long groupCommitMaxDelay;
+	// negative when near-real-time reads are disabled
+	private volatile long nearRealTimeStaleness = -1L;
+
+	// parsed field queries are shared by all threads; parsers are not thread-safe
+	private static final int PARSED_QUERY_CACHE_SIZE = 1000;
+	static final Analyzer FULLTEXT_ANALYZER = new StandardAnalyzer(Version.LUCENE_30);
+	private static final Analyzer KEYWORD_ANALYZER = new KeywordAnalyzer();
+	private final LruCache<String, org.apache.lucene.search.Query> parsedQueries =
+			new LruCache<String, org.apache.lucene.search.Query>(PARSED_QUERY_CACHE_SIZE);
+	private final ThreadLocal<Map<String, QueryParser>> parsers = new ThreadLocal<Map<String, QueryParser>>() {
+		@Override
+		protected Map<String, QueryParser> initialValue() {
+			return new HashMap<String, QueryParser>();
+		}
+	};
+	private final ConcurrentMap<String, Filter> typeFilters = new ConcurrentHashMap<String, Filter>();
+
+	// reusable documents, per thread and record type
+	private final ThreadLocal<Map<String, DocumentTemplate>> templates = new ThreadLocal<Map<String, DocumentTemplate>>() {
+		@Override
+		protected Map<String, DocumentTemplate> initialValue() {
+			return new HashMap<String, DocumentTemplate>();
+		}
+	};
 
 	/**
 	 * Construct a Core KiraDB instance with specified indexPath
@@ -76,7 +143,8 @@ public class KiraDb {
 	 */
 	public KiraDb(File indexPath) throws KiraCorruptIndexException, IOException {
 		this.indexDirectory = indexPath;
-		xstream = new XStream();
+		this.searcherManager = new SearcherManager(indexPath);
+		codec = new BinaryRecordCodec();
 		initIndex();
 		cacheStore = null;
 		try {
@@ -98,7 +166,8 @@ public class KiraDb {
 	 */
 	public KiraDb(File indexPath, Boolean disableCaching) throws KiraCorruptIndexException, IOException {
 		this.indexDirectory = indexPath;
-		xstream = new XStream();
+		this.searcherManager = new SearcherManager(indexPath);
+		codec = new BinaryRecordCodec();
 		initIndex();
 		cacheStore = null;
 		if (!disableCaching) {
@@ -124,12 +193,14 @@ public class KiraDb {
 	 */
 	public KiraDb(File indexPath, BackingStore cacheStore) throws KiraCorruptIndexException, IOException {
 		this.indexDirectory = indexPath;
-		xstream = new XStream();
+		this.searcherManager = new SearcherManager(indexPath);
+		codec = new BinaryRecordCodec();
 		initIndex();
 		this.cacheStore = cacheStore;
 	}
 	
 	private IndexWriter getIndexWriter(File indexDir) throws InterruptedException, IOException, CorruptIndexException {
+		recoverLogOnce();
 		IndexWriter writer = null;
 		int nTries = 0;
 		while (true) {
@@ -179,59 +250,20 @@ public class KiraDb {
 
 		RecordDescriptor dr = r.descriptor();
 
-		Document doc = new Document();
-
-		// add the Record Type field
-		doc.add(new org.apache.lucene.document.Field(TYPE_KEY, dr.getRecordName(),
-				org.apache.lucene.document.Field.Store.YES,
-				org.apache.lucene.document.Field.Index.NOT_ANALYZED));
-
-
-		// Add the primary key field
-		String key = makeKey(dr, dr.getPrimaryKey().getName());
-
-		addField(doc, dr, dr.getPrimaryKey(), key);
-
-		// Add the other fields
-		if (dr.getFields() != null) {
-			for (Field f : dr.getFields()) {
-				// fields are optional, do not store null fields
-				if (f.getValue() != null)
-					addField(doc, dr, f);
-			}
-		}
-
-		// Write the object if that's what we're doing
-		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos;
-
-            oos = xstream.createObjectOutputStream(bos);
-
-            oos.writeObject(r);
-            // Flush and close the ObjectOutputStream.
-            //
-            oos.flush();
-            oos.close();
-            doc.add(new org.apache.lucene.document.Field("object",
-            		bos.toString(),
-            		org.apache.lucene.document.Field.Store.YES,
-            		org.apache.lucene.document.Field.Index.NO));
-
+		Document doc = buildDocument(r, dr);
 
-		}
 		// Also pass through to the Backing Store if so requested
-		if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
     		if (this.backingStore == null) {
     			throw new KiraException("STORE_MODE_BACKING but no backing store set");
     		}
     		if (writeThru) {
     			try {
-    				this.backingStore.storeObject(xstream, r);
+    				this.backingStore.storeObject(codec, r);
     			} catch (Exception e) {
     				if (cacheStore != null) {
     					try {
-							this.cacheStore.removeObject(xstream, r, (String)r.descriptor().getPrimaryKey().getValue());
+							this.cacheStore.removeObject(codec, r, (String)dr.getPrimaryKey().getValue());
 						} catch (ClassNotFoundException e1) {
 							// TODO Auto-generated catch block
 							e1.printStackTrace();
@@ -242,45 +274,326 @@ public class KiraDb {
     		}
     		// store in the Cache if active
     		if (cacheStore != null) {
-    			this.cacheStore.storeObject(xstream, r);
+    			this.cacheStore.storeObject(codec, r);
 			}
 		}
 		// Set the primary key as the Term for the object
-		Term t = null;
+		Term t = primaryKeyTerm(dr);
+		if (t != null) {
+			updateDocument(t, doc, r);
+		}
+
+	}
+
+	/**
+	 * Store a collection of records in a single bulk load, committing the
+	 * index once at the end
+	 *
+	 * @param records The Record objects to be indexed/stored
+	 *
+	 * @return BulkLoadSession The finished session, for its statistics
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws KiraException
+	 */
+	public BulkLoadSession storeObjects(Iterable<? extends Record> records) throws IOException, InterruptedException, KiraException {
+		return storeObjects(records, 1);
+	}
+
+	/**
+	 * Begin a bulk load with the default RAM buffer size
+	 *
+	 * @return BulkLoadSession The bulk load session
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public BulkLoadSession beginBulkLoad() throws IOException, InterruptedException {
+		return beginBulkLoad(BulkLoadSession.DEFAULT_RAM_BUFFER_MB);
+	}
+
+	/**
+	 * Begin a bulk load. Records added to the session are not visible to
+	 * queries until the session is finished.
+	 * <p>
+	 * Unless group commit is enabled, the session holds the index write lock
+	 * until it is finished or aborted.
+	 *
+	 * @param ramBufferMB The index writer RAM buffer size in megabytes
+	 *
+	 * @return BulkLoadSession The bulk load session
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public BulkLoadSession beginBulkLoad(double ramBufferMB) throws IOException, InterruptedException {
+		return beginBulkLoad(ramBufferMB, 1);
+	}
+
+	/**
+	 * Begin a bulk load, building the index on the given number of worker
+	 * threads. Each worker writes its own temporary index next to the main
+	 * index; the temporary indexes are merged into the main index when the
+	 * session is finished.
+	 *
+	 * @param ramBufferMB The total index writer RAM buffer size in megabytes
+	 * @param threads The number of worker threads, or 1 to index on the calling thread
+	 *
+	 * @return BulkLoadSession The bulk load session
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public BulkLoadSession beginBulkLoad(double ramBufferMB, int threads) throws IOException, InterruptedException {
+		File workDir = new File(indexDirectory.getAbsoluteFile().getParentFile(),
+				indexDirectory.getName() + ".bulk-" + System.currentTimeMillis());
+		if (isGroupCommit()) {
+			SharedIndexWriter shared = getSharedWriter();
+			return newBulkLoadSession(shared.getWriter(), shared, ramBufferMB, threads, workDir);
+		}
+		return newBulkLoadSession(getIndexWriter(indexDirectory), null, ramBufferMB, threads, workDir);
+	}
+
+	BulkLoadSession newBulkLoadSession(IndexWriter writer, SharedIndexWriter shared, double ramBufferMB,
+			int threads, File workDir) {
+		return new BulkLoadSession(this, writer, shared, ramBufferMB, threads, workDir);
+	}
+
+	/**
+	 * Store a collection of records in a single bulk load, building the
+	 * index on the given number of worker threads
+	 *
+	 * @param records The Record objects to be indexed/stored
+	 * @param threads The number of worker threads
+	 *
+	 * @return BulkLoadSession The finished session, for its statistics
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws KiraException
+	 */
+	public BulkLoadSession storeObjects(Iterable<? extends Record> records, int threads) throws IOException, InterruptedException, KiraException {
+		BulkLoadSession session = beginBulkLoad(BulkLoadSession.DEFAULT_RAM_BUFFER_MB, threads);
+		try {
+			session.addAll(records);
+			session.finish();
+		} finally {
+			if (!session.isFinished()) {
+				session.abort();
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Write a batch of records to the backing store, evicting any cached copies
+	 */
+	void writeThrough(List<? extends Record> records) throws IOException, KiraException {
+		if (this.backingStore == null) {
+			throw new KiraException("STORE_MODE_BACKING but no backing store set");
+		}
+		if (cacheStore != null) {
+			for (Record r : records) {
+				try {
+					cacheStore.removeObject(codec, r, RecordSchema.primaryKeyOf(r));
+				} catch (ClassNotFoundException e) {
+					throw new KiraException("ClassNotFoundException " + e.getMessage());
+				}
+			}
+		}
+		this.backingStore.storeObjects(codec, records);
+	}
+
+	/**
+	 * Build the Lucene Document indexing the given record, including the
+	 * serialized object itself when the record is stored in the index.
+	 * <p>
+	 * The Document and its fields are reused for the next record of the same
+	 * type built on the calling thread, so it must be added to the index
+	 * writer before then.
+	 *
+	 * @param r The Record object
+	 * @param dr The record's descriptor
+	 *
+	 * @return Document The index document
+	 *
+	 * @throws IOException
+	 */
+	Document buildDocument(Record r, RecordDescriptor dr) throws IOException {
+
+		Map<String, DocumentTemplate> threadTemplates = templates.get();
+		DocumentTemplate template = threadTemplates.get(dr.getRecordName());
+		if (template == null) {
+			template = new DocumentTemplate(dr.getRecordName());
+			threadTemplates.put(dr.getRecordName(), template);
+		}
+		Document doc = template.begin();
+
+		// add the Record Type field
+		template.add(TYPE_KEY, FieldType.STRING, dr.getRecordName());
+
+		// Add the primary key field
+		// NUMBER primary keys are indexed as string terms, see primaryKeyTerm
+		Field pk = dr.getPrimaryKey();
+		if (pk.getType() == FieldType.NUMBER) {
+			template.add(template.primaryKeyField(pk.getName()), FieldType.STRING,
+					pk.getValue() != null ? pk.getValue().toString() : null);
+		} else {
+			template.add(template.primaryKeyField(pk.getName()), pk.getType(), pk.getValue());
+		}
+
+		// Add the other fields
+		List<Field> fields = dr.getFields();
+		if (fields != null) {
+			for (int i = 0, n = fields.size(); i < n; i++) {
+				Field f = fields.get(i);
+				// fields are optional, do not store null fields
+				if (f.getValue() != null)
+					template.add(f.getName(), f.getType(), f.getValue());
+			}
+		}
+
+		// Write the object if that's what we're doing
+		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
+			template.addBinary(OBJECT_KEY, StoredObjects.pack(codec.encode(r), compressObjects));
+		}
+		return doc;
+	}
+
+	/**
+	 * Decode the object stored in an index document. Documents written by
+	 * earlier versions hold it as an XML string field.
+	 */
+	private <T extends Record> T decodeObject(Document d) throws IOException, ClassNotFoundException {
+		Fieldable f = d.getFieldable(OBJECT_KEY);
+		if (f == null) {
+			throw new IOException("index document has no stored object");
+		}
+		if (f.isBinary()) {
+			return StoredObjects.<T>unpack(codec, f.getBinaryValue(), f.getBinaryOffset(), f.getBinaryLength());
+		}
+		byte[] data = f.stringValue().getBytes("UTF-8");
+		return codec.<T>decode(data, 0, data.length);
+	}
+
+	/**
+	 * The Term identifying a record's document in the index
+	 *
+	 * @param dr The record's descriptor
+	 *
+	 * @return Term The primary key Term, or null if the primary key type cannot be indexed
+	 */
+	Term primaryKeyTerm(RecordDescriptor dr) {
+		String key = makeKey(dr, dr.getPrimaryKey().getName());
 		switch (dr.getPrimaryKey().getType()) {
-		case DATE:
-			Calendar c = Calendar.getInstance();
-			c.setTime((Date)dr.getPrimaryKey().getValue());
-			String s = String.format("%04d%02d%02d%02d%02d%02d.%04d",
-					c.get(Calendar.YEAR), c.get(Calendar.MONTH), c.get(Calendar.DAY_OF_MONTH),
-					c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE), c.get(Calendar.SECOND), c.get(Calendar.MILLISECOND));
-			doc.add(new org.apache.lucene.document.Field(key, s,
-					org.apache.lucene.document.Field.Store.YES,
-					org.apache.lucene.document.Field.Index.NOT_ANALYZED));
-			break;
 		case STRING:
-			t = new Term(key, (String)dr.getPrimaryKey().getValue());
-			break;
+			return new Term(key, (String)dr.getPrimaryKey().getValue());
 		case NUMBER:
-			t = new Term(key, ((Integer)dr.getPrimaryKey().getValue())+"");
-			break;
-		case FULLTEXT:
-			// throw an exception
-			break;
+			return new Term(key, ((Integer)dr.getPrimaryKey().getValue())+"");
+		default:
+			// DATE and FULLTEXT primary keys are not supported
+			return null;
 		}
-		if (t != null) {
-            IndexWriter writer = getIndexWriter(indexDirectory);
-            try {
-            	writer.updateDocument(t, doc);
-            } catch (CorruptIndexException e) {
-    			throw new KiraCorruptIndexException(e.getMessage());
-            } catch (IOException e) {
-            	throw e;
-            } finally {
-            	writer.close();
-            }
+	}
+
+	/**
+	 * Add or replace the document identified by the given Term, either through
+	 * the shared group-commit writer or a writer opened just for this call
+	 */
+	private void updateDocument(Term t, Document doc, Record r) throws IOException, InterruptedException, KiraCorruptIndexException {
+		if (isGroupCommit()) {
+			SharedIndexWriter shared = getSharedWriter();
+			WriteAheadLog wal = shared.getLog();
+			long seq = 0;
+			shared.beginApply();
+			try {
+				if (wal != null) {
+					wal.enter(t);
+				}
+				shared.getKeyFilters().beginWrite(t);
+				try {
+					if (wal != null) {
+						seq = wal.append(WriteAheadLog.OP_UPDATE, t, codec.encode(r));
+					}
+					shared.getWriter().updateDocument(t, doc);
+				} catch (CorruptIndexException e) {
+					throw new KiraCorruptIndexException(e.getMessage());
+				} finally {
+					shared.getKeyFilters().endWrite();
+					if (wal != null) {
+						wal.exit(t);
+					}
+				}
+			} finally {
+				shared.endApply();
+			}
+			shared.writeApplied();
+			if (wal != null) {
+				wal.sync(seq);
+			}
+			return;
+		}
+		synchronized (perCallWriterLock) {
+			IndexWriter writer = getIndexWriter(indexDirectory);
+			try {
+				writer.updateDocument(t, doc);
+			} catch (CorruptIndexException e) {
+				throw new KiraCorruptIndexException(e.getMessage());
+			} catch (IOException e) {
+				throw e;
+			} finally {
+				writer.close();
+			}
 		}
+	}
 
+	/**
+	 * Delete the documents matching the given Term, either through
+	 * the shared group-commit writer or a writer opened just for this call
+	 */
+	private void deleteDocuments(Term t) throws IOException, InterruptedException {
+		if (isGroupCommit()) {
+			SharedIndexWriter shared = getSharedWriter();
+			WriteAheadLog wal = shared.getLog();
+			long seq = 0;
+			shared.beginApply();
+			try {
+				if (wal != null) {
+					wal.enter(t);
+				}
+				try {
+					if (wal != null) {
+						seq = wal.append(WriteAheadLog.OP_DELETE, t, new byte[0]);
+					}
+					shared.getWriter().deleteDocuments(t);
+				} finally {
+					if (wal != null) {
+						wal.exit(t);
+					}
+				}
+			} finally {
+				shared.endApply();
+			}
+			shared.writeApplied();
+			if (wal != null) {
+				wal.sync(seq);
+			}
+			return;
+		}
+		synchronized (perCallWriterLock) {
+			IndexWriter writer = getIndexWriter(indexDirectory);
+			try {
+				writer.deleteDocuments(t);
+				writer.commit();
+			} catch (CorruptIndexException e) {
+				throw e;
+			} catch (IOException e) {
+				throw e;
+			} finally {
+				writer.close();
+			}
+		}
 	}
 
 	/**
@@ -296,30 +609,35 @@ public class KiraDb {
 	 * @throws KiraException
 	 */
 	public<T extends Record> T retrieveObjectByPrimaryKey(Record r, String value) throws IOException, ClassNotFoundException, KiraException {
-        String key = makeKey(r.descriptor(), r.getPrimaryKeyName());
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+        String key = makeKey(dr, r.getPrimaryKeyName());
 
+        PrimaryKeyFilter filter = primaryKeyFilter(key);
+        if (filter != null && !filter.mightContain(value)) {
+        	return null;
+        }
         T result = null;
-        if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+        if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
 			if (this.backingStore == null) {
 				throw new KiraException("STORE_MODE_BACKING but no backing store set");
 			}
     		if (cacheStore != null) {
-    			result = (T)cacheStore.retrieveObject(xstream, r, value);
+    			result = (T)cacheStore.retrieveObject(codec, r, value);
     		}
     		if (result == null) {
     			try {
-    				result = (T)this.backingStore.retrieveObject(xstream, r, value);
+    				result = (T)this.backingStore.retrieveObject(codec, r, value);
     			} catch (Exception e) {
     				if (cacheStore != null) {
-    					this.cacheStore.removeObject(xstream, (Record) r, value);
+    					this.cacheStore.removeObject(codec, (Record) r, value);
     				}
     				throw new KiraException(e.getMessage());
     			}
     			if (cacheStore != null) {
     				if (result != null) {
-    					this.cacheStore.storeObject(xstream, (Record) result);
+    					this.cacheStore.storeObject(codec, (Record) result);
     				} else {
-    					this.cacheStore.removeObject(xstream, (Record) r, value);
+    					this.cacheStore.removeObject(codec, (Record) r, value);
     				}
     			}
     		}
@@ -327,70 +645,147 @@ public class KiraDb {
     	}
 
         // not using a backing a store, so use the index
-        FSDirectory idx = FSDirectory.open(indexDirectory);
-        IndexReader ir = IndexReader.open(idx);
-
-        Term t = new Term(key, value);
-        TermDocs tdocs = ir.termDocs(t);
-        if (tdocs.next()) {
-        	Document d = ir.document(tdocs.doc());
-        	if (r.descriptor().getStoreMode() == RecordDescriptor.STORE_MODE_NONE) {
-        		// if object not returned, then return fields as key,value pairs
-
-                // ####
-                // Does this help?
-                // These variables have to be declared 'final' for the new instance to use
-                // them with confidence, perhaps in another thread.
-                final RecordDescriptor descriptor = new RecordDescriptor(r.getRecordName());
-                final String recordName = r.getRecordName();
-                final String pkName = r.getPrimaryKeyName();
-
-                Record aRecord = new Record() {
-                    @Override
-                    public RecordDescriptor descriptor() {
-                        return descriptor;
-                    }
-
-                    @Override
-                    public String getRecordName() {
-                        return recordName;
-                    }
-
-                    @Override
-                    public String getPrimaryKeyName() {
-                        return pkName;
-                    }
-                };
-                // ####
-
-                aRecord.descriptor().setPrimaryKey(new Field(r.getPrimaryKeyName(),FieldType.STRING, (String)d.get(key)));
-            	if (r.descriptor().getFields() != null) {
-            		for (Field f : r.descriptor().getFields()) {
-            			// return all existing STRING fields
-						if (f.getType() == FieldType.STRING && d.get(f.getName()) != null) {
-            				aRecord.descriptor().addField(new Field(f.getName(), f.getType(),(String)d.get(f.getName())));
-						}
-            		}
-            	}
-            	result = (T) aRecord;
-        	} else if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
-
-        		String obj = d.get("object");
-
+        IndexSearcher searcher = acquireSearcher(false);
+        try {
+        	return this.<T>retrieveFromIndex(r, key, value, searcher.getIndexReader());
+        } finally {
+        	searcherManager.release(searcher);
+        }
+	}
 
-        		ByteArrayInputStream fis = new ByteArrayInputStream(obj.getBytes("UTF-8"));
+	/**
+	 * Retrieve several objects (records) by primary key at once. Objects in
+	 * the index are looked up in key order in one pass over the term
+	 * dictionary, and read in index order; objects in a backing store are
+	 * fetched in one batch.
+	 *
+	 * @param r An instance of the Class / Record
+	 * @param values The primary key values
+	 *
+	 * @return Map<String, T> The objects found, by primary key, in the order of values
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws KiraException
+	 */
+	public<T extends Record> Map<String, T> retrieveObjectsByPrimaryKeys(Record r, Collection<String> values) throws IOException, ClassNotFoundException, KiraException {
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+		String key = makeKey(dr, r.getPrimaryKeyName());
+		PrimaryKeyFilter filter = primaryKeyFilter(key);
+		List<String> sorted = new ArrayList<String>();
+		for (String value : new TreeSet<String>(values)) {
+			if (filter == null || filter.mightContain(value)) {
+				sorted.add(value);
+			}
+		}
+		Map<String, T> found = new HashMap<String, T>();
+
+		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+			List<Record> objects = retrieveFromBackingStore(r, sorted);
+			for (int i = 0; i < sorted.size(); i++) {
+				if (objects.get(i) != null) {
+					found.put(sorted.get(i), (T) objects.get(i));
+				} else if (cacheStore != null) {
+					this.cacheStore.removeObject(codec, r, sorted.get(i));
+				}
+			}
+		} else {
+			IndexSearcher searcher = acquireSearcher(false);
+			try {
+				Map<String, Document> docs = documentsByPrimaryKeys(searcher.getIndexReader(), key, sorted,
+						storedFieldSelector(r, key, null));
+				for (Map.Entry<String, Document> e : docs.entrySet()) {
+					found.put(e.getKey(), (T) toRecord(r, key, null, e.getValue()));
+				}
+			} finally {
+				searcherManager.release(searcher);
+			}
+		}
 
-        		ObjectInputStream ois;
+		Map<String, T> results = new LinkedHashMap<String, T>();
+		for (String value : values) {
+			T o = found.get(value);
+			if (o != null) {
+				results.put(value, o);
+			}
+		}
+		return results;
+	}
 
-        		ois = xstream.createObjectInputStream(fis);
+	/**
+	 * Read the stored fields of the documents with the given primary keys
+	 *
+	 * @param sorted The primary key values, in term order
+	 * @return Map<String, Document> The documents found, by primary key value
+	 */
+	private Map<String, Document> documentsByPrimaryKeys(IndexReader ir, String key, List<String> sorted,
+			FieldSelector selector) throws IOException {
+		// seek the keys in term order, so the term dictionary is read forward
+		int[] docs = new int[sorted.size()];
+		String[] docValues = new String[sorted.size()];
+		int n = 0;
+		TermDocs tdocs = ir.termDocs();
+		try {
+			for (String value : sorted) {
+				tdocs.seek(new Term(key, value));
+				if (tdocs.next()) {
+					docs[n] = tdocs.doc();
+					docValues[n] = value;
+					n++;
+				}
+			}
+		} finally {
+			tdocs.close();
+		}
+		// then read the stored fields in index order
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		final int[] byDoc = docs;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return byDoc[a] < byDoc[b] ? -1 : (byDoc[a] == byDoc[b] ? 0 : 1);
+			}
+		});
+		Map<String, Document> found = new HashMap<String, Document>();
+		for (Integer i : order) {
+			found.put(docValues[i], ir.document(docs[i], selector));
+		}
+		return found;
+	}
 
-        		result = (T)ois.readObject();
+	/**
+	 * The Bloom filter over the primary keys in a key field, used to answer
+	 * lookups of keys that do not exist without searching. Only available
+	 * with group commit, when every write to the index goes through the
+	 * shared writer of this instance.
+	 *
+	 * @return PrimaryKeyFilter The filter, or null if there is none to trust
+	 */
+	private PrimaryKeyFilter primaryKeyFilter(String key) throws IOException {
+		if (!isGroupCommit()) {
+			return null;
+		}
+		SharedIndexWriter shared;
+		try {
+			shared = getSharedWriter();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		return shared.getKeyFilters().get(key, shared.getWriter());
+	}
 
-        		ois.close();
-        	}
+	private<T extends Record> T retrieveFromIndex(Record r, String key, String value, IndexReader ir) throws IOException, ClassNotFoundException, KiraException {
+        T result = null;
+        Term t = new Term(key, value);
+        TermDocs tdocs = ir.termDocs(t);
+        if (tdocs.next()) {
+        	Document d = ir.document(tdocs.doc(), storedFieldSelector(r, key, null));
+        	result = (T) toRecord(r, key, null, d);
         }
         tdocs.close();
-        ir.close();
         return result;
 	}
 
@@ -416,13 +811,13 @@ public class KiraDb {
 	 * @param sortFieldName Optional sort field name
 	 * @param reverse Set to true to reverse the sort order
 	 * 
-	 * @return List<T extends Record> list of matching records
+	 * @return QueryResult<T> list of matching records
 	 * 
 	 * @throws KiraException
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
-	public<T extends Record> List<T> executeQuery(Record r, String queryFieldName, String querystr, String sortFieldName, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
+	public<T extends Record> QueryResult<T> executeQuery(Record r, String queryFieldName, String querystr, String sortFieldName, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
 		return executeQuery(r, queryFieldName, querystr, DEFAULT_PER_PAGE, 0, sortFieldName, reverse);
 	}
 	
@@ -450,18 +845,19 @@ public class KiraDb {
 	 * @param sortFieldName Optional sort field name
 	 * @param reverse Set to true to reverse the sort order
 	 *
-	 * @return List<T extends Record> list of matching objects
+	 * @return QueryResult<T> list of matching objects
 
 	 */
 
-	public<T extends Record> List<T> executeQuery(Record r, String queryFieldName, String querystr, int hitsPerPage, int skipDocs, String sortFieldName, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
+	public<T extends Record> QueryResult<T> executeQuery(Record r, String queryFieldName, String querystr, int hitsPerPage, int skipDocs, String sortFieldName, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
+		RecordDescriptor dr = RecordSchema.typeOf(r);
 		Field queryField = null;
 		if (queryFieldName != null) {
-			queryField = r.descriptor().getFieldByName(queryFieldName);
+			queryField = dr.getFieldByName(queryFieldName);
 		}
 		Field sortField =null;
 		if (sortFieldName != null) {
-			sortField = r.descriptor().getFieldByName(sortFieldName);
+			sortField = dr.getFieldByName(sortFieldName);
 		}
 		return executeQuery(r, queryField, querystr, hitsPerPage, skipDocs, sortField, reverse);
 	}
@@ -476,13 +872,13 @@ public class KiraDb {
 	 * @param sortField Optional sort field or null
 	 * @param reverse Set to true to reverse the sort order
 	 *
-	 * @return List<Object> list of matching objects or list of matching keys
+	 * @return QueryResult<T> list of matching objects
 	 *
 	 * @throws KiraException
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
-	public<T extends Record> List<T> executeQuery(Record r, Field queryField, String querystr, int hitsPerPage, int skipDocs, Field sortField, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
+	public<T extends Record> QueryResult<T> executeQuery(Record r, Field queryField, String querystr, int hitsPerPage, int skipDocs, Field sortField, Boolean reverse) throws KiraException, IOException, ClassNotFoundException {
 	
         Query query = new Query(r);
         query.setStart(skipDocs);
@@ -490,9 +886,10 @@ public class KiraDb {
         if (sortField != null) {
         	query.setSortField(sortField, reverse);
         }
-        if (queryField == null) {
-        	if (querystr != null && r.descriptor().getFields() != null)
-        		queryField = r.descriptor().getFields().get(0);
+        if (queryField == null && querystr != null) {
+        	List<Field> fields = RecordSchema.typeOf(r).getFields();
+        	if (fields != null)
+        		queryField = fields.get(0);
         }
         if (queryField != null) {
         	query.whereMatches(queryField, querystr);
@@ -507,17 +904,32 @@ public class KiraDb {
 	 * 
 	 * @param query the query to execute
 	 * 
-	 * @return
+	 * @return QueryResult<T> The matching records, which loads each object
+	 * when it is first accessed, with the total number of hits
 	 * @throws KiraException
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
-	public<T extends Record> List<T> executeQuery(Query query) throws KiraException, IOException, ClassNotFoundException {
-		List<Document> docs;
-        String key = makeKey(query.getRecord().descriptor(), query.getRecord().getPrimaryKeyName());
+	public<T extends Record> QueryResult<T> executeQuery(Query query) throws KiraException, IOException, ClassNotFoundException {
+		return executeQuery(query, null, buildSort(query, RecordSchema.typeOf(query.getRecord())), null);
+	}
+
+	/**
+	 * Run a query, or a prepared query
+	 *
+	 * @param luceneQuery The Lucene form of the query, or null to build it from query
+	 * @param sort The sort order, or null for index order
+	 * @param cacheKey The query cache key, or null to use the query's
+	 */
+	<T extends Record> QueryResult<T> executeQuery(Query query, org.apache.lucene.search.Query luceneQuery, Sort sort,
+			String cacheKey) throws KiraException, IOException, ClassNotFoundException {
+		Page page;
+		RecordDescriptor dr = RecordSchema.typeOf(query.getRecord());
+        String key = makeKey(dr, query.getRecord().getPrimaryKeyName());
 
+		long started = System.nanoTime();
 		try {
-			docs = searchDocuments(query);
+			page = searchDocuments(query, luceneQuery, sort, cacheKey);
 		} catch (ParseException e) {
 			throw new KiraException("ParseException " + e.getMessage());
 		} catch (CorruptIndexException e) {
@@ -525,114 +937,385 @@ public class KiraDb {
 		} catch (IOException e) {
 			throw e;
 		}
-		List<Record> results = new ArrayList<Record>();
-        if (docs.size() > 0) {
-        	if (query.getRecord().descriptor().getStoreMode() == RecordDescriptor.STORE_MODE_NONE) {
-        		// if objects are not stored in the index, return list of matching primary keys
- 
-                for (Document d: docs) {
-               		final RecordDescriptor descriptor = new RecordDescriptor(query.getRecord().getRecordName());
-                    final String recordName = query.getRecord().getRecordName();
-                    final String pkName = query.getRecord().getPrimaryKeyName();
-                   // System.out.println("@@@ A");
-
-                	 Record aRecord = new Record() {
-                         @Override
-                         public RecordDescriptor descriptor() {
-                             return descriptor;
-                         }
-
-                         @Override
-                         public String getRecordName() {
-                             return recordName;
-                         }
-
-                         @Override
-                         public String getPrimaryKeyName() {
-                             return pkName;
-                         }
-                     };
-                     // ####
-
-                    aRecord.descriptor().setPrimaryKey(new Field(query.getRecord().getPrimaryKeyName(),FieldType.STRING, (String)d.get(key)));
-                 	if (query.getRecord().descriptor().getFields() != null) {
-                 		for (Field f : query.getRecord().descriptor().getFields()) {
-                 			// return all existing STRING fields
-     						if (f.getType() == FieldType.STRING && d.get(f.getName()) != null) {
-                 				aRecord.descriptor().addField(new Field(f.getName(), f.getType(),(String)d.get(f.getName())));
-     						}
-                 		}
-                 	}
-                	results.add(aRecord);
-                }
-        	} else if ((query.getRecord().descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
-
-        		for (Document d: docs) {
-        			String obj = d.get("object");
-
-        			ByteArrayInputStream fis = new ByteArrayInputStream(obj.getBytes("UTF-8"));
-
-        			ObjectInputStream ois;
-
-        			ois = xstream.createObjectInputStream(fis);
-
-        			results.add((Record)ois.readObject());
-        			ois.close();
-
-        		}
-        	} else if ((query.getRecord().descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
-        		if (this.backingStore == null) {
-        			throw new KiraException("STORE_MODE_BACKING but no backing store set");
-        		}
-        		for (Document d: docs) {
-        			Record result = null;
-        			if (cacheStore != null) {
-        				result = (Record)cacheStore.retrieveObject(xstream, query.getRecord(), d.get(key));
-            		}
-            		if (result == null) {
-            			result = (Record)this.backingStore.retrieveObject(xstream, query.getRecord(), d.get(key));
-            			if (result == null) {
-            				throw new KiraException("Object in query results no available in backing store: " + d.get(key));
-            			}
-            			if (cacheStore != null) {
-            				this.cacheStore.storeObject(xstream, (Record) result);
-            			}
-            		}
-					results.add(result);
-        		}
-
-        	}
-
-        }
-        return (List<T>) results;
+		int storeMode = dr.getStoreMode();
+		if (!page.docs.isEmpty() && (storeMode & RecordDescriptor.STORE_MODE_INDEX) == 0
+				&& (storeMode & RecordDescriptor.STORE_MODE_BACKING) != 0 && this.backingStore == null) {
+			throw new KiraException("STORE_MODE_BACKING but no backing store set");
+		}
+		// objects are only deserialized or fetched when the caller gets them
+        return new QueryResult<T>(this, query, key, page.docs, page.next, page.totalHits, page.queryString,
+        		System.nanoTime() - started);
 	}
+
 	/**
-	 * Find related (similar) documents based on given value and fields to examine
-	 *
-	 * @param r The Record Object (Document Class)
-	 * @param testStr The input value to use as the basis for similarity
-	 * @param fieldNames The names of the fields to examine
-	 * @param numHits The number of similar documents to retrieve
-	 * @param excludeDocId Optional "primary key" to exclude from results
+	 * Prepare a query to be executed many times with different values. Each
+	 * whereMatches constraint whose value is a name preceded by a colon,
+	 * e.g. ":account", is a parameter whose value is given to
+	 * PreparedQuery.execute. The other constraints, the sort and the record
+	 * type filter are built once, here.
 	 *
-	 * @return List<String> The list of matching records primary keys
+	 * @param template The query, with parameters in place of values
 	 *
-	 * @throws IOException
-	 * @throws ClassNotFoundException
-	 * @throws KiraException
+	 * @return PreparedQuery The query, ready to execute
+	 * @throws KiraException if a constraint cannot be parsed
 	 */
+	public PreparedQuery prepare(Query template) throws KiraException {
+		List<BooleanClause> fixed = new ArrayList<BooleanClause>();
+		List<PreparedQuery.Parameter> parameters = new ArrayList<PreparedQuery.Parameter>();
+		try {
+			if (template.getQueries() != null) {
+				for (FieldQuery fq : template.getQueries()) {
+					String name = parameterName(fq);
+					if (name != null) {
+						parameters.add(new PreparedQuery.Parameter(name, fq.getQueryField()));
+						continue;
+					}
+					BooleanClause c = constraintClause(fq);
+					if (c != null) {
+						fixed.add(c);
+					}
+				}
+			}
+		} catch (ParseException e) {
+			throw new KiraException("ParseException " + e.getMessage());
+		}
+		Record r = template.getRecord();
+		return new PreparedQuery(this, template, fixed, parameters, typeFilter(r.getRecordName()),
+				buildSort(template, RecordSchema.typeOf(r)));
+	}
+
+	/**
+	 * @return String The parameter a constraint stands for, or null if it has a value
+	 */
+	private static String parameterName(FieldQuery fq) {
+		String v = fq.getQuerystr();
+		if (fq instanceof FieldRange || v == null || v.length() < 2 || v.charAt(0) != ':') {
+			return null;
+		}
+		for (int i = 1; i < v.length(); i++) {
+			char c = v.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_')) {
+				return null;
+			}
+		}
+		return v.substring(1);
+	}
+
+	/**
+	 * Count the records matching a query, without sorting the hits or loading
+	 * any records. The query's start, limit, cursor, sort and selected fields
+	 * are ignored.
+	 *
+	 * @param query the query to count
+	 *
+	 * @return int The number of matching records
+	 * @throws KiraException
+	 * @throws IOException
+	 */
+	public int countQuery(Query query) throws KiraException, IOException {
+		org.apache.lucene.search.Query luceneQuery = countableQuery(query);
+		IndexSearcher searcher;
+		try {
+			searcher = acquireSearcher(query.getReadYourWrites());
+		} catch (Exception e) {
+			throw new KiraException("IndexSearcher: " + e.getMessage());
+		}
+		try {
+			HitCounter counter = new HitCounter();
+			searcher.search(luceneQuery, counter);
+			return counter.getTotalHits();
+		} catch (CorruptIndexException e) {
+			throw new KiraCorruptIndexException(e.getMessage());
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+
+	/**
+	 * Check whether any record matches a query, stopping at the first match.
+	 * The query's start, limit, cursor, sort and selected fields are ignored.
+	 *
+	 * @param query the query to check
+	 *
+	 * @return boolean true if at least one record matches
+	 * @throws KiraException
+	 * @throws IOException
+	 */
+	public boolean exists(Query query) throws KiraException, IOException {
+		org.apache.lucene.search.Query luceneQuery = countableQuery(query);
+		IndexSearcher searcher;
+		try {
+			searcher = acquireSearcher(query.getReadYourWrites());
+		} catch (Exception e) {
+			throw new KiraException("IndexSearcher: " + e.getMessage());
+		}
+		try {
+			return HitCounter.anyHits(searcher, luceneQuery);
+		} catch (CorruptIndexException e) {
+			throw new KiraCorruptIndexException(e.getMessage());
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
+
+	private org.apache.lucene.search.Query countableQuery(Query query) throws KiraException {
+		org.apache.lucene.search.Query luceneQuery;
+		try {
+			luceneQuery = buildQuery(query);
+		} catch (ParseException e) {
+			throw new KiraException("ParseException " + e.getMessage());
+		}
+		this.setLastQuery(luceneQuery.toString());
+		return luceneQuery;
+	}
+
+	/**
+	 * Stream every record matching a query, e.g. to export all records of a
+	 * type. Hits are read one at a time, so memory use does not grow with the
+	 * number of results.
+	 * <p>
+	 * Records come in index order, unless a sort field has been set on the
+	 * query. The query's start, limit and cursor are ignored.
+	 * The iterator must be closed if it is not read to the end.
+	 *
+	 * @param query the query to execute
+	 *
+	 * @return RecordIterator<T> The matching records
+	 * @throws KiraException
+	 * @throws IOException
+	 */
+	public<T extends Record> RecordIterator<T> iterateQuery(Query query) throws KiraException, IOException {
+		RecordDescriptor dr = RecordSchema.typeOf(query.getRecord());
+		Record r = query.getRecord();
+		String key = makeKey(dr, r.getPrimaryKeyName());
+		int storeMode = dr.getStoreMode();
+		if (query.getSelectedFields() == null && (storeMode & RecordDescriptor.STORE_MODE_INDEX) == 0
+				&& (storeMode & RecordDescriptor.STORE_MODE_BACKING) != 0 && this.backingStore == null) {
+			throw new KiraException("STORE_MODE_BACKING but no backing store set");
+		}
+		org.apache.lucene.search.Query luceneQuery;
+		try {
+			luceneQuery = buildQuery(query);
+		} catch (ParseException e) {
+			throw new KiraException("ParseException " + e.getMessage());
+		}
+		this.setLastQuery(luceneQuery.toString());
+
+		IndexSearcher searcher;
+		try {
+			searcher = acquireSearcher(query.getReadYourWrites());
+		} catch (Exception e) {
+			throw new KiraException("IndexSearcher: " + e.getMessage());
+		}
+		boolean opened = false;
+		try {
+			RecordIterator<T> it = new RecordIterator<T>(this, searcherManager, searcher, r, key,
+					query.getSelectedFields(), storedFieldSelector(r, key, query.getSelectedFields()),
+					luceneQuery, query.hasSort() ? buildSort(query, dr) : null);
+			opened = true;
+			return it;
+		} catch (CorruptIndexException e) {
+			throw new KiraCorruptIndexException(e.getMessage());
+		} finally {
+			if (!opened) {
+				searcherManager.release(searcher);
+			}
+		}
+	}
+
+	/**
+	 * Turn a query hit into a Record object, according to the record's store
+	 * mode: a Record holding only the primary key and STRING fields when
+	 * objects are not stored, the object deserialized from the index, or the
+	 * object from the cache or backing store. When fields are selected, a
+	 * Record holding the primary key and those fields is returned instead.
+	 *
+	 * @param r The Record type queried
+	 * @param key The primary key field name in the index
+	 * @param selectedFields The fields to return, or null for the full record
+	 * @param d The hit's stored fields
+	 *
+	 * @return Record The result object
+	 *
+	 * @throws KiraException
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	Record toRecord(final Record r, String key, String[] selectedFields, Document d) throws KiraException, IOException, ClassNotFoundException {
+		if (selectedFields != null) {
+			return fieldsRecord(r, key, selectedFields, d);
+		}
+		int storeMode = RecordSchema.typeOf(r).getStoreMode();
+		if (storeMode == RecordDescriptor.STORE_MODE_NONE) {
+			// if objects are not stored in the index, return the primary key and STRING fields
+			return fieldsRecord(r, key, null, d);
+		} else if ((storeMode & RecordDescriptor.STORE_MODE_INDEX) != 0) {
+			return this.<Record>decodeObject(d);
+		} else if ((storeMode & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+			Record result = retrieveFromBackingStore(r, Collections.singletonList(d.get(key))).get(0);
+			if (result == null) {
+				throw new KiraException("Object in query results no available in backing store: " + d.get(key));
+			}
+			return result;
+		}
+		throw new KiraException("unknown store mode " + storeMode);
+	}
+
+	/**
+	 * @return boolean true if toRecord fetches the objects of these results from the backing store
+	 */
+	boolean fetchesFromBackingStore(Record r, String[] selectedFields) {
+		int storeMode = RecordSchema.typeOf(r).getStoreMode();
+		return selectedFields == null && (storeMode & RecordDescriptor.STORE_MODE_INDEX) == 0
+				&& (storeMode & RecordDescriptor.STORE_MODE_BACKING) != 0;
+	}
+
+	/**
+	 * Fetch the objects of a page of query results: from the cache store
+	 * where they are cached, and the rest from the backing store in one batch
+	 *
+	 * @return List<Record> The objects, in the order of the keys, with null for those in neither store
+	 */
+	List<Record> retrieveFromBackingStore(Record r, List<String> values) throws KiraException, IOException, ClassNotFoundException {
+		BackingStore store = this.backingStore;
+		BackingStore cache = this.cacheStore;
+		if (store == null) {
+			throw new KiraException("STORE_MODE_BACKING but no backing store set");
+		}
+		List<Record> results;
+		List<String> missing = values;
+		if (cache != null) {
+			results = cache.retrieveObjects(codec, r, values);
+			missing = new ArrayList<String>();
+			for (int i = 0; i < values.size(); i++) {
+				if (results.get(i) == null) {
+					missing.add(values.get(i));
+				}
+			}
+			if (missing.isEmpty()) {
+				return results;
+			}
+		} else {
+			results = new ArrayList<Record>(Collections.<Record>nCopies(values.size(), null));
+		}
+		List<Record> fetched = store.retrieveObjects(codec, r, missing);
+		int f = 0;
+		for (int i = 0; i < values.size(); i++) {
+			if (results.get(i) != null) {
+				continue;
+			}
+			Record result = fetched.get(f++);
+			if (result != null && cache != null) {
+				cache.storeObject(codec, result);
+			}
+			results.set(i, result);
+		}
+		return results;
+	}
+
+	/**
+	 * A Record holding the primary key and the given stored fields of a hit,
+	 * or all its STRING fields if fieldNames is null
+	 */
+	private Record fieldsRecord(Record r, String key, String[] fieldNames, Document d) {
+		final RecordDescriptor descriptor = new RecordDescriptor(r.getRecordName());
+		final String recordName = r.getRecordName();
+		final String pkName = r.getPrimaryKeyName();
+
+		Record aRecord = new Record() {
+			@Override
+			public RecordDescriptor descriptor() {
+				return descriptor;
+			}
+
+			@Override
+			public String getRecordName() {
+				return recordName;
+			}
+
+			@Override
+			public String getPrimaryKeyName() {
+				return pkName;
+			}
+		};
+
+		descriptor.setPrimaryKey(new Field(pkName, FieldType.STRING, (String)d.get(key)));
+		if (fieldNames != null) {
+			for (String name : fieldNames) {
+				if (!name.equals(pkName) && d.get(name) != null) {
+					descriptor.addField(new Field(name, FieldType.STRING, d.get(name)));
+				}
+			}
+		} else {
+			List<Field> fields = RecordSchema.typeOf(r).getFields();
+			if (fields != null) {
+				for (Field f : fields) {
+					if (f.getType() == FieldType.STRING && d.get(f.getName()) != null) {
+						descriptor.addField(new Field(f.getName(), f.getType(), (String)d.get(f.getName())));
+					}
+				}
+			}
+		}
+		return aRecord;
+	}
+
+	/**
+	 * The stored fields needed to turn a hit into a Record: the primary key plus
+	 * the selected fields, the STRING fields when objects are not stored, or
+	 * the object when it is stored in the index. Objects in a backing store
+	 * need only the primary key.
+	 */
+	FieldSelector storedFieldSelector(Record r, String key, String[] selectedFields) {
+		Set<String> load = new HashSet<String>();
+		load.add(key);
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+		if (selectedFields != null) {
+			load.addAll(Arrays.asList(selectedFields));
+		} else if (dr.getStoreMode() == RecordDescriptor.STORE_MODE_NONE) {
+			if (dr.getFields() != null) {
+				for (Field f : dr.getFields()) {
+					if (f.getType() == FieldType.STRING) {
+						load.add(f.getName());
+					}
+				}
+			}
+		} else if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
+			load.add(OBJECT_KEY);
+		}
+		return new SetBasedFieldSelector(load, Collections.<String>emptySet());
+	}
+	/**
+	 * Find related (similar) documents based on given value and fields to examine
+	 *
+	 * @param r The Record Object (Document Class)
+	 * @param testStr The input value to use as the basis for similarity
+	 * @param fieldNames The names of the fields to examine
+	 * @param numHits The number of similar documents to retrieve
+	 * @param excludeDocId Optional "primary key" to exclude from results
+	 *
+	 * @return List<String> The list of matching records primary keys
+	 *
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @throws KiraException
+	 */
+
+	public List<String> relatedObjects(Record r, String testStr, String[] fieldNames, int numHits, String excludeDocId) throws IOException, ClassNotFoundException, KiraException {
+        String key = makeKey(RecordSchema.typeOf(r), r.getPrimaryKeyName());
+
+		List<String> results = new ArrayList<String>();
+        IndexSearcher is = acquireSearcher(false);
+        try {
+        	findRelated(is, key, testStr, fieldNames, numHits, excludeDocId, results);
+        } finally {
+        	searcherManager.release(is);
+        }
+		return results;
+	}
+
+	private void findRelated(IndexSearcher is, String key, String testStr, String[] fieldNames, int numHits, String excludeDocId, List<String> results) throws IOException {
+        MoreLikeThis mlt = new MoreLikeThis(is.getIndexReader());
 
-	public List<String> relatedObjects(Record r, String testStr, String[] fieldNames, int numHits, String excludeDocId) throws IOException, ClassNotFoundException, KiraException {
-        String key = makeKey(r.descriptor(), r.getPrimaryKeyName());
-
-		List<String> results = new ArrayList<String>();
-        FSDirectory idx;
-        idx = FSDirectory.open(indexDirectory);
-
-        IndexReader ir = IndexReader.open(idx);
-        IndexSearcher is = new IndexSearcher(idx, true);
-        MoreLikeThis mlt = new MoreLikeThis(ir);
-
       //lower some settings to MoreLikeThis will work with very short titles
         mlt.setMinTermFreq(1);
         mlt.setMinDocFreq(1);
@@ -643,9 +1326,10 @@ public class KiraDb {
         org.apache.lucene.search.Query query = mlt.like( reader);
       //Search the index using the query and get the top 5 results
         TopDocs topDocs = is.search(query, numHits);
+        FieldSelector selector = new SetBasedFieldSelector(Collections.singleton(key), Collections.<String>emptySet());
         //logger.info("found " + topDocs.totalHits + " topDocs for q:" + testStr);
         for ( ScoreDoc scoreDoc : topDocs.scoreDocs ) {
-        	Document doc = is.doc( scoreDoc.doc );
+        	Document doc = is.doc( scoreDoc.doc, selector );
         	String docId =  doc.get(key);
         	if (docId != null) {
         		if (excludeDocId == null || !docId.equals(excludeDocId)) {
@@ -655,70 +1339,253 @@ public class KiraDb {
         		logger.warning("found other document type? " + doc);
         	}
         }
-        is.close();
-		return results;
 	}
 
 
 
 
-	private List<Document> searchDocuments(Query kiraQuery) throws CorruptIndexException, IOException, ParseException, KiraException {
-
-		// 1. create the index
-		Directory index = null;
+	private Page searchDocuments(Query kiraQuery, org.apache.lucene.search.Query luceneQuery, Sort sort, String cacheKey)
+			throws CorruptIndexException, IOException, ParseException, KiraException {
+		IndexSearcher searcher;
 		try {
-			index = FSDirectory.open(indexDirectory);
+			searcher = acquireSearcher(kiraQuery.getReadYourWrites());
 		} catch (Exception e) {
-			throw new KiraException("failed to access index: " + e.getMessage());
+			throw new KiraException("IndexSearcher: " + e.getMessage());
 		}
+		try {
+			// 1. results of the same query on the same searcher
+			QueryResultCache cache = this.queryCache;
+			long generation = -1L;
+			if (cache != null) {
+				if (cacheKey == null) {
+					cacheKey = kiraQuery.cacheKey();
+				}
+				generation = searcherManager.generationOf(searcher);
+				QueryResultCache.Entry cached = cache.get(cacheKey, generation);
+				if (cached != null) {
+					List<Document> docs = cachedDocuments(searcher, kiraQuery, cached.keys);
+					if (docs != null) {
+						this.setLastQuery(cached.queryString);
+						this.setTotalHits(cached.totalHits);
+						return new Page(docs, cached.next, cached.totalHits, cached.queryString);
+					}
+				}
+			}
 
-		// 2. query
-		BooleanQuery booleanQuery = new BooleanQuery();
+			// 2. query
+			if (luceneQuery == null) {
+				luceneQuery = buildQuery(kiraQuery);
+			}
+
+			String queryString = luceneQuery.toString();
+			this.setLastQuery(queryString);
+
+			// 3. search
+			Page page = searchDocuments(searcher, kiraQuery, luceneQuery, sort, queryString);
+			if (cache != null) {
+				String[] keys = primaryKeysOf(kiraQuery, page.docs);
+				if (keys != null) {
+					cache.put(cacheKey, generation, new QueryResultCache.Entry(keys, page.next, page.totalHits,
+							queryString));
+				}
+			}
+			return page;
+		} finally {
+			searcherManager.release(searcher);
+		}
+	}
 
+	/**
+	 * @return String[] The primary keys of a page of hits, or null if one has none
+	 */
+	private String[] primaryKeysOf(Query kiraQuery, List<Document> docs) {
+		Record r = kiraQuery.getRecord();
+		String key = makeKey(RecordSchema.typeOf(r), r.getPrimaryKeyName());
+		String[] keys = new String[docs.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = docs.get(i).get(key);
+			if (keys[i] == null) {
+				return null;
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Read the stored fields of a cached page of hits again, by primary key
+	 *
+	 * @return List<Document> The documents in page order, or null if one is
+	 * missing and the query must be searched instead
+	 */
+	private List<Document> cachedDocuments(IndexSearcher searcher, Query kiraQuery, String[] keys) throws IOException {
+		Record r = kiraQuery.getRecord();
+		String key = makeKey(RecordSchema.typeOf(r), r.getPrimaryKeyName());
+		Map<String, Document> found = documentsByPrimaryKeys(searcher.getIndexReader(), key,
+				new ArrayList<String>(new TreeSet<String>(Arrays.asList(keys))),
+				storedFieldSelector(r, key, kiraQuery.getSelectedFields()));
+		List<Document> docs = new ArrayList<Document>(keys.length);
+		for (String value : keys) {
+			Document d = found.get(value);
+			if (d == null) {
+				return null;
+			}
+			docs.add(d);
+		}
+		return docs;
+	}
+
+	/**
+	 * The Lucene query for a KiraDB query: all of its constraints, filtered
+	 * to its record type
+	 */
+	private org.apache.lucene.search.Query buildQuery(Query kiraQuery) throws ParseException {
+		// the type is a cached filter rather than a scored clause
+		return new FilteredQuery(constraintsQuery(kiraQuery), typeFilter(kiraQuery.getRecord().getRecordName()));
+	}
+
+	/**
+	 * The Lucene query for all the constraints of a query, without its record type
+	 */
+	private org.apache.lucene.search.Query constraintsQuery(Query kiraQuery) throws ParseException {
+		List<BooleanClause> clauses = new ArrayList<BooleanClause>();
 		if (kiraQuery.getQueries() != null) {
 			for (FieldQuery fq : kiraQuery.getQueries()) {
-				String runQueryStr = fq.getQuerystr();
-				if (fq.getQuerystr() != null) {
-					String queryFieldName = fq.getQueryField().getName();
-					runQueryStr = queryFieldName + ":" + fq.getQuerystr();
+				BooleanClause c = constraintClause(fq);
+				if (c != null) {
+					clauses.add(c);
 				}
-				if (runQueryStr != null) {
-
-					QueryParser parser = null;
-					if (fq.getQueryField().getType() == FieldType.FULLTEXT) {
-						StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
-						parser = new QueryParser(Version.LUCENE_30, fq.getQueryField().getName(), analyzer);
-					} else {
-						KeywordAnalyzer analyzer = new KeywordAnalyzer();
-						parser = new QueryParser(Version.LUCENE_30, fq.getQueryField().getName(), analyzer);
-					}
-					parser.setDefaultOperator(QueryParser.Operator.AND);
-					org.apache.lucene.search.Query q = parser.parse(runQueryStr);
-					booleanQuery.add(q, org.apache.lucene.search.BooleanClause.Occur.MUST);
+			}
+		}
+		return conjunction(clauses);
+	}
+
+	/**
+	 * Combine constraint clauses into one query. Lucene matches nothing with
+	 * only prohibited clauses, so they are applied to all documents.
+	 */
+	static org.apache.lucene.search.Query conjunction(List<BooleanClause> clauses) {
+		if (clauses.isEmpty()) {
+			return new MatchAllDocsQuery();
+		}
+		BooleanQuery q = new BooleanQuery();
+		boolean required = false;
+		for (BooleanClause c : clauses) {
+			q.add(c);
+			required |= !c.isProhibited();
+		}
+		if (!required) {
+			q.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+		}
+		return q;
+	}
+
+	/**
+	 * The Lucene clause for one constraint: required, or prohibited for whereNot
+	 *
+	 * @return BooleanClause The clause, or null if the constraint has no value
+	 */
+	private BooleanClause constraintClause(FieldQuery fq) throws ParseException {
+		if (fq instanceof QueryGroup) {
+			QueryGroup group = (QueryGroup) fq;
+			if (group.isNegated()) {
+				BooleanQuery excluded = new BooleanQuery();
+				for (Query sub : group.getQueries()) {
+					excluded.add(constraintsQuery(sub), BooleanClause.Occur.SHOULD);
 				}
+				return new BooleanClause(excluded, BooleanClause.Occur.MUST_NOT);
+			}
+			BooleanQuery any = new BooleanQuery();
+			for (Query sub : group.getQueries()) {
+				any.add(constraintsQuery(sub), BooleanClause.Occur.SHOULD);
 			}
+			return new BooleanClause(any, BooleanClause.Occur.MUST);
 		}
-		org.apache.lucene.search.Query q1 = new TermQuery(new Term("type", kiraQuery.getRecord().getRecordName()));
-		booleanQuery.add(q1, org.apache.lucene.search.BooleanClause.Occur.MUST);
+		org.apache.lucene.search.Query q = constraintQuery(fq);
+		return q == null ? null : new BooleanClause(q, BooleanClause.Occur.MUST);
+	}
 
-		this.setLastQuery(booleanQuery.toString());
+	/**
+	 * The Lucene query for one field constraint
+	 *
+	 * @return org.apache.lucene.search.Query The query, or null if the constraint has no value
+	 */
+	private org.apache.lucene.search.Query constraintQuery(FieldQuery fq) throws ParseException {
+		if (fq instanceof FieldRange) {
+			FieldRange range = (FieldRange) fq;
+			return NumericFields.rangeQuery(range.getQueryField(), range.getLower(), range.getUpper(),
+					range.isIncludeLower(), range.isIncludeUpper());
+		}
+		if (fq.getQuerystr() == null) {
+			return null;
+		}
+		if (NumericFields.isNumeric(fq.getQueryField().getType())) {
+			return NumericFields.exactQuery(fq.getQueryField(), fq.getQuerystr());
+		}
+		return parseFieldQuery(fq.getQueryField(), fq.getQuerystr());
+	}
 
-		// 3. search
-		IndexSearcher searcher;
-		try {
-			searcher = new IndexSearcher(index, true);
-		} catch (Exception e) {
-			throw new KiraException("IndexSearcher: " + e.getMessage());
+	/**
+	 * Parse a query on one field, or reuse the query parsed for the same field and string
+	 */
+	private org.apache.lucene.search.Query parseFieldQuery(Field field, String querystr) throws ParseException {
+		boolean fullText = field.getType() == FieldType.FULLTEXT;
+		String cacheKey = (fullText ? "F" : "K") + field.getName() + ":" + querystr;
+		org.apache.lucene.search.Query q = parsedQueries.get(cacheKey);
+		if (q == null) {
+			Map<String, QueryParser> threadParsers = parsers.get();
+			String parserKey = (fullText ? "F" : "K") + field.getName();
+			QueryParser parser = threadParsers.get(parserKey);
+			if (parser == null) {
+				parser = new QueryParser(Version.LUCENE_30, field.getName(),
+						fullText ? FULLTEXT_ANALYZER : KEYWORD_ANALYZER);
+				parser.setDefaultOperator(QueryParser.Operator.AND);
+				threadParsers.put(parserKey, parser);
+			}
+			q = parser.parse(field.getName() + ":" + querystr);
+			parsedQueries.put(cacheKey, q);
 		}
+		return q;
+	}
+
+	/**
+	 * The filter restricting results to one record type, whose document sets
+	 * are cached per index segment
+	 */
+	private Filter typeFilter(String recordName) {
+		Filter filter = typeFilters.get(recordName);
+		if (filter == null) {
+			filter = new CachingWrapperFilter(new QueryWrapperFilter(new TermQuery(new Term(TYPE_KEY, recordName))));
+			Filter raced = typeFilters.putIfAbsent(recordName, filter);
+			if (raced != null) {
+				filter = raced;
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * The sort order of a query: by relevance if asked for, then by its sort
+	 * fields. Without either, the first DATE field descending, else a field
+	 * named "date" descending.
+	 */
+	private Sort buildSort(Query kiraQuery, RecordDescriptor dr) {
 		Sort sortBy = null;
-		if (kiraQuery.getSortField() != null) {
-			sortBy = new Sort(new SortField(kiraQuery.getSortField().getName(), SortField.STRING, kiraQuery.getReverse()));
+		if (kiraQuery.hasSort()) {
+			List<SortField> keys = new ArrayList<SortField>();
+			if (Boolean.TRUE.equals(kiraQuery.getSortByRelevance())) {
+				keys.add(SortField.FIELD_SCORE);
+			}
+			List<Field> sortFields = kiraQuery.getSortFields();
+			for (int i = 0; i < sortFields.size(); i++) {
+				keys.add(NumericFields.sortField(sortFields.get(i), kiraQuery.isSortReversed(i)));
+			}
+			sortBy = new Sort(keys.toArray(new SortField[keys.size()]));
 		} else {
 			// If not specified use the first DATE field, or literal "date" if none found
-			if (kiraQuery.getRecord().descriptor().getFields() != null) {
-				for (Field f : kiraQuery.getRecord().descriptor().getFields()) {
+			if (dr.getFields() != null) {
+				for (Field f : dr.getFields()) {
 					if (f.getType() == FieldType.DATE) {
-						sortBy = new Sort(new SortField(f.getName(), SortField.STRING, true));
+						sortBy = new Sort(NumericFields.sortField(f, true));
 						break;
 					}
 				}
@@ -727,77 +1594,94 @@ public class KiraDb {
 				sortBy = new Sort(new SortField("date", SortField.STRING, true));
 			}
 		}
-		TopFieldDocs tfd = searcher.search(booleanQuery, null, kiraQuery.getStart()+kiraQuery.getLimit(), sortBy);
-		ScoreDoc[] hits = tfd.scoreDocs;
-		this.setTotalHits(tfd.totalHits);
+		return sortBy;
+	}
+
+	private Page searchDocuments(IndexSearcher searcher, Query kiraQuery, org.apache.lucene.search.Query luceneQuery,
+			Sort sortBy, String queryString) throws IOException, KiraException {
+		Record r = kiraQuery.getRecord();
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+		int start = kiraQuery.getStart();
+		TopDocs topDocs;
+		if (kiraQuery.getCursor() != null) {
+			// collect only the page after the cursor, rather than skipping everything before it
+			int numHits = Math.max(1, Math.min(kiraQuery.getLimit(), searcher.maxDoc()));
+			SearchAfterCollector collector = new SearchAfterCollector(sortBy, kiraQuery.getCursor(), numHits);
+			searcher.search(luceneQuery, collector);
+			topDocs = collector.topDocs();
+			topDocs.totalHits = collector.getTotalHits();
+			start = 0;
+		} else if (sortBy.getSort().length == 1 && sortBy.getSort()[0].getType() == SortField.SCORE) {
+			// score order alone: the score-ordered collector loads no field values
+			topDocs = searcher.search(luceneQuery, null, kiraQuery.getStart()+kiraQuery.getLimit());
+		} else {
+			topDocs = searcher.search(luceneQuery, null, kiraQuery.getStart()+kiraQuery.getLimit(), sortBy);
+		}
+		ScoreDoc[] hits = topDocs.scoreDocs;
+		this.setTotalHits(topDocs.totalHits);
 
-		// 4. display results
+		// 4. collect results
 		List<Document> results = new ArrayList<Document>();
+		FieldSelector selector = storedFieldSelector(r, makeKey(dr, r.getPrimaryKeyName()),
+				kiraQuery.getSelectedFields());
 		//System.out.println("Found " + hits.length + " hits.");
 		for(int i=0;i<hits.length;++i) {
-			if (i < kiraQuery.getStart())
+			if (i < start)
 				continue;
 			int docId = hits[i].doc;
-			Document d = searcher.doc(docId);
+			Document d = searcher.doc(docId, selector);
 			results.add(d);
 			//System.out.println((i + 1) + ". " + d.get("status"));
 		}
 
-		// searcher can only be closed when there
-		// is no need to access the documents any more.
-		searcher.close();
-	    return results;
-	}
-
-	public void setTotalHits(int totalHits) {
-		this.totalHits = totalHits;
+		// a full page may be followed by more
+		QueryCursor next = null;
+		if (hits.length > start && hits.length - start == kiraQuery.getLimit()) {
+			ScoreDoc last = hits[hits.length - 1];
+			Object[] values = last instanceof FieldDoc ? ((FieldDoc) last).fields : new Object[] { last.score };
+			next = new QueryCursor(values, last.doc);
+		}
+	    return new Page(results, next, topDocs.totalHits, queryString);
 	}
 
-	public int getTotalHits() {
-		return totalHits;
+	/**
+	 * The stored fields of a page of hits, the cursor to the next page, and
+	 * the query's total hits and Lucene form
+	 */
+	private static final class Page {
+		final List<Document> docs;
+		final QueryCursor next;
+		final int totalHits;
+		final String queryString;
+
+		Page(List<Document> docs, QueryCursor next, int totalHits, String queryString) {
+			this.docs = docs;
+			this.next = next;
+			this.totalHits = totalHits;
+			this.queryString = queryString;
+		}
 	}
 
-	private void addField(Document doc, RecordDescriptor dr, Field f) {
-		addField(doc, dr, f, f.getName());
+	/**
+	 * @deprecated total hits are reported by QueryResult.getTotalHits
+	 */
+	@Deprecated
+	public void setTotalHits(int totalHits) {
+		lastTotalHits.set(totalHits);
 	}
 
-	private void addField(Document doc, RecordDescriptor dr, Field f, String key) {
-		switch (f.getType()) {
-		case DATE:
-			Calendar c = Calendar.getInstance();
-			c.setTime((Date)f.getValue());
-            String s = String.format("%04d%02d%02d%02d%02d%02d.%04d",
-            		c.get(Calendar.YEAR), c.get(Calendar.MONTH), c.get(Calendar.DAY_OF_MONTH),
-            		c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE), c.get(Calendar.SECOND), c.get(Calendar.MILLISECOND));
-			doc.add(new org.apache.lucene.document.Field(key, s,
-					org.apache.lucene.document.Field.Store.YES,
-					org.apache.lucene.document.Field.Index.NOT_ANALYZED));
-			break;
-		case STRING:
-			doc.add(new org.apache.lucene.document.Field(key, (String)f.getValue(),
-					org.apache.lucene.document.Field.Store.YES,
-					org.apache.lucene.document.Field.Index.NOT_ANALYZED));
-			break;
-		case NUMBER:
-			doc.add(new org.apache.lucene.document.Field(key, f.getValue().toString(),
-					org.apache.lucene.document.Field.Store.YES,
-					org.apache.lucene.document.Field.Index.NOT_ANALYZED));
-			break;
-		case FULLTEXT:
-			String ss = (String)f.getValue();
-			StringBuffer finalFulltext = new StringBuffer(ss.toLowerCase());
-            finalFulltext.append("\n");
-            finalFulltext.append(Stemmer.stemString((String)f.getValue(), StandardAnalyzer.STOP_WORDS_SET));
-            doc.add(new org.apache.lucene.document.Field(key, finalFulltext.toString(),
-					org.apache.lucene.document.Field.Store.YES,
-					org.apache.lucene.document.Field.Index.ANALYZED));
-			break;
-		}
-
+	/**
+	 * The total hits of the last query executed by the calling thread
+	 *
+	 * @return int The number of records that matched, or 0 if this thread has run no query
+	 * @deprecated use QueryResult.getTotalHits, which belongs to one query
+	 */
+	@Deprecated
+	public int getTotalHits() {
+		Integer n = lastTotalHits.get();
+		return n != null ? n : 0;
 	}
 
-
-
 	private String makeKey(RecordDescriptor dr, String key) {
 		return dr.getRecordName() + "_" + key;
 	}
@@ -809,6 +1693,10 @@ public class KiraDb {
 	 *
 	 */
 	public void createIndex() throws KiraCorruptIndexException, IOException {
+		synchronized (writerLock) {
+			closeSharedWriter();
+		}
+		searcherManager.close();
 		IndexWriter writer;
 		try {
 			writer = new IndexWriter(FSDirectory.open(indexDirectory), new StandardAnalyzer(Version.LUCENE_30),
@@ -822,6 +1710,12 @@ public class KiraDb {
 		}
 
 		writer.close();
+		new File(indexDirectory, PrimaryKeyFilters.FILE_NAME).delete();
+		// log entries for the old index must not be replayed into the new one
+		File logDir = new File(indexDirectory, WAL_DIRECTORY);
+		if (logDir.exists()) {
+			FileUtils.deleteDirectory(logDir);
+		}
 	}
 
 	void initIndex() throws KiraCorruptIndexException, IOException {
@@ -829,6 +1723,70 @@ public class KiraDb {
 			createIndex();
 		}
 	}
+
+	private void recoverLogOnce() throws IOException {
+		if (logRecovered) {
+			return;
+		}
+		synchronized (writerLock) {
+			if (!logRecovered) {
+				recoverLog();
+				logRecovered = true;
+			}
+		}
+	}
+
+	/**
+	 * Replay a write-ahead log left behind by an instance that stopped without
+	 * checkpointing it. If another instance holds the write lock the log is
+	 * still in use, and is left alone.
+	 */
+	private void recoverLog() throws IOException {
+		File logDir = new File(indexDirectory, WAL_DIRECTORY);
+		if (!WriteAheadLog.hasSegments(logDir)) {
+			return;
+		}
+		if (IndexWriter.isLocked(FSDirectory.open(indexDirectory))) {
+			logger.info("index is locked by its writer, not replaying write-ahead log");
+			return;
+		}
+		IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectory), new StandardAnalyzer(Version.LUCENE_30),
+				IndexWriter.MaxFieldLength.UNLIMITED);
+		boolean replayed = false;
+		try {
+			replayLog(writer, logDir);
+			writer.commit();
+			replayed = true;
+		} finally {
+			if (replayed) {
+				writer.close();
+			} else {
+				writer.rollback();
+			}
+		}
+		WriteAheadLog.deleteSegments(logDir);
+	}
+
+	private void replayLog(final IndexWriter writer, File logDir) throws IOException {
+		int n = WriteAheadLog.replay(logDir, new WriteAheadLog.Replayer() {
+			@Override
+			public void update(Term t, byte[] payload) throws IOException {
+				Record r;
+				try {
+					r = codec.decode(payload, 0, payload.length);
+				} catch (ClassNotFoundException e) {
+					throw new IOException("cannot replay logged record: ClassNotFoundException " + e.getMessage());
+				}
+				writer.updateDocument(t, buildDocument(r, r.descriptor()));
+			}
+
+			@Override
+			public void delete(Term t) throws IOException {
+				writer.deleteDocuments(t);
+			}
+		});
+		logger.info("replayed " + n + " write-ahead log entries");
+	}
 	/**
 	 * Optimize the Index
 	 *
@@ -837,15 +1795,295 @@ public class KiraDb {
 	 * @throws KiraCorruptIndexException
 	 */
 	public void optimizeIndex() throws InterruptedException, IOException, KiraCorruptIndexException {
-		IndexWriter writer = getIndexWriter(indexDirectory);
-        try {
-	        writer.optimize();
-		} catch (CorruptIndexException e) {
-			throw new KiraCorruptIndexException(e.getMessage());
-		} catch (IOException e) {
-			throw e;
-		} finally {
-			writer.close();
+		if (isGroupCommit()) {
+			SharedIndexWriter shared = getSharedWriter();
+			try {
+				shared.beginApply();
+				try {
+					shared.getWriter().optimize();
+				} finally {
+					shared.endApply();
+				}
+				shared.commit();
+			} catch (CorruptIndexException e) {
+				throw new KiraCorruptIndexException(e.getMessage());
+			}
+			return;
+		}
+		synchronized (perCallWriterLock) {
+			IndexWriter writer = getIndexWriter(indexDirectory);
+			try {
+				writer.optimize();
+			} catch (CorruptIndexException e) {
+				throw new KiraCorruptIndexException(e.getMessage());
+			} catch (IOException e) {
+				throw e;
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * Keep a single IndexWriter open for the life of this instance and commit
+	 * writes in groups, rather than opening, committing and closing a writer on
+	 * every storeObject and removeObjectByPrimaryKey call.
+	 * <p>
+	 * Pending writes are committed once maxPendingWrites of them have
+	 * accumulated, once the oldest has waited maxCommitDelayMillis, or when
+	 * a caller invokes sync(). Writes are not durable until committed; use
+	 * sync() to wait for them.
+	 * <p>
+	 * The shared writer holds the index write lock until close() is called, so
+	 * no other KiraDb instance may write to the same index in the meantime.
+	 *
+	 * @param maxPendingWrites Commit once this many writes are pending
+	 * @param maxCommitDelayMillis Commit once the oldest pending write is this old
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 *
+	 * @throws IOException
+	 */
+	public KiraDb setGroupCommit(int maxPendingWrites, long maxCommitDelayMillis) throws IOException {
+		synchronized (writerLock) {
+			closeSharedWriter();
+			this.groupCommitMaxWrites = maxPendingWrites;
+			this.groupCommitMaxDelay = maxCommitDelayMillis;
+			this.groupCommit = true;
+			this.writeAheadLog = false;
+		}
+		return this;
+	}
+
+	/**
+	 * Enable group commit backed by a write-ahead log. Every storeObject and
+	 * removeObjectByPrimaryKey call is appended to a log under the index
+	 * directory and returns once the log is synced to disk, with concurrent
+	 * writers sharing one sync. Index commits become background checkpoints,
+	 * made on the group-commit schedule, after which the log they cover is
+	 * deleted. A log left behind by a crash is replayed when the index is next
+	 * opened.
+	 * <p>
+	 * As with group commit, no other KiraDb instance may write to the same
+	 * index in the meantime.
+	 *
+	 * @param checkpointWrites Checkpoint once this many writes are pending
+	 * @param checkpointIntervalMillis Checkpoint once the oldest pending write is this old
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 *
+	 * @throws IOException
+	 */
+	public KiraDb setWriteAheadLog(int checkpointWrites, long checkpointIntervalMillis) throws IOException {
+		synchronized (writerLock) {
+			closeSharedWriter();
+			this.groupCommitMaxWrites = checkpointWrites;
+			this.groupCommitMaxDelay = checkpointIntervalMillis;
+			this.groupCommit = true;
+			this.writeAheadLog = true;
+		}
+		return this;
+	}
+
+	/**
+	 *
+	 * @return boolean true if writes are made durable through a write-ahead log
+	 */
+	public boolean isWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 *
+	 * @return boolean true if writes are committed in groups through a shared writer
+	 */
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * Wait until every write issued so far has been committed to the index.
+	 * Concurrent callers share a single commit. Returns immediately when group
+	 * commit is not enabled, since every write is then committed as it is made,
+	 * and waits only for the log when a write-ahead log is enabled.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void sync() throws IOException, InterruptedException {
+		SharedIndexWriter shared;
+		synchronized (writerLock) {
+			shared = sharedWriter;
+		}
+		// a rolled back writer has nothing left to make durable
+		if (shared != null && !shared.isClosed()) {
+			WriteAheadLog wal = shared.getLog();
+			if (wal != null) {
+				wal.sync(wal.lastAppended());
+			} else {
+				shared.awaitDurable(shared.lastWrite());
+			}
+		}
+	}
+
+	/**
+	 * Commit all pending writes immediately on the calling thread
+	 *
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		SharedIndexWriter shared;
+		synchronized (writerLock) {
+			shared = sharedWriter;
+		}
+		if (shared != null && !shared.isClosed()) {
+			shared.commit();
+		}
+	}
+
+	/**
+	 * Commit any pending writes and release the shared writer, if one is open,
+	 * and the shared searcher. The instance may still be used afterwards; the
+	 * writer and searcher are opened again when next needed.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (writerLock) {
+			closeSharedWriter();
+		}
+		searcherManager.close();
+	}
+
+	/**
+	 * Cache the results of recent queries. A query equal to a cached one (the
+	 * same record type and store mode, constraints, sort, start, limit, cursor
+	 * and selected fields) returns the cached hits without searching, until
+	 * the index changes: all entries are dropped as soon as a write becomes
+	 * visible to queries. Only the primary keys of the hits are kept; their
+	 * stored fields are read again by key when a cached query is repeated.
+	 *
+	 * @param maxEntries The number of queries whose results are kept, or 0 to disable the cache
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 */
+	public KiraDb setQueryCache(int maxEntries) {
+		this.queryCache = maxEntries > 0 ? new QueryResultCache(maxEntries) : null;
+		return this;
+	}
+
+	/**
+	 * @return long The number of queries answered from the query cache
+	 */
+	public long getQueryCacheHits() {
+		QueryResultCache cache = this.queryCache;
+		return cache != null ? cache.getHits() : 0L;
+	}
+
+	/**
+	 * @return long The number of queries the query cache could not answer
+	 */
+	public long getQueryCacheMisses() {
+		QueryResultCache cache = this.queryCache;
+		return cache != null ? cache.getMisses() : 0L;
+	}
+
+	/**
+	 * Let queries see writes that group commit has not committed yet, by
+	 * searching a near-real-time reader obtained from the shared writer.
+	 * The reader is refreshed once it is older than maxStalenessMillis and
+	 * writes have been made since it was opened; a staleness of zero means
+	 * every query reads all writes made before it. Individual queries can ask
+	 * to read their own writes with Query.setReadYourWrites.
+	 * <p>
+	 * Has no effect unless group commit is enabled: otherwise every write is
+	 * committed, and visible, as soon as it is made.
+	 *
+	 * @param maxStalenessMillis The longest a query may lag behind the latest write
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 */
+	public KiraDb setNearRealTime(long maxStalenessMillis) {
+		this.nearRealTimeStaleness = Math.max(0L, maxStalenessMillis);
+		return this;
+	}
+
+	/**
+	 * Stop reading uncommitted writes; queries see committed writes only
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 */
+	public KiraDb disableNearRealTime() {
+		this.nearRealTimeStaleness = -1L;
+		return this;
+	}
+
+	/**
+	 *
+	 * @return boolean true if queries may read writes that are not yet committed
+	 */
+	public boolean isNearRealTime() {
+		return nearRealTimeStaleness >= 0;
+	}
+
+	private IndexSearcher acquireSearcher(boolean readYourWrites) throws IOException {
+		recoverLogOnce();
+		long staleness = nearRealTimeStaleness;
+		if (staleness >= 0 && isGroupCommit()) {
+			SharedIndexWriter shared;
+			synchronized (writerLock) {
+				shared = sharedWriter;
+			}
+			// without an open writer there is nothing uncommitted to see
+			if (shared != null && !shared.isClosed()) {
+				return searcherManager.acquire(shared, staleness, readYourWrites);
+			}
+		}
+		return searcherManager.acquire();
+	}
+
+	private SharedIndexWriter getSharedWriter() throws IOException, InterruptedException {
+		synchronized (writerLock) {
+			// a writer rolled back after a failed atomic update is reopened, replaying its log
+			if (sharedWriter == null || sharedWriter.isClosed()) {
+				IndexWriter writer = getIndexWriter(indexDirectory);
+				WriteAheadLog wal = null;
+				if (writeAheadLog) {
+					File logDir = new File(indexDirectory, WAL_DIRECTORY);
+					try {
+						// a log left by an instance that held the lock when we opened
+						if (WriteAheadLog.hasSegments(logDir)) {
+							replayLog(writer, logDir);
+							writer.commit();
+							WriteAheadLog.deleteSegments(logDir);
+						}
+						wal = new WriteAheadLog(logDir);
+					} catch (IOException e) {
+						writer.rollback();
+						throw e;
+					}
+				}
+				sharedWriter = new SharedIndexWriter(writer, wal, groupCommitMaxWrites, groupCommitMaxDelay);
+				// nothing is pending, so the committed version is the writer's
+				sharedWriter.getKeyFilters().load(indexDirectory,
+						IndexReader.getCurrentVersion(FSDirectory.open(indexDirectory)));
+			}
+			return sharedWriter;
+		}
+	}
+
+	private void closeSharedWriter() throws IOException {
+		if (sharedWriter != null) {
+			try {
+				if (sharedWriter.isClosed()) {
+					return;
+				}
+				sharedWriter.close();
+				sharedWriter.getKeyFilters().save(indexDirectory,
+						IndexReader.getCurrentVersion(FSDirectory.open(indexDirectory)));
+			} finally {
+				sharedWriter = null;
+			}
 		}
 	}
 
@@ -855,6 +2093,16 @@ public class KiraDb {
 	 * @throws IOException
 	 */
     public void deleteIndex() throws IOException {
+		synchronized (writerLock) {
+			if (sharedWriter != null) {
+				try {
+					sharedWriter.rollback();
+				} finally {
+					sharedWriter = null;
+				}
+			}
+		}
+		searcherManager.close();
         FileUtils.deleteDirectory(indexDirectory);
     }
 
@@ -870,17 +2118,121 @@ public class KiraDb {
 		return this;
 	}
 
+	/**
+	 * Set the codec used to serialize objects stored in the index and in the
+	 * backing store. The default is a BinaryRecordCodec, which also reads
+	 * objects written as XML by earlier versions; see migrateRecords to
+	 * rewrite those. Set it before the first read or write, which replays any
+	 * write-ahead log left behind by an earlier instance with this codec.
+	 *
+	 * @param codec The RecordCodec
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 */
+	public KiraDb setRecordCodec(RecordCodec codec) {
+		this.codec = codec;
+		return this;
+	}
+
+	public RecordCodec getRecordCodec() {
+		return codec;
+	}
+
+	/**
+	 * Deflate objects stored in the index (STORE_MODE_INDEX). Applies to
+	 * objects stored from now on; compressed and uncompressed objects can be
+	 * read either way. Small objects, and objects that do not shrink, are
+	 * stored uncompressed regardless.
+	 *
+	 * @param compressObjects Set to true to compress stored objects
+	 *
+	 * @return KiraDb The KiraDb instance (self)
+	 */
+	public KiraDb setCompressObjects(boolean compressObjects) {
+		this.compressObjects = compressObjects;
+		return this;
+	}
+
+	public boolean isCompressObjects() {
+		return compressObjects;
+	}
+
+	/**
+	 * Rewrite and re-index every stored object of the given record type with
+	 * the current codec and index format, e.g. to convert objects stored as XML
+	 * by earlier versions to the binary format, or to index NUMBER and DATE
+	 * fields written by earlier versions as numeric fields. Objects are read
+	 * from the index or the backing store and written back in a single bulk
+	 * load.
+	 *
+	 * @param r A Record object of the type to migrate
+	 *
+	 * @return int The number of objects rewritten
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ClassNotFoundException
+	 * @throws KiraException
+	 */
+	public int migrateRecords(Record r) throws IOException, InterruptedException, ClassNotFoundException, KiraException {
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+		int n = 0;
+		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
+			IndexSearcher searcher = acquireSearcher(true);
+			try {
+				BulkLoadSession session = beginBulkLoad();
+				try {
+					TermDocs tdocs = searcher.getIndexReader().termDocs(new Term(TYPE_KEY, dr.getRecordName()));
+					try {
+						while (tdocs.next()) {
+							session.add(this.<Record>decodeObject(searcher.doc(tdocs.doc())));
+							n++;
+						}
+					} finally {
+						tdocs.close();
+					}
+					session.finish();
+				} finally {
+					if (!session.isFinished()) {
+						session.abort();
+					}
+				}
+			} finally {
+				searcherManager.release(searcher);
+			}
+		} else if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+			if (this.backingStore == null) {
+				throw new KiraException("STORE_MODE_BACKING but no backing store set");
+			}
+			BulkLoadSession session = beginBulkLoad();
+			try {
+				for (Record o = this.backingStore.firstObject(codec, r); o != null; o = this.backingStore.nextObject(codec, r)) {
+					session.add(o);
+					n++;
+				}
+				session.finish();
+			} finally {
+				if (!session.isFinished()) {
+					session.abort();
+				}
+			}
+		}
+		logger.info("migrated " + n + " " + dr.getRecordName() + " records");
+		return n;
+	}
 
 	private void setLastQuery(String savedQuery) {
-		this.savedQuery = savedQuery;
+		lastQuery.set(savedQuery);
 	}
 
 	/**
 	 *
-	 * @return String the last query executed
+	 * @return String the last query executed by the calling thread
+	 * @deprecated use QueryResult.getQueryString, which belongs to one query
 	 */
+	@Deprecated
 	public String getLastQuery() {
-		return savedQuery;
+		return lastQuery.get();
 	}
 
 	/**
@@ -895,53 +2247,44 @@ public class KiraDb {
 	 * @throws InterruptedException
 	 */
 	public void removeObjectByPrimaryKey(Record r, String value) throws IOException, ClassNotFoundException, KiraException, InterruptedException {
-        String key = makeKey(r.descriptor(), r.getPrimaryKeyName());
+		RecordDescriptor dr = RecordSchema.typeOf(r);
+        String key = makeKey(dr, r.getPrimaryKeyName());
 
         Term t = new Term(key, value);
 
-        IndexWriter writer = getIndexWriter(indexDirectory);
-        try {
-        	writer.deleteDocuments(t);
-        	writer.commit();
-        } catch (CorruptIndexException e) {
-                throw e;
-        } catch (IOException e) {
-                throw e;
-        } finally {
-                writer.close();
-        }
+        deleteDocuments(t);
 
-        if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
+        if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) != 0) {
         	if (this.backingStore == null) {
         		throw new KiraException("STORE_MODE_BACKING but no backing store set");
         	}
         	if (cacheStore != null) {
-        		cacheStore.removeObject(xstream, r, value);
+        		cacheStore.removeObject(codec, r, value);
         	}
-        	this.backingStore.removeObject(xstream, r, value);
+        	this.backingStore.removeObject(codec, r, value);
 
 
         }
 	}
 
 	public<T extends Record> T firstObject(Record r) throws KiraException, IOException, ClassNotFoundException {
-		if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) == 0) {
+		if ((RecordSchema.typeOf(r).getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) == 0) {
 			throw new KiraException("No backing store associated with record class");
 		}
 		if (this.backingStore == null) {
 			throw new KiraException("No backing store activated");
 		}
-        return (T) this.backingStore.firstObject(xstream, r);
+        return (T) this.backingStore.firstObject(codec, r);
     }
 
 	public<T extends Record> T nextObject(Record r) throws KiraException, IOException, ClassNotFoundException {
-		if ((r.descriptor().getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) == 0) {
+		if ((RecordSchema.typeOf(r).getStoreMode() & RecordDescriptor.STORE_MODE_BACKING) == 0) {
 			throw new KiraException("No backing store associated with record class");
 		}
 		if (this.backingStore == null) {
 			throw new KiraException("No backing store activated");
 		}
-        return (T) this.backingStore.nextObject(xstream, r);
+        return (T) this.backingStore.nextObject(codec, r);
 
     }
 }
@@ -0,0 +1,31 @@
+package com.bdt.kiradb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a member of an AnnotatedRecord that is indexed as a field.
+ * <p>
+ * STRING and FULLTEXT fields must be Strings, DATE fields Dates, and NUMBER
+ * fields numbers (primitive or not).
+ *
+ * @see AnnotatedRecord
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface KiraField {
+
+	/**
+	 * @return String The field name, by default the member name
+	 */
+	String name() default "";
+
+	/**
+	 * @return FieldType The field type
+	 */
+	FieldType type() default FieldType.STRING;
+}
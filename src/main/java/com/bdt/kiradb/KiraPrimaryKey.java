@@ -0,0 +1,23 @@
+package com.bdt.kiradb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the String member that holds the primary key of an AnnotatedRecord
+ *
+ * @see AnnotatedRecord
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface KiraPrimaryKey {
+
+	/**
+	 * @return String The primary key name, by default the member name
+	 */
+	String name() default "";
+}
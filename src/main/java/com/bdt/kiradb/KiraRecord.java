@@ -0,0 +1,31 @@
+package com.bdt.kiradb;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an AnnotatedRecord class and gives its record name (table name) and
+ * object store mode
+ *
+ * @see AnnotatedRecord
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface KiraRecord {
+
+	/**
+	 * @return String The globally unique record name
+	 */
+	String name();
+
+	/**
+	 * @return int The mode for storing objects, see RecordDescriptor.setStoreMode
+	 */
+	int storeMode() default RecordDescriptor.STORE_MODE_NONE;
+}
@@ -0,0 +1,155 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.document.Document;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Query results that turn each hit into a Record object only when it is first accessed.
+ * <p>
+ * Each element holds the stored fields read for its hit. Objects stored in the index
+ * are deserialized, and objects in a backing store fetched from the cache or
+ * the store, the first time get() is called for them; later calls return the
+ * same object, and results that are never accessed are never fetched. To fetch
+ * the objects of many results from a backing store in one batch instead of one
+ * at a time, call prefetch() before accessing them. Primary keys are available
+ * without loading any objects.
+ * <p>
+ * Since get() cannot throw checked exceptions, a failure to load an object is
+ * thrown as a RuntimeException whose cause is the KiraException, IOException
+ * or ClassNotFoundException raised.
+ *
+ * @param <T> The Record type
+ */
+public class LazyRecordList<T extends Record> extends AbstractList<T> implements RandomAccess {
+
+    private final KiraDb db;
+    private final Record record;
+    private final String keyField;
+    private final String[] selectedFields;
+    private final Document[] docs;
+    private final String[] keys;
+    private final Object[] loaded;
+    private final QueryCursor nextCursor;
+    private final boolean batched;
+
+    LazyRecordList(KiraDb db, Record record, String keyField, String[] selectedFields, List<Document> docs,
+            QueryCursor nextCursor) {
+        this.db = db;
+        this.record = record;
+        this.keyField = keyField;
+        this.selectedFields = selectedFields;
+        this.docs = docs.toArray(new Document[docs.size()]);
+        this.keys = new String[this.docs.length];
+        for (int i = 0; i < this.docs.length; i++) {
+            keys[i] = this.docs[i].get(keyField);
+        }
+        this.loaded = new Object[this.docs.length];
+        this.nextCursor = nextCursor;
+        this.batched = db.fetchesFromBackingStore(record, selectedFields);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized T get(int index) {
+        if (index < 0 || index >= docs.length) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + docs.length);
+        }
+        Object o = loaded[index];
+        if (o == null) {
+            try {
+                o = db.toRecord(record, keyField, selectedFields, docs[index]);
+            } catch (Exception e) {
+                throw new RuntimeException("cannot load query result " + keys[index] + ": " + e.getMessage(), e);
+            }
+            loaded[index] = o;
+            // the stored fields are not needed any more
+            docs[index] = null;
+        }
+        return (T) o;
+    }
+
+    /**
+     * Fetch the objects of every result not loaded yet from the cache or
+     * backing store in one batch: from the cache where they are cached, and
+     * concurrently from the store otherwise. Objects that cannot be found are
+     * left for get() to report. Results whose objects are not in a backing
+     * store are left to get(), which reads them from the index.
+     */
+    public void prefetch() {
+        prefetch(0, docs.length);
+    }
+
+    /**
+     * Fetch the objects of the results from index <code>from</code>, inclusive,
+     * to <code>to</code>, exclusive, as prefetch() does for all of them
+     *
+     * @param from The first result index
+     * @param to The result index after the last one
+     */
+    public synchronized void prefetch(int from, int to) {
+        if (from < 0 || to > docs.length || from > to) {
+            throw new IndexOutOfBoundsException("range " + from + " to " + to + ", size " + docs.length);
+        }
+        if (!batched) {
+            return;
+        }
+        List<Integer> indexes = new ArrayList<Integer>();
+        List<String> values = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            if (loaded[i] == null) {
+                indexes.add(i);
+                values.add(keys[i]);
+            }
+        }
+        List<Record> objects;
+        try {
+            objects = db.retrieveFromBackingStore(record, values);
+        } catch (Exception e) {
+            throw new RuntimeException("cannot load query results: " + e.getMessage(), e);
+        }
+        for (int i = 0; i < objects.size(); i++) {
+            // objects not found are left for get() to report
+            if (objects.get(i) != null) {
+                int index = indexes.get(i);
+                loaded[index] = objects.get(i);
+                docs[index] = null;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return docs.length;
+    }
+
+    /**
+     * The primary key of a result, without loading its object
+     *
+     * @param index The result index
+     * @return String The primary key value
+     */
+    public String getPrimaryKey(int index) {
+        return keys[index];
+    }
+
+    /**
+     * The cursor from which the next page of results is read, see Query.setCursor
+     *
+     * @return QueryCursor The position of the last result, or null if this page was not full
+     */
+    public QueryCursor getNextCursor() {
+        return nextCursor;
+    }
+
+    /**
+     * @param index The result index
+     * @return boolean true if the result's object has been loaded
+     */
+    public synchronized boolean isLoaded(int index) {
+        return loaded[index] != null;
+    }
+}
@@ -0,0 +1,49 @@
+package com.bdt.kiradb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe map of bounded size that drops its least recently used entry
+ * to make room for a new one
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+final class LruCache<K, V> {
+
+    private final Map<K, V> map;
+
+    /**
+     * @param maxEntries The most entries the cache holds
+     */
+    LruCache(final int maxEntries) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return V The cached value, or null if there is none
+     */
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+}
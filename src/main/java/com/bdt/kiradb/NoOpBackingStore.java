@@ -1,7 +1,5 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
-
 import java.io.IOException;
 
 /**
@@ -9,26 +7,26 @@ import java.io.IOException;
  */
 public class NoOpBackingStore extends BackingStore {
     @Override
-    void storeObject(XStream xstream, Record r) throws IOException, KiraException {
+    void storeObject(RecordCodec codec, Record r) throws IOException, KiraException {
     }
 
     @Override
-    public <T extends Record> T retrieveObject(XStream xstream, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
+    public <T extends Record> T retrieveObject(RecordCodec codec, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
         return null;
     }
 
     @Override
-    void removeObject(XStream xstream, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
+    void removeObject(RecordCodec codec, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
     }
 
     @Override
-    public <T extends Record> T firstObject(XStream xstream, Record r) throws KiraException,
+    public <T extends Record> T firstObject(RecordCodec codec, Record r) throws KiraException,
             IOException, ClassNotFoundException {
         return null;
     }
 
     @Override
-    public <T extends Record> T nextObject(XStream xstream, Record r) throws KiraException,
+    public <T extends Record> T nextObject(RecordCodec codec, Record r) throws KiraException,
             IOException, ClassNotFoundException {
         return null;
     }
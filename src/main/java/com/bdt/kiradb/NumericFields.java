@@ -0,0 +1,118 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.NumericUtils;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * How NUMBER and DATE fields are indexed, queried and sorted.
+ * <p>
+ * Both are indexed as trie-encoded Lucene NumericFields: NUMBER values as
+ * doubles, which hold integers up to 2^53 exactly, and DATE values as
+ * milliseconds since the epoch. Their stored values keep the string form of
+ * earlier versions (toString() for numbers, yyyyMMddHHmmss.SSSS for dates).
+ * Indexes written before numeric fields were introduced must be re-indexed
+ * with KiraDb.migrateRecords before numeric queries or sorts are used on them.
+ */
+final class NumericFields {
+
+	static final int PRECISION_STEP = NumericUtils.PRECISION_STEP_DEFAULT;
+
+	private NumericFields() {
+	}
+
+	/**
+	 * @return boolean true if fields of this type are indexed as numbers
+	 */
+	static boolean isNumeric(FieldType type) {
+		return type == FieldType.NUMBER || type == FieldType.DATE;
+	}
+
+	static double toDouble(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		return Double.parseDouble(value.toString());
+	}
+
+	static long toLong(Object value) {
+		if (value instanceof Date) {
+			return ((Date) value).getTime();
+		}
+		return ((Number) value).longValue();
+	}
+
+	/**
+	 * A query matching documents whose field value lies in the given range
+	 *
+	 * @param f The NUMBER or DATE field
+	 * @param lower The lower bound, a Number or Date, or null for no lower bound
+	 * @param upper The upper bound, a Number or Date, or null for no upper bound
+	 * @param includeLower true if the lower bound matches
+	 * @param includeUpper true if the upper bound matches
+	 * @return Query The range query
+	 */
+	static org.apache.lucene.search.Query rangeQuery(Field f, Object lower, Object upper,
+			boolean includeLower, boolean includeUpper) {
+		if (f.getType() == FieldType.DATE) {
+			return NumericRangeQuery.newLongRange(f.getName(), PRECISION_STEP,
+					lower != null ? toLong(lower) : null, upper != null ? toLong(upper) : null,
+					includeLower, includeUpper);
+		}
+		return NumericRangeQuery.newDoubleRange(f.getName(), PRECISION_STEP,
+				lower != null ? toDouble(lower) : null, upper != null ? toDouble(upper) : null,
+				includeLower, includeUpper);
+	}
+
+	/**
+	 * A query matching documents whose field equals the given query string: a
+	 * number for NUMBER fields; milliseconds or the stored string form for DATE fields
+	 *
+	 * @throws ParseException if the string is not a value of the field's type
+	 */
+	static org.apache.lucene.search.Query exactQuery(Field f, String querystr) throws ParseException {
+		Object value;
+		try {
+			value = f.getType() == FieldType.DATE ? parseDate(querystr.trim()) : Double.valueOf(querystr.trim());
+		} catch (NumberFormatException e) {
+			throw new ParseException("not a " + f.getType() + " value for " + f.getName() + ": " + querystr);
+		}
+		return rangeQuery(f, value, value, true, true);
+	}
+
+	/**
+	 * @return SortField A sort on the field's value, numeric for NUMBER and DATE fields
+	 */
+	static SortField sortField(Field f, boolean reverse) {
+		switch (f.getType()) {
+		case DATE:
+			return new SortField(f.getName(), FieldCache.NUMERIC_UTILS_LONG_PARSER, reverse);
+		case NUMBER:
+			return new SortField(f.getName(), FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, reverse);
+		default:
+			return new SortField(f.getName(), SortField.STRING, reverse);
+		}
+	}
+
+	/**
+	 * Parse milliseconds, or a date in the stored form yyyyMMddHHmmss.SSSS
+	 * (zero-based month, default time zone)
+	 */
+	private static Date parseDate(String s) {
+		if (s.length() == 19 && s.charAt(14) == '.') {
+			Calendar c = Calendar.getInstance();
+			c.clear();
+			c.set(Integer.parseInt(s.substring(0, 4)), Integer.parseInt(s.substring(4, 6)),
+					Integer.parseInt(s.substring(6, 8)), Integer.parseInt(s.substring(8, 10)),
+					Integer.parseInt(s.substring(10, 12)), Integer.parseInt(s.substring(12, 14)));
+			c.set(Calendar.MILLISECOND, Integer.parseInt(s.substring(15)));
+			return c.getTime();
+		}
+		return new Date(Long.parseLong(s));
+	}
+}
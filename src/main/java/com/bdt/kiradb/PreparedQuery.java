@@ -0,0 +1,136 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A query whose fields, analyzers, sort and record type filter have been
+ * resolved once, to be executed many times with different parameter values.
+ * <p>
+ * Parameters are whereMatches constraints of the template query whose value
+ * is a name preceded by a colon, e.g. <code>query.whereMatches(Expense.CATEGORY, ":cat")</code>.
+ * Constraints inside whereAnyOf and whereNot groups are never parameters.
+ * A bound value is a value, not query syntax: it must equal a STRING field's
+ * value, or a NUMBER or DATE field's value, exactly, and every word of it
+ * must be in a FULLTEXT field.
+ * <p>
+ * The template's start, limit, cursor and selected fields are read each time
+ * the query is executed. A PreparedQuery may be executed by many threads at
+ * once, as long as its template is not modified meanwhile.
+ *
+ * @see KiraDb#prepare(Query)
+ */
+public final class PreparedQuery {
+
+    /**
+     * A constraint whose value is bound when the query is executed
+     */
+    static final class Parameter {
+        final String name;
+        final Field field;
+
+        Parameter(String name, Field field) {
+            this.name = name;
+            this.field = field;
+        }
+    }
+
+    private final KiraDb db;
+    private final Query template;
+    private final List<BooleanClause> fixed;
+    private final List<Parameter> parameters;
+    private final Filter typeFilter;
+    private final Sort sort;
+
+    PreparedQuery(KiraDb db, Query template, List<BooleanClause> fixed,
+            List<Parameter> parameters, Filter typeFilter, Sort sort) {
+        this.db = db;
+        this.template = template;
+        this.fixed = fixed;
+        this.parameters = parameters;
+        this.typeFilter = typeFilter;
+        this.sort = sort;
+    }
+
+    /**
+     *
+     * @return Set<String> The names of the query's parameters
+     */
+    public Set<String> getParameterNames() {
+        Set<String> names = new LinkedHashSet<String>();
+        for (Parameter p : parameters) {
+            names.add(p.name);
+        }
+        return Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Execute the query with the given parameter values
+     *
+     * @param values The value of every parameter, by name
+     *
+     * @return QueryResult<T> The matching records
+     * @throws KiraException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public <T extends Record> QueryResult<T> execute(Map<String, String> values)
+            throws KiraException, IOException, ClassNotFoundException {
+        List<BooleanClause> constraints = new ArrayList<BooleanClause>(fixed);
+        StringBuilder cacheKey = new StringBuilder(template.cacheKey());
+        for (Parameter p : parameters) {
+            String value = values.get(p.name);
+            if (value == null) {
+                throw new IllegalArgumentException("no value for parameter " + p.name);
+            }
+            constraints.add(new BooleanClause(bind(p.field, value), BooleanClause.Occur.MUST));
+            FieldQuery.appendValue(cacheKey, value);
+        }
+        return db.executeQuery(template, new FilteredQuery(KiraDb.conjunction(constraints), typeFilter), sort,
+                cacheKey.toString());
+    }
+
+    private static org.apache.lucene.search.Query bind(Field field, String value) throws KiraException {
+        switch (field.getType()) {
+        case NUMBER:
+        case DATE:
+            try {
+                return NumericFields.exactQuery(field, value);
+            } catch (org.apache.lucene.queryParser.ParseException e) {
+                throw new KiraException("ParseException " + e.getMessage());
+            }
+        case FULLTEXT:
+            BooleanQuery words = new BooleanQuery();
+            try {
+                TokenStream tokens = KiraDb.FULLTEXT_ANALYZER.reusableTokenStream(field.getName(), new StringReader(value));
+                TermAttribute term = tokens.addAttribute(TermAttribute.class);
+                tokens.reset();
+                while (tokens.incrementToken()) {
+                    words.add(new TermQuery(new Term(field.getName(), term.term())), BooleanClause.Occur.MUST);
+                }
+                tokens.end();
+            } catch (IOException e) {
+                throw new KiraException("cannot analyze " + field.getName() + " value: " + e.getMessage());
+            }
+            return words;
+        default:
+            return new TermQuery(new Term(field.getName(), value));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.bdt.kiradb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over the primary keys of one record type.
+ * <p>
+ * mightContain never returns false for a key that was added, and returns true
+ * for about 1% of the keys that were not, as long as no more keys are added
+ * than the filter was sized for. Adds and lookups are lock-free.
+ */
+final class PrimaryKeyFilter {
+
+    // about 1% false positives
+    private static final double BITS_PER_KEY = 9.6;
+    private static final int NUM_HASHES = 7;
+    private static final int MIN_KEYS = 1024;
+
+    private final int capacity;
+    private final int numBits;
+    private final AtomicLongArray bits;
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param expectedKeys The number of keys the filter is sized for
+     */
+    PrimaryKeyFilter(int expectedKeys) {
+        this.capacity = Math.max(MIN_KEYS, expectedKeys);
+        long n = (long) Math.ceil(capacity * BITS_PER_KEY);
+        this.numBits = (int) Math.min(Integer.MAX_VALUE - 63, (n + 63) & ~63L);
+        this.bits = new AtomicLongArray(numBits >>> 6);
+    }
+
+    private PrimaryKeyFilter(int capacity, int count, long[] words) {
+        this.capacity = capacity;
+        this.numBits = words.length << 6;
+        this.bits = new AtomicLongArray(words);
+        this.count.set(count);
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 1; i <= NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            while (true) {
+                long old = bits.get(word);
+                if ((old & mask) != 0 || bits.compareAndSet(word, old, old | mask)) {
+                    break;
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return boolean false if the key was certainly never added
+     */
+    boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 1; i <= NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return boolean true once more keys have been added than the filter was sized for
+     */
+    boolean isFull() {
+        return count.get() > capacity;
+    }
+
+    int getCount() {
+        return count.get();
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(capacity);
+        out.writeInt(count.get());
+        int words = bits.length();
+        out.writeInt(words);
+        for (int i = 0; i < words; i++) {
+            out.writeLong(bits.get(i));
+        }
+    }
+
+    static PrimaryKeyFilter read(DataInput in) throws IOException {
+        int capacity = in.readInt();
+        int count = in.readInt();
+        int words = in.readInt();
+        if (capacity <= 0 || count < 0 || words <= 0) {
+            throw new IOException("corrupt primary key filter");
+        }
+        long[] w = new long[words];
+        for (int i = 0; i < words; i++) {
+            w[i] = in.readLong();
+        }
+        return new PrimaryKeyFilter(capacity, count, w);
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's chars, with a final mix so both halves are usable
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
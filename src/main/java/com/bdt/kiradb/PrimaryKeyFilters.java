@@ -0,0 +1,243 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * The primary key filters of a SharedIndexWriter, one per primary key field.
+ * <p>
+ * A filter is built from the writer's near-real-time reader the first time a
+ * record type is looked up, and from then on every key written through the
+ * writer is added to it before its document is. Building holds the write
+ * lock, writes the read lock, so no key can be written between reading the
+ * index and registering the filter. While a bulk load shares the writer, its
+ * keys bypass the filters, so none are used until it has finished.
+ * <p>
+ * Filters are saved next to the index when the writer is closed, tagged with
+ * the index version, and only loaded again if the index is still at that version.
+ */
+final class PrimaryKeyFilters {
+
+    static final String FILE_NAME = "primary-keys.bloom";
+    private static final int MAGIC = 0x4b50424c;
+
+    private final Logger logger = Logger.getLogger(PrimaryKeyFilters.class.getName());
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // by primary key field name
+    private final Map<String, PrimaryKeyFilter> filters = new HashMap<String, PrimaryKeyFilter>();
+    private int suspended;
+
+    /**
+     * Take the write side before a document is written: adds its key to the
+     * filter for its field, if there is one. Must be followed by endWrite.
+     */
+    void beginWrite(Term t) {
+        lock.readLock().lock();
+        PrimaryKeyFilter filter;
+        synchronized (filters) {
+            filter = filters.get(t.field());
+        }
+        if (filter != null) {
+            filter.add(t.text());
+            if (filter.isFull()) {
+                // rebuilt, larger, when next looked up
+                synchronized (filters) {
+                    filters.remove(t.field());
+                }
+            }
+        }
+    }
+
+    void endWrite() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * The filter for a primary key field, built from the writer's index if needed
+     *
+     * @return PrimaryKeyFilter The filter, or null while a bulk load is running
+     */
+    PrimaryKeyFilter get(String field, IndexWriter writer) throws IOException {
+        synchronized (filters) {
+            if (suspended > 0) {
+                return null;
+            }
+            PrimaryKeyFilter filter = filters.get(field);
+            if (filter != null) {
+                return filter;
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            synchronized (filters) {
+                if (suspended > 0) {
+                    return null;
+                }
+                PrimaryKeyFilter filter = filters.get(field);
+                if (filter != null) {
+                    return filter;
+                }
+            }
+            PrimaryKeyFilter filter = build(field, writer);
+            synchronized (filters) {
+                if (suspended > 0) {
+                    return null;
+                }
+                filters.put(field, filter);
+            }
+            return filter;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private PrimaryKeyFilter build(String field, IndexWriter writer) throws IOException {
+        IndexReader reader = writer.getReader();
+        try {
+            // room to grow before it has to be rebuilt
+            PrimaryKeyFilter filter = new PrimaryKeyFilter(reader.maxDoc() * 2);
+            TermEnum terms = reader.terms(new Term(field, ""));
+            try {
+                do {
+                    Term t = terms.term();
+                    if (t == null || !t.field().equals(field)) {
+                        break;
+                    }
+                    filter.add(t.text());
+                } while (terms.next());
+            } finally {
+                terms.close();
+            }
+            return filter;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Stop using the filters while a bulk load writes keys past them
+     */
+    void suspend() {
+        lock.writeLock().lock();
+        try {
+            synchronized (filters) {
+                suspended++;
+                filters.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Use filters again after a bulk load; they are rebuilt when next looked up
+     */
+    void resume() {
+        lock.writeLock().lock();
+        try {
+            synchronized (filters) {
+                suspended--;
+                filters.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Save the filters, once all the writes they hold are committed
+     *
+     * @param indexVersion The version of the committed index
+     */
+    void save(File indexDirectory, long indexVersion) {
+        File file = new File(indexDirectory, FILE_NAME);
+        lock.writeLock().lock();
+        try {
+            synchronized (filters) {
+                if (suspended > 0 || filters.isEmpty()) {
+                    file.delete();
+                    return;
+                }
+                File tmp = new File(indexDirectory, FILE_NAME + ".tmp");
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+                try {
+                    out.writeInt(MAGIC);
+                    out.writeLong(indexVersion);
+                    out.writeInt(filters.size());
+                    for (Map.Entry<String, PrimaryKeyFilter> e : filters.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        e.getValue().write(out);
+                    }
+                } finally {
+                    out.close();
+                }
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("cannot rename " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("cannot save primary key filters: " + e.getMessage());
+            file.delete();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Load the filters saved for this version of the index, if any
+     *
+     * @param indexVersion The version of the committed index
+     */
+    void load(File indexDirectory, long indexVersion) {
+        File file = new File(indexDirectory, FILE_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, PrimaryKeyFilter> loaded = new HashMap<String, PrimaryKeyFilter>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readLong() != indexVersion) {
+                    // written for an index that has changed since
+                    return;
+                }
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String field = in.readUTF();
+                    loaded.put(field, PrimaryKeyFilter.read(in));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warning("cannot load primary key filters: " + e.getMessage());
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            synchronized (filters) {
+                filters.putAll(loaded);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.bdt.kiradb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -15,8 +16,14 @@ public class Query {
 	private int start;
 	private Field sortField;
 	private Boolean reverse;
+	private List<Field> moreSortFields;
+	private List<Boolean> moreReverse;
+	private Boolean sortByRelevance;
 	private Record r;
 	private List<FieldQuery>queries;
+	private Boolean readYourWrites;
+	private String[] selectedFields;
+	private QueryCursor cursor;
 	
 	/**
 	 * Construct a KiraDb Query
@@ -28,6 +35,8 @@ public class Query {
 		setStart(0);
 		setLimit(100);
 		setReverse(false);
+		setSortByRelevance(false);
+		setReadYourWrites(false);
 	}
 	
 	public int getLimit() {
@@ -63,13 +72,93 @@ public class Query {
 	}
 	
 	/**
-	 * Define the sort field to use in ordering the results
+	 * Define the sort field to use in ordering the results, in place of any
+	 * sort fields defined before.
 	 * Default is "date" field 
 	 * 
 	 * @param sortField sort field
 	 */
 	public void setSortField(Field sortField) {
 		this.sortField = sortField;
+		this.moreSortFields = null;
+		this.moreReverse = null;
+	}
+
+	/**
+	 * Add a sort field that orders the results whose earlier sort fields
+	 * are equal. The first sort field added is the same as setSortField.
+	 * 
+	 * @param sortField field for sort order
+	 * @param reverse set to true to reverse the order (descending)
+	 */
+	public void addSortField(Field sortField, Boolean reverse) {
+		if (this.sortField == null) {
+			setSortField(sortField, reverse);
+			return;
+		}
+		if (moreSortFields == null) {
+			moreSortFields = new ArrayList<Field>();
+			moreReverse = new ArrayList<Boolean>();
+		}
+		moreSortFields.add(sortField);
+		moreReverse.add(reverse);
+	}
+
+	/**
+	 * Add a sort field that orders the results whose earlier sort fields
+	 * are equal. The first sort field added is the same as setSortField.
+	 * 
+	 * @param sortFieldName name of the field for sort order
+	 * @param reverse set to true to reverse the order (descending)
+	 */
+	public void addSortField(String sortFieldName, Boolean reverse) {
+		addSortField(RecordSchema.typeOf(r).getFieldByName(sortFieldName), reverse);
+	}
+
+	/**
+	 * @return List<Field> all the sort fields, in order, empty if none was defined
+	 */
+	public List<Field> getSortFields() {
+		List<Field> fields = new ArrayList<Field>();
+		if (sortField != null) {
+			fields.add(sortField);
+			if (moreSortFields != null) {
+				fields.addAll(moreSortFields);
+			}
+		}
+		return fields;
+	}
+
+	/**
+	 * @return boolean whether the i'th of getSortFields() is reversed
+	 */
+	boolean isSortReversed(int i) {
+		return i == 0 ? Boolean.TRUE.equals(reverse) : Boolean.TRUE.equals(moreReverse.get(i - 1));
+	}
+
+	public Boolean getSortByRelevance() {
+		return sortByRelevance;
+	}
+
+	/**
+	 * Order the results by relevance to the query's FULLTEXT constraints,
+	 * most relevant first. Any sort fields then order results of equal
+	 * relevance. Without sort fields, only the top start + limit hits are
+	 * ranked, by Lucene's score-ordered collector, and no field values
+	 * are loaded to sort them.
+	 * Default is false.
+	 * 
+	 * @param sortByRelevance set to true to sort by relevance
+	 */
+	public void setSortByRelevance(Boolean sortByRelevance) {
+		this.sortByRelevance = sortByRelevance;
+	}
+
+	/**
+	 * @return boolean whether the query orders its results itself, rather than by the default date order
+	 */
+	boolean hasSort() {
+		return sortField != null || Boolean.TRUE.equals(sortByRelevance);
 	}
 
 	/**
@@ -90,7 +179,7 @@ public class Query {
 	 * @param sortFieldName name of the field for sort order
 	 */
 	public void setSortField(String sortFieldName) {
-		setSortField(r.descriptor().getFieldByName(sortFieldName));
+		setSortField(RecordSchema.typeOf(r).getFieldByName(sortFieldName));
 	}
 	
 	/**
@@ -101,7 +190,7 @@ public class Query {
 	 * @param reverse set to true to reverse the order (descending)
 	 */
 	public void setSortField(String sortFieldName, Boolean reverse) {
-		setSortField(r.descriptor().getFieldByName(sortFieldName));
+		setSortField(RecordSchema.typeOf(r).getFieldByName(sortFieldName));
 		setReverse(reverse);
 	}
 	
@@ -118,6 +207,37 @@ public class Query {
 		this.reverse = reverse;
 	}
 
+	public QueryCursor getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Return the page of results that follows the given cursor, instead of
+	 * skipping setStart() results. The cursor comes from the previous page
+	 * (LazyRecordList.getNextCursor) of a query with the same constraints and sort.
+	 * 
+	 * @param cursor the position after which to return results, or null to start at the beginning
+	 */
+	public void setCursor(QueryCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	public Boolean getReadYourWrites() {
+		return readYourWrites;
+	}
+
+	/**
+	 * Require the query to see every write made before it, even writes not
+	 * yet committed. Only meaningful when near-real-time reads are enabled;
+	 * default is false, which allows results as stale as the configured
+	 * near-real-time staleness.
+	 * 
+	 * @param readYourWrites set to true to read all previous writes
+	 */
+	public void setReadYourWrites(Boolean readYourWrites) {
+		this.readYourWrites = readYourWrites;
+	}
+
 	/**
 	 * Add a constraint to the query that requires a particular field's value to
 	 * match the provided query value.
@@ -128,10 +248,7 @@ public class Query {
 	 * @param querystr the value that the field must contain
 	 */
 	public void whereMatches(Field queryField, String querystr) {
-		if (queries == null) {
-			queries = new ArrayList<FieldQuery>();
-		}
-		queries.add(new FieldQuery(queryField, querystr));
+		addQuery(new FieldQuery(queryField, querystr));
 	}
 	
 	/**
@@ -144,9 +261,217 @@ public class Query {
 	 * @param querystr the value that the field must contain
 	 */
 	public void whereMatches(String queryFieldName, String querystr) {
-		whereMatches(r.descriptor().getFieldByName(queryFieldName), querystr);
+		whereMatches(RecordSchema.typeOf(r).getFieldByName(queryFieldName), querystr);
 	}
 	
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to lie between two values, inclusive
+	 * 
+	 * @param queryField field to query
+	 * @param lower the lowest matching value, a Number or Date
+	 * @param upper the highest matching value, a Number or Date
+	 */
+	public void whereBetween(Field queryField, Object lower, Object upper) {
+		addQuery(new FieldRange(queryField, lower, upper, true, true));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to lie between two values, inclusive
+	 * 
+	 * @param queryFieldName name of the field to query
+	 * @param lower the lowest matching value, a Number or Date
+	 * @param upper the highest matching value, a Number or Date
+	 */
+	public void whereBetween(String queryFieldName, Object lower, Object upper) {
+		whereBetween(RecordSchema.typeOf(r).getFieldByName(queryFieldName), lower, upper);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to be greater than the provided value
+	 * 
+	 * @param queryField field to query
+	 * @param value the value, a Number or Date
+	 */
+	public void whereGreaterThan(Field queryField, Object value) {
+		addQuery(new FieldRange(queryField, value, null, false, false));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to be greater than the provided value
+	 * 
+	 * @param queryFieldName name of the field to query
+	 * @param value the value, a Number or Date
+	 */
+	public void whereGreaterThan(String queryFieldName, Object value) {
+		whereGreaterThan(RecordSchema.typeOf(r).getFieldByName(queryFieldName), value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to be less than the provided value
+	 * 
+	 * @param queryField field to query
+	 * @param value the value, a Number or Date
+	 */
+	public void whereLessThan(Field queryField, Object value) {
+		addQuery(new FieldRange(queryField, null, value, false, false));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a NUMBER or DATE field's
+	 * value to be less than the provided value
+	 * 
+	 * @param queryFieldName name of the field to query
+	 * @param value the value, a Number or Date
+	 */
+	public void whereLessThan(String queryFieldName, Object value) {
+		whereLessThan(RecordSchema.typeOf(r).getFieldByName(queryFieldName), value);
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular field's value to
+	 * match at least one of the provided query values (OR behavior)
+	 * 
+	 * @param queryField field to query
+	 * @param querystrs the values, one of which the field must contain
+	 */
+	public void whereAnyOf(Field queryField, String... querystrs) {
+		List<Query> alternatives = new ArrayList<Query>();
+		for (String querystr : querystrs) {
+			Query q = new Query(r);
+			q.whereMatches(queryField, querystr);
+			alternatives.add(q);
+		}
+		addQuery(new QueryGroup(alternatives, false));
+	}
+
+	/**
+	 * Add a constraint to the query that requires a particular field's value to
+	 * match at least one of the provided query values (OR behavior)
+	 * 
+	 * @param queryFieldName name of the field to query
+	 * @param querystrs the values, one of which the field must contain
+	 */
+	public void whereAnyOf(String queryFieldName, String... querystrs) {
+		whereAnyOf(RecordSchema.typeOf(r).getFieldByName(queryFieldName), querystrs);
+	}
+
+	/**
+	 * Add a constraint to the query that requires records to match at least
+	 * one of the provided sub-queries, each with all of its own constraints.
+	 * Only the constraints of the sub-queries are used; their sort, paging
+	 * and selected fields are ignored. Sub-queries may be nested.
+	 * 
+	 * @param alternatives queries on the same record type, one of which records must match
+	 */
+	public void whereAnyOf(Query... alternatives) {
+		addQuery(new QueryGroup(Arrays.asList(alternatives), false));
+	}
+
+	/**
+	 * Add a constraint to the query that excludes records whose field matches
+	 * the provided query value
+	 * 
+	 * @param queryField field to query
+	 * @param querystr the value that the field must not contain
+	 */
+	public void whereNot(Field queryField, String querystr) {
+		Query q = new Query(r);
+		q.whereMatches(queryField, querystr);
+		whereNot(q);
+	}
+
+	/**
+	 * Add a constraint to the query that excludes records whose field matches
+	 * the provided query value
+	 * 
+	 * @param queryFieldName name of the field to query
+	 * @param querystr the value that the field must not contain
+	 */
+	public void whereNot(String queryFieldName, String querystr) {
+		whereNot(RecordSchema.typeOf(r).getFieldByName(queryFieldName), querystr);
+	}
+
+	/**
+	 * Add a constraint to the query that excludes records matching all of the
+	 * constraints of the provided sub-query. A query made only of exclusions
+	 * returns every record of its type that is not excluded.
+	 * 
+	 * @param excluded a query on the same record type, which records must not match
+	 */
+	public void whereNot(Query excluded) {
+		addQuery(new QueryGroup(Arrays.asList(excluded), true));
+	}
+
+	/**
+	 * A canonical form of the query: queries with equal keys return the same
+	 * results from the same index
+	 */
+	String cacheKey() {
+		StringBuilder sb = new StringBuilder();
+		FieldQuery.appendValue(sb, r.getRecordName());
+		sb.append(RecordSchema.typeOf(r).getStoreMode()).append('|');
+		appendConstraintKey(sb);
+		sb.append('|');
+		sb.append(Boolean.TRUE.equals(sortByRelevance) ? 'S' : '-');
+		List<Field> sortFields = getSortFields();
+		for (int i = 0; i < sortFields.size(); i++) {
+			FieldQuery.appendValue(sb, sortFields.get(i).getName());
+			sb.append(isSortReversed(i) ? 'R' : 'F');
+		}
+		sb.append(start).append(',').append(limit).append('|');
+		FieldQuery.appendValue(sb, cursor);
+		if (selectedFields != null) {
+			for (String name : selectedFields) {
+				FieldQuery.appendValue(sb, name);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append the canonical form of the query's constraints alone
+	 */
+	void appendConstraintKey(StringBuilder sb) {
+		if (queries != null) {
+			for (FieldQuery fq : queries) {
+				fq.appendCacheKey(sb);
+			}
+		}
+	}
+
+	private void addQuery(FieldQuery fq) {
+		if (queries == null) {
+			queries = new ArrayList<FieldQuery>();
+		}
+		queries.add(fq);
+	}
+
+	/**
+	 * Return only the named fields of each matching record, instead of the
+	 * full objects. Only those stored fields (and the primary key) are read
+	 * from the index. The results are Records whose descriptor holds the
+	 * primary key and the selected fields that have a value, in their stored
+	 * string form (FULLTEXT fields hold the lowercased and stemmed text that
+	 * was indexed).
+	 * 
+	 * @param fieldNames names of the fields to return
+	 */
+	public void select(String... fieldNames) {
+		this.selectedFields = fieldNames;
+	}
+
+	/**
+	 * @return String[] the fields selected with select(), or null to return full records
+	 */
+	public String[] getSelectedFields() {
+		return selectedFields;
+	}
+
 	/**
 	 * Accessor for the query set
 	 */
@@ -0,0 +1,136 @@
+package com.bdt.kiradb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The position of the last record of a page of query results, from which the
+ * next page is read (see Query.setCursor).
+ * <p>
+ * A cursor holds the last record's sort values and its index document number.
+ * Reading a page from a cursor costs the same however deep the page is,
+ * whereas Query.setStart collects and skips every earlier result. Records
+ * added, changed or removed between pages are included or not according to
+ * their sort values; records with equal sort values may be repeated or skipped
+ * if the index is merged between pages.
+ * <p>
+ * Cursors can be passed around as strings: toString() gives an opaque token
+ * that parse() turns back into the cursor.
+ */
+public final class QueryCursor {
+
+	private final Object[] values;
+	private final int doc;
+
+	QueryCursor(Object[] values, int doc) {
+		this.values = values;
+		this.doc = doc;
+	}
+
+	/**
+	 * @return Object[] The last sort values, one per sort key: a String, Long, Double, Float (a score) or null
+	 */
+	Object[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return int The last index document number
+	 */
+	int getDoc() {
+		return doc;
+	}
+
+	/**
+	 * @return String The cursor as a token for parse()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(doc).append(':');
+		for (Object value : values) {
+			if (value == null) {
+				sb.append('N');
+			} else if (value instanceof Long) {
+				sb.append('L').append(value).append(';');
+			} else if (value instanceof Double) {
+				sb.append('D').append(Double.doubleToLongBits((Double) value)).append(';');
+			} else if (value instanceof Float) {
+				sb.append('F').append(Float.floatToIntBits((Float) value)).append(';');
+			} else {
+				String v = value.toString();
+				sb.append('S').append(v.length()).append(':').append(v);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @param token A token returned by toString()
+	 * @return QueryCursor The cursor
+	 * @throws IllegalArgumentException if the token is not a cursor
+	 */
+	public static QueryCursor parse(String token) {
+		int colon = token.indexOf(':');
+		try {
+			if (colon > 0 && colon + 1 < token.length()) {
+				int doc = Integer.parseInt(token.substring(0, colon));
+				List<Object> values = new ArrayList<Object>();
+				int pos = colon + 1;
+				while (pos < token.length()) {
+					char type = token.charAt(pos++);
+					if (type == 'N') {
+						values.add(null);
+						continue;
+					}
+					if (type == 'S') {
+						int lengthEnd = token.indexOf(':', pos);
+						int length = Integer.parseInt(token.substring(pos, lengthEnd));
+						values.add(token.substring(lengthEnd + 1, lengthEnd + 1 + length));
+						pos = lengthEnd + 1 + length;
+						continue;
+					}
+					int end = token.indexOf(';', pos);
+					String v = token.substring(pos, end);
+					pos = end + 1;
+					switch (type) {
+					case 'L':
+						values.add(Long.valueOf(v));
+						break;
+					case 'D':
+						values.add(Double.longBitsToDouble(Long.parseLong(v)));
+						break;
+					case 'F':
+						values.add(Float.intBitsToFloat(Integer.parseInt(v)));
+						break;
+					default:
+						throw new IllegalArgumentException("not a query cursor: " + token);
+					}
+				}
+				if (!values.isEmpty()) {
+					return new QueryCursor(values.toArray(), doc);
+				}
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		} catch (IndexOutOfBoundsException e) {
+			// fall through
+		}
+		throw new IllegalArgumentException("not a query cursor: " + token);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof QueryCursor)) {
+			return false;
+		}
+		QueryCursor c = (QueryCursor) o;
+		return doc == c.doc && Arrays.equals(values, c.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return doc * 31 + Arrays.hashCode(values);
+	}
+}
@@ -0,0 +1,54 @@
+package com.bdt.kiradb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 
+ * A constraint made of other queries on the same record type: either a
+ * record must match at least one of them, or it must not match any of them
+ * 
+ * @see Query#whereAnyOf(Query...)
+ * @see Query#whereNot(Query)
+ *
+ */
+public class QueryGroup extends FieldQuery {
+
+	private List<Query> queries;
+	private boolean negated;
+
+	/**
+	 * Construct a group of queries
+	 * 
+	 * @param queries the queries in the group
+	 * @param negated false if a record must match at least one of the queries,
+	 * true if it must match none of them
+	 */
+	public QueryGroup(List<Query> queries, boolean negated) {
+		super(null, null);
+		if (queries == null || queries.isEmpty()) {
+			throw new IllegalArgumentException("a query group needs at least one query");
+		}
+		this.queries = Collections.unmodifiableList(new ArrayList<Query>(queries));
+		this.negated = negated;
+	}
+
+	public List<Query> getQueries() {
+		return queries;
+	}
+	public boolean isNegated() {
+		return negated;
+	}
+
+	@Override
+	void appendCacheKey(StringBuilder sb) {
+		sb.append(negated ? "NOT(" : "ANY(");
+		for (Query q : queries) {
+			sb.append('(');
+			q.appendConstraintKey(sb);
+			sb.append(')');
+		}
+		sb.append(')');
+	}
+}
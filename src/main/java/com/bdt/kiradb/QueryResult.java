@@ -0,0 +1,64 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.document.Document;
+
+import java.util.List;
+
+/**
+ * The results of one executeQuery call.
+ * <p>
+ * Besides the matching records, a QueryResult carries the total number of
+ * records that matched, the query that was executed and how long the search
+ * took. Unlike KiraDb.getTotalHits and KiraDb.getLastQuery, these belong to
+ * this query alone, whatever other threads query at the same time.
+ *
+ * @param <T> The Record type
+ */
+public class QueryResult<T extends Record> extends LazyRecordList<T> {
+
+    private final Query query;
+    private final int totalHits;
+    private final String queryString;
+    private final long searchNanos;
+
+    QueryResult(KiraDb db, Query query, String keyField, List<Document> docs, QueryCursor nextCursor,
+            int totalHits, String queryString, long searchNanos) {
+        super(db, query.getRecord(), keyField, query.getSelectedFields(), docs, nextCursor);
+        this.query = query;
+        this.totalHits = totalHits;
+        this.queryString = queryString;
+        this.searchNanos = searchNanos;
+    }
+
+    /**
+     *
+     * @return int The number of records that matched, of which this page holds size()
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     *
+     * @return Query The query that was executed
+     */
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     *
+     * @return String The Lucene form of the query that was executed
+     */
+    public String getQueryString() {
+        return queryString;
+    }
+
+    /**
+     *
+     * @return long The time taken to search the index and read the stored fields, in nanoseconds
+     */
+    public long getSearchNanos() {
+        return searchNanos;
+    }
+}
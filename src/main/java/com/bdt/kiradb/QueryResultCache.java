@@ -0,0 +1,81 @@
+package com.bdt.kiradb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of recent queries, valid for one searcher generation.
+ * <p>
+ * An entry holds the primary keys of a page of hits, in order, with the
+ * query's total hits and next cursor, so its size does not depend on the
+ * size of the records. The stored fields of the hits are read again by key
+ * when the entry is used. All entries are
+ * dropped as soon as a query runs against a newer searcher, i.e. once a
+ * write has become visible.
+ */
+final class QueryResultCache {
+
+    /**
+     * A cached page of results
+     */
+    static final class Entry {
+        final String[] keys;
+        final QueryCursor next;
+        final int totalHits;
+        final String queryString;
+
+        Entry(String[] keys, QueryCursor next, int totalHits, String queryString) {
+            this.keys = keys;
+            this.next = next;
+            this.totalHits = totalHits;
+            this.queryString = queryString;
+        }
+    }
+
+    private final LruCache<String, Entry> entries;
+    // the searcher generation the entries were computed from
+    private long generation = -1L;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    QueryResultCache(int maxEntries) {
+        this.entries = new LruCache<String, Entry>(maxEntries);
+    }
+
+    /**
+     * @param generation The generation of the searcher the query would run on
+     * @return Entry The cached results, or null if there are none for this generation
+     */
+    Entry get(String key, long generation) {
+        Entry e = null;
+        synchronized (this) {
+            if (generation >= 0 && generation == this.generation) {
+                e = entries.get(key);
+            }
+        }
+        (e != null ? hits : misses).incrementAndGet();
+        return e;
+    }
+
+    void put(String key, long generation, Entry entry) {
+        if (generation < 0) {
+            return;
+        }
+        synchronized (this) {
+            if (generation > this.generation) {
+                entries.clear();
+                this.generation = generation;
+            }
+            if (generation == this.generation) {
+                entries.put(key, entry);
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,40 @@
+package com.bdt.kiradb;
+
+import java.io.IOException;
+
+/**
+ * Serializes Record objects for storage, both in the index (STORE_MODE_INDEX)
+ * and in a BackingStore (STORE_MODE_BACKING).
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see BinaryRecordCodec
+ * @see XStreamRecordCodec
+ */
+public interface RecordCodec {
+
+	/**
+	 *
+	 * @param r The Record object
+	 * @return byte[] The encoded object
+	 * @throws IOException
+	 */
+	byte[] encode(Record r) throws IOException;
+
+	/**
+	 *
+	 * @param data A buffer holding bytes produced by encode()
+	 * @param offset Where the encoded bytes start in the buffer
+	 * @param length The number of encoded bytes
+	 * @return T The decoded Record object
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	<T extends Record> T decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException;
+
+	/**
+	 *
+	 * @return String The MIME type of the encoded bytes, for stores that record one
+	 */
+	String getContentType();
+}
@@ -1,7 +1,10 @@
 package com.bdt.kiradb;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * RecordDescriptor are the unit of indexing and querying, analogous to a SQL "table".
@@ -15,14 +18,16 @@ import java.util.List;
  */
 public class RecordDescriptor {
 
-	public static int STORE_MODE_NONE = 0;
-	public static int STORE_MODE_INDEX = 1;
-	public static int STORE_MODE_BACKING = 2;
+	public static final int STORE_MODE_NONE = 0;
+	public static final int STORE_MODE_INDEX = 1;
+	public static final int STORE_MODE_BACKING = 2;
 
 	private String recordName;
 	private Field primaryKey;
 	private List<Field> fields;
+	private Map<String, Field> fieldsByName;
 	private int storeMode;
+	private boolean frozen;
 	
     /**
 	 * Construct a RecordDescriptor with the given name, with default object store mode (STORE_MODE_NONE)
@@ -72,6 +77,7 @@ public class RecordDescriptor {
 	 * @param recordName The globally unique name
 	 */
 	public void setRecordName(String recordName) {
+		checkFrozen();
 		this.recordName = recordName;
 	}
 	/**
@@ -88,6 +94,7 @@ public class RecordDescriptor {
 	 * @param primaryKey The record primary key
 	 */
 	public void setPrimaryKey(Field primaryKey) {
+		checkFrozen();
 		this.primaryKey = primaryKey;
 	}
 	/**
@@ -104,9 +111,15 @@ public class RecordDescriptor {
 	 * @param field The field to add
 	 */
 	public void addField(Field field) {
-		if (this.fields == null)
+		checkFrozen();
+		if (this.fields == null) {
 			this.fields = new ArrayList<Field>();
+			this.fieldsByName = new HashMap<String, Field>();
+		}
 		this.fields.add(field);
+		// the first field added under a name wins, as with a scan
+		if (!fieldsByName.containsKey(field.getName()))
+			fieldsByName.put(field.getName(), field);
 	}
 	/**
 	 * The record field set
@@ -124,11 +137,8 @@ public class RecordDescriptor {
 	 * @return Field The matching field, or null
 	 */
 	public Field getFieldByName(String name) {
-		if (fields != null) {
-			for (Field f: fields) {
-				if (f.getName().equals(name))
-					return f;
-			}
+		if (fieldsByName != null) {
+			return fieldsByName.get(name);
 		}
 		return null;
 	}
@@ -145,6 +155,7 @@ public class RecordDescriptor {
 	 * @param storeMode
 	 */
 	public void setStoreMode(int storeMode) {
+		checkFrozen();
 		this.storeMode = storeMode;
 	}
 	/**
@@ -154,5 +165,19 @@ public class RecordDescriptor {
 	public int getStoreMode() {
 		return storeMode;
 	}
+
+	/**
+	 * Make this descriptor read-only, so it can be shared (see RecordSchema)
+	 */
+	void freeze() {
+		if (fields != null)
+			fields = Collections.unmodifiableList(fields);
+		frozen = true;
+	}
+
+	private void checkFrozen() {
+		if (frozen)
+			throw new UnsupportedOperationException("record descriptor of " + recordName + " cannot be modified");
+	}
 	
 }
@@ -0,0 +1,190 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams every record matching a query, reading one hit at a time
+ * (see KiraDb.iterateQuery).
+ * <p>
+ * Unsorted queries are read in index order straight from the scorer of each
+ * index segment. Sorted queries are read in chunks with a search-after
+ * collector, so at most one chunk of hits is held in memory. Either way each
+ * object is deserialized or fetched only when next() returns it.
+ * <p>
+ * The iterator reads a single version of the index, which it holds open
+ * until it is closed. It closes itself once the last record is returned; an
+ * iterator that is abandoned earlier must be closed explicitly.
+ * <p>
+ * Since next() cannot throw checked exceptions, a failure to read a record is
+ * thrown as a RuntimeException whose cause is the exception raised.
+ *
+ * @param <T> The Record type
+ */
+public class RecordIterator<T extends Record> implements Iterator<T>, Closeable {
+
+	// hits read at a time from a sorted query
+	static final int CHUNK_SIZE = 1000;
+
+	private final KiraDb db;
+	private final SearcherManager searcherManager;
+	private IndexSearcher searcher;
+	private final Record record;
+	private final String keyField;
+	private final String[] selectedFields;
+	private final FieldSelector selector;
+	private final Hits hits;
+	private Document nextDoc;
+
+	RecordIterator(KiraDb db, SearcherManager searcherManager, IndexSearcher searcher, Record record,
+			String keyField, String[] selectedFields, FieldSelector selector, org.apache.lucene.search.Query query, Sort sort)
+			throws IOException, KiraException {
+		this.db = db;
+		this.searcherManager = searcherManager;
+		this.searcher = searcher;
+		this.record = record;
+		this.keyField = keyField;
+		this.selectedFields = selectedFields;
+		this.selector = selector;
+		this.hits = sort != null ? new SortedHits(searcher, query, sort) : new IndexOrderHits(searcher, query);
+		advance();
+	}
+
+	private void advance() throws IOException, KiraException {
+		nextDoc = searcher != null ? hits.next() : null;
+		if (nextDoc == null) {
+			close();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextDoc != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T next() {
+		if (nextDoc == null) {
+			throw new NoSuchElementException();
+		}
+		Document d = nextDoc;
+		try {
+			advance();
+			return (T) db.toRecord(record, keyField, selectedFields, d);
+		} catch (Exception e) {
+			throw new RuntimeException("cannot read query result " + d.get(keyField) + ": " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Release the index version being read. Safe to call more than once.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (searcher != null) {
+			IndexSearcher s = searcher;
+			searcher = null;
+			nextDoc = null;
+			searcherManager.release(s);
+		}
+	}
+
+	private interface Hits {
+		/**
+		 * @return Document The stored fields of the next hit, or null after the last
+		 */
+		Document next() throws IOException, KiraException;
+	}
+
+	/**
+	 * Hits in document order, segment by segment
+	 */
+	private final class IndexOrderHits implements Hits {
+		private final Weight weight;
+		private final IndexReader[] readers;
+		private int reader = -1;
+		private Scorer scorer;
+
+		IndexOrderHits(IndexSearcher searcher, org.apache.lucene.search.Query query) throws IOException {
+			this.weight = query.weight(searcher);
+			IndexReader[] subs = searcher.getIndexReader().getSequentialSubReaders();
+			this.readers = subs != null ? subs : new IndexReader[] { searcher.getIndexReader() };
+		}
+
+		@Override
+		public Document next() throws IOException {
+			while (true) {
+				if (scorer != null) {
+					int doc = scorer.nextDoc();
+					if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+						return readers[reader].document(doc, selector);
+					}
+					scorer = null;
+				}
+				if (++reader >= readers.length) {
+					return null;
+				}
+				scorer = weight.scorer(readers[reader], true, false);
+			}
+		}
+	}
+
+	/**
+	 * Hits in sort order, one page of CHUNK_SIZE at a time
+	 */
+	private final class SortedHits implements Hits {
+		private final IndexSearcher searcher;
+		private final org.apache.lucene.search.Query query;
+		private final Sort sort;
+		private ScoreDoc[] chunk = new ScoreDoc[0];
+		private int pos;
+		private QueryCursor cursor;
+		private boolean last;
+
+		SortedHits(IndexSearcher searcher, org.apache.lucene.search.Query query, Sort sort) {
+			this.searcher = searcher;
+			this.query = query;
+			this.sort = sort;
+		}
+
+		@Override
+		public Document next() throws IOException, KiraException {
+			if (pos == chunk.length) {
+				if (last) {
+					return null;
+				}
+				int numHits = Math.max(1, Math.min(CHUNK_SIZE, searcher.maxDoc()));
+				SearchAfterCollector collector = new SearchAfterCollector(sort, cursor, numHits);
+				searcher.search(query, collector);
+				chunk = collector.topDocs().scoreDocs;
+				pos = 0;
+				last = chunk.length < numHits;
+				if (chunk.length == 0) {
+					return null;
+				}
+				FieldDoc end = (FieldDoc) chunk[chunk.length - 1];
+				cursor = new QueryCursor(end.fields, end.doc);
+			}
+			return searcher.doc(chunk[pos++].doc, selector);
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package com.bdt.kiradb;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The record name, store mode, primary key and fields of an AnnotatedRecord
+ * class, read from its annotations once and cached for the life of the class.
+ * <p>
+ * Instances are immutable and thread-safe. Member values are read through
+ * accessors resolved when the schema is compiled, and fields are looked up by
+ * name in a hash map.
+ *
+ * @see AnnotatedRecord
+ */
+public final class RecordSchema {
+
+	private static final ConcurrentMap<Class<?>, RecordSchema> schemas = new ConcurrentHashMap<Class<?>, RecordSchema>();
+
+	private final String recordName;
+	private final int storeMode;
+	private final Member primaryKey;
+	private final Member[] fields;
+	private final Map<String, Member> fieldsByName;
+	private final RecordDescriptor descriptor;
+
+	private RecordSchema(String recordName, int storeMode, Member primaryKey, List<Member> fields) {
+		this.recordName = recordName;
+		this.storeMode = storeMode;
+		this.primaryKey = primaryKey;
+		this.fields = fields.toArray(new Member[fields.size()]);
+		Map<String, Member> byName = new HashMap<String, Member>();
+		RecordDescriptor dr = new RecordDescriptor(recordName, new Field(primaryKey.name, FieldType.STRING), storeMode);
+		for (Member m : this.fields) {
+			byName.put(m.name, m);
+			dr.addField(new Field(m.name, m.type));
+		}
+		this.fieldsByName = Collections.unmodifiableMap(byName);
+		dr.freeze();
+		this.descriptor = dr;
+	}
+
+	/**
+	 * The schema of an annotated Record class, compiled on first use
+	 *
+	 * @param c The Record class, annotated with @KiraRecord
+	 * @return RecordSchema The class schema
+	 * @throws IllegalArgumentException if the class annotations are missing or inconsistent
+	 */
+	public static RecordSchema forClass(Class<?> c) {
+		RecordSchema schema = schemas.get(c);
+		if (schema == null) {
+			schema = compile(c);
+			RecordSchema existing = schemas.putIfAbsent(c, schema);
+			if (existing != null) {
+				schema = existing;
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * The schema of a Record, if its class is annotated
+	 *
+	 * @param r The Record object
+	 * @return RecordSchema The schema, or null if the record defines its own descriptor
+	 */
+	static RecordSchema of(Record r) {
+		if (r instanceof AnnotatedRecord) {
+			return ((AnnotatedRecord) r).schema();
+		}
+		return null;
+	}
+
+	/**
+	 * The descriptor of a Record where only its record name, store mode and
+	 * field names and types are needed. Annotated records share their schema's
+	 * descriptor, which holds no values and cannot be modified.
+	 *
+	 * @param r The Record object
+	 * @return RecordDescriptor The record's descriptor
+	 */
+	static RecordDescriptor typeOf(Record r) {
+		RecordSchema schema = of(r);
+		return schema != null ? schema.getDescriptor() : r.descriptor();
+	}
+
+	/**
+	 * The primary key value of a Record, read directly for annotated records
+	 *
+	 * @param r The Record object
+	 * @return String The primary key value
+	 */
+	static String primaryKeyOf(Record r) {
+		RecordSchema schema = of(r);
+		if (schema != null) {
+			return schema.getPrimaryKeyValue(r);
+		}
+		return (String) r.descriptor().getPrimaryKey().getValue();
+	}
+
+	private static RecordSchema compile(Class<?> c) {
+		KiraRecord kr = c.getAnnotation(KiraRecord.class);
+		if (kr == null) {
+			throw new IllegalArgumentException(c.getName() + " is not annotated with @KiraRecord");
+		}
+		Member primaryKey = null;
+		List<Member> fields = new ArrayList<Member>();
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> k = c; k != null && k != Object.class; k = k.getSuperclass()) {
+			hierarchy.add(0, k);
+		}
+		// superclass members first, in declaration order
+		for (Class<?> k : hierarchy) {
+			for (java.lang.reflect.Field jf : k.getDeclaredFields()) {
+				if (Modifier.isStatic(jf.getModifiers())) {
+					continue;
+				}
+				KiraPrimaryKey pk = jf.getAnnotation(KiraPrimaryKey.class);
+				KiraField kf = jf.getAnnotation(KiraField.class);
+				if (pk != null) {
+					if (primaryKey != null) {
+						throw new IllegalArgumentException(c.getName() + " has more than one @KiraPrimaryKey");
+					}
+					primaryKey = new Member(pk.name(), FieldType.STRING, jf);
+				} else if (kf != null) {
+					fields.add(new Member(kf.name(), kf.type(), jf));
+				}
+			}
+		}
+		if (primaryKey == null) {
+			throw new IllegalArgumentException(c.getName() + " has no @KiraPrimaryKey");
+		}
+		return new RecordSchema(kr.name(), kr.storeMode(), primaryKey, fields);
+	}
+
+	/**
+	 * Build a descriptor holding the values of a record of this class
+	 *
+	 * @param record The Record object
+	 * @return RecordDescriptor A new descriptor
+	 */
+	public RecordDescriptor describe(Object record) {
+		RecordDescriptor dr = new RecordDescriptor(recordName,
+				new Field(primaryKey.name, FieldType.STRING, primaryKey.get(record)), storeMode);
+		for (Member m : fields) {
+			dr.addField(new Field(m.name, m.type, m.get(record)));
+		}
+		return dr;
+	}
+
+	/**
+	 * @return RecordDescriptor The record name, primary key name, store mode
+	 * and fields of this class, without values. The descriptor cannot be modified.
+	 */
+	public RecordDescriptor getDescriptor() {
+		return descriptor;
+	}
+
+	public String getRecordName() {
+		return recordName;
+	}
+
+	public String getPrimaryKeyName() {
+		return primaryKey.name;
+	}
+
+	public int getStoreMode() {
+		return storeMode;
+	}
+
+	/**
+	 * @param name The field name
+	 * @return FieldType The field type, or null if there is no such field
+	 */
+	public FieldType getFieldType(String name) {
+		Member m = fieldsByName.get(name);
+		return m != null ? m.type : null;
+	}
+
+	/**
+	 * @param record The Record object
+	 * @return String The primary key value
+	 */
+	public String getPrimaryKeyValue(Object record) {
+		return (String) primaryKey.get(record);
+	}
+
+	/**
+	 * An annotated member and its accessor
+	 */
+	private static final class Member {
+		final String name;
+		final FieldType type;
+		final java.lang.reflect.Field field;
+
+		Member(String name, FieldType type, java.lang.reflect.Field field) {
+			this.name = name.length() > 0 ? name : field.getName();
+			this.type = type;
+			this.field = field;
+			if (!accepts(type, field.getType())) {
+				throw new IllegalArgumentException(field.getDeclaringClass().getName() + "." + field.getName()
+						+ " cannot hold a " + type + " field");
+			}
+			field.setAccessible(true);
+		}
+
+		Object get(Object record) {
+			try {
+				return field.get(record);
+			} catch (IllegalAccessException e) {
+				// setAccessible succeeded when the schema was compiled
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static boolean accepts(FieldType type, Class<?> c) {
+			switch (type) {
+			case STRING:
+			case FULLTEXT:
+				return c == String.class;
+			case DATE:
+				return Date.class.isAssignableFrom(c);
+			case NUMBER:
+				return Number.class.isAssignableFrom(c) || (c.isPrimitive() && c != boolean.class && c != char.class);
+			}
+			return false;
+		}
+	}
+}
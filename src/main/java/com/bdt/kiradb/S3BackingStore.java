@@ -1,6 +1,6 @@
 package com.bdt.kiradb;
 
-import com.thoughtworks.xstream.XStream;
+import org.apache.commons.io.IOUtils;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.ServiceException;
@@ -9,11 +9,8 @@ import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.model.S3Object;
 import org.jets3t.service.security.AWSCredentials;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.Properties;
 
@@ -93,25 +90,16 @@ public class S3BackingStore extends BackingStore {
         return S3error;
     }
 
-    public void storeObject(XStream xstream, Record r) throws IOException, KiraException {
+    public void storeObject(RecordCodec codec, Record r) throws IOException, KiraException {
         String key = makeKey(r);
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos;
-
-        oos = xstream.createObjectOutputStream(bos);
-
-        oos.writeObject(r);
-        // Flush and close the ObjectOutputStream.
-        //
-        oos.flush();
-        oos.close();
+        byte[] data = codec.encode(r);
         S3Object recordObject;
         try {
-            recordObject = new S3Object(key, bos.toString());
+            recordObject = new S3Object(key, data);
         } catch (NoSuchAlgorithmException e1) {
             throw new KiraException("NoSuchAlgorithm " + e1.getMessage());
         }
-        recordObject.setContentType("text/xml");
+        recordObject.setContentType(codec.getContentType());
         recordObject.setAcl(bucketAcl);
         try {
             s3Service.putObject(bucket, recordObject);
@@ -122,7 +110,7 @@ public class S3BackingStore extends BackingStore {
 
     }
 
-    public <T extends Record> T retrieveObject(XStream xstream, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
+    public <T extends Record> T retrieveObject(RecordCodec codec, Record r, String value) throws KiraException, IOException, ClassNotFoundException {
         String key = makeKey(r, value);
 
         S3Object objectComplete;
@@ -133,19 +121,22 @@ public class S3BackingStore extends BackingStore {
             throw new KiraException("S3ServiceException " + e.getErrorMessage());
         }
 
-        ObjectInputStream ois;
+        byte[] data;
         try {
-            ois = xstream.createObjectInputStream(objectComplete.getDataInputStream());
+            InputStream in = objectComplete.getDataInputStream();
+            try {
+                data = IOUtils.toByteArray(in);
+            } finally {
+                in.close();
+            }
         } catch (ServiceException e) {
             throw new KiraException("ServiceException " + e.getMessage());
         }
-        Object result = ois.readObject();
-        ois.close();
-        return (T) result;
+        return (T) codec.decode(data, 0, data.length);
     }
 
     @Override
-    public void removeObject(XStream xstream, Record r, String value)
+    public void removeObject(RecordCodec codec, Record r, String value)
             throws KiraException, IOException, ClassNotFoundException {
         String key = makeKey(r, value);
         try {
@@ -157,7 +148,7 @@ public class S3BackingStore extends BackingStore {
     }
 
     @Override
-    public <T extends Record> T firstObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException {
+    public <T extends Record> T firstObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException {
         // will this really work if there are millions of records?
         try {
             objectsList = s3Service.listObjects(bucket, r.getRecordName() + "/", "/", Long.MAX_VALUE);
@@ -166,18 +157,18 @@ public class S3BackingStore extends BackingStore {
             throw new KiraException("S3ServiceException " + e.getErrorMessage());
         }
         objectIndex = 0;
-        return (T) nextObject(xstream, r);
+        return (T) nextObject(codec, r);
     }
 
     @Override
-    public <T extends Record> T nextObject(XStream xstream, Record r) throws KiraException, IOException, ClassNotFoundException {
+    public <T extends Record> T nextObject(RecordCodec codec, Record r) throws KiraException, IOException, ClassNotFoundException {
         if (objectIndex < objectsList.length) {
             S3Object recordObject = objectsList[objectIndex++];
             String[] parts = recordObject.getKey().split("/");
             if (parts.length != 2) {
                 throw new KiraException("unexpected key: " + recordObject.getKey());
             }
-            return retrieveObject(xstream, r, parts[1]);
+            return retrieveObject(codec, r, parts[1]);
         }
         return null;
     }
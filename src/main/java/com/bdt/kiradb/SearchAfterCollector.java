@@ -0,0 +1,180 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ScoreCachingWrappingScorer;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+
+import java.io.IOException;
+
+/**
+ * Collects the top hits that sort after a cursor. Only hits after the cursor
+ * reach the priority queue, so its size is the page size however deep the
+ * page is.
+ * <p>
+ * Hits are ordered as Lucene orders them: by each sort key in turn, field
+ * values ascending (nulls first for STRING fields) and scores descending,
+ * each reversed if its key is, then by document number.
+ */
+final class SearchAfterCollector extends Collector {
+
+	private final TopFieldCollector top;
+	private final SortField[] sortFields;
+	private final boolean all;
+	private final Object[] after;
+	private final int afterDoc;
+	private final boolean scored;
+	private int docBase;
+	private int totalHits;
+	private Scorer scorer;
+
+	// per sort key: the current segment's FieldCache values
+	private final Object[] values;
+
+	/**
+	 * @param sort The query sort
+	 * @param cursor The last hit of the previous page, or null for the first page
+	 * @param numHits The page size
+	 * @throws KiraException if the cursor was not made for this sort
+	 */
+	SearchAfterCollector(Sort sort, QueryCursor cursor, int numHits) throws IOException, KiraException {
+		this.sortFields = sort.getSort();
+		this.all = cursor == null;
+		this.after = cursor != null ? cursor.getValues() : null;
+		this.afterDoc = cursor != null ? cursor.getDoc() : -1;
+		this.values = new Object[sortFields.length];
+		boolean anyScore = false;
+		if (after != null && after.length != sortFields.length) {
+			throw new KiraException("cursor does not match the query sort");
+		}
+		for (int i = 0; i < sortFields.length; i++) {
+			SortField sortField = sortFields[i];
+			anyScore |= sortField.getType() == SortField.SCORE;
+			Class<?> c = sortField.getType() == SortField.LONG ? Long.class
+					: sortField.getType() == SortField.DOUBLE ? Double.class
+					: sortField.getType() == SortField.SCORE ? Float.class : String.class;
+			if (after != null && after[i] != null && !c.isInstance(after[i])) {
+				throw new KiraException("cursor does not match the query sort on "
+						+ (sortField.getField() != null ? sortField.getField() : "relevance"));
+			}
+		}
+		this.scored = anyScore;
+		this.top = TopFieldCollector.create(sort, numHits, true, false, false, false);
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) throws IOException {
+		// the score is compared here and by the collector's comparator
+		this.scorer = scored ? new ScoreCachingWrappingScorer(scorer) : scorer;
+		top.setScorer(this.scorer);
+	}
+
+	@Override
+	public void setNextReader(IndexReader reader, int docBase) throws IOException {
+		this.docBase = docBase;
+		top.setNextReader(reader, docBase);
+		if (all) {
+			return;
+		}
+		for (int i = 0; i < sortFields.length; i++) {
+			SortField sortField = sortFields[i];
+			String field = sortField.getField();
+			switch (sortField.getType()) {
+			case SortField.LONG:
+				values[i] = FieldCache.DEFAULT.getLongs(reader, field, (FieldCache.LongParser) sortField.getParser());
+				break;
+			case SortField.DOUBLE:
+				values[i] = FieldCache.DEFAULT.getDoubles(reader, field, (FieldCache.DoubleParser) sortField.getParser());
+				break;
+			case SortField.SCORE:
+				break;
+			default:
+				values[i] = FieldCache.DEFAULT.getStringIndex(reader, field);
+				break;
+			}
+		}
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		totalHits++;
+		if (all) {
+			top.collect(doc);
+			return;
+		}
+		for (int i = 0; i < sortFields.length; i++) {
+			int c = compareToCursor(i, doc);
+			if (c != 0) {
+				if (c > 0) {
+					top.collect(doc);
+				}
+				return;
+			}
+		}
+		if (docBase + doc > afterDoc) {
+			top.collect(doc);
+		}
+	}
+
+	/**
+	 * @return int Greater than zero if the hit sorts after the cursor on one key
+	 */
+	private int compareToCursor(int i, int doc) throws IOException {
+		SortField sortField = sortFields[i];
+		Object a = after[i];
+		int c;
+		switch (sortField.getType()) {
+		case SortField.LONG: {
+			long v = ((long[]) values[i])[doc];
+			long al = a != null ? (Long) a : 0L;
+			c = v < al ? -1 : (v == al ? 0 : 1);
+			break;
+		}
+		case SortField.DOUBLE: {
+			double v = ((double[]) values[i])[doc];
+			double ad = a != null ? (Double) a : 0.0;
+			c = v < ad ? -1 : (v > ad ? 1 : 0);
+			break;
+		}
+		case SortField.SCORE: {
+			// higher scores first
+			float v = scorer.score();
+			float af = a != null ? (Float) a : 0f;
+			c = v > af ? -1 : (v < af ? 1 : 0);
+			break;
+		}
+		default: {
+			FieldCache.StringIndex strings = (FieldCache.StringIndex) values[i];
+			String v = strings.lookup[strings.order[doc]];
+			if (v == null) {
+				c = a == null ? 0 : -1;
+			} else {
+				c = a == null ? 1 : v.compareTo((String) a);
+			}
+			break;
+		}
+		}
+		return sortField.getReverse() ? -c : c;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+
+	/**
+	 * @return int The number of hits, including those before the cursor
+	 */
+	int getTotalHits() {
+		return totalHits;
+	}
+
+	TopDocs topDocs() {
+		return top.topDocs();
+	}
+}
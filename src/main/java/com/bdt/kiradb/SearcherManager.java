@@ -0,0 +1,179 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shares one IndexSearcher across all queries of a KiraDb instance.
+ * <p>
+ * The searcher is opened on first use and handed out reference-counted:
+ * every acquire() must be paired with a release(). When a commit has made
+ * the current reader stale it is refreshed with IndexReader.reopen(), which
+ * only loads the changed segments; the old reader is closed once the last
+ * query using it releases it.
+ * <p>
+ * In near-real-time mode the reader is obtained from the shared group-commit
+ * writer instead (IndexWriter.getReader()), so queries see writes that have
+ * not been committed yet. Such a reader is refreshed when writes have been made
+ * since it was opened and either it is older than the allowed staleness or the
+ * caller asks to read its own writes.
+ */
+class SearcherManager {
+
+    private final File indexDirectory;
+
+    // guarded by this
+    private IndexSearcher current;
+    // the writer the current reader was obtained from, or null if opened on the directory
+    private SharedIndexWriter source;
+    // the last write visible to a near-real-time reader, and when it was opened
+    private long readerSequence;
+    private long openedAt;
+    // counts the searchers made current
+    private long generation;
+
+    SearcherManager(File indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Obtain the current searcher, reopening it first if the index has been committed since
+     *
+     * @return IndexSearcher A searcher that must be passed to release() when done
+     *
+     * @throws IOException
+     */
+    IndexSearcher acquire() throws IOException {
+        IndexSearcher searcher;
+        synchronized (this) {
+            if (current != null && source != null) {
+                close();
+            }
+            if (current == null) {
+                IndexReader reader = IndexReader.open(FSDirectory.open(indexDirectory), true);
+                current = new IndexSearcher(reader);
+                generation++;
+            }
+            searcher = current;
+            searcher.getIndexReader().incRef();
+        }
+        // checking for and loading a new commit reads the directory, so is done
+        // without the lock; only making the reopened reader current needs it
+        IndexReader old = searcher.getIndexReader();
+        IndexReader reader;
+        try {
+            if (old.isCurrent()) {
+                return searcher;
+            }
+            reader = old.reopen();
+        } catch (IOException e) {
+            release(searcher);
+            throw e;
+        }
+        if (reader == old) {
+            return searcher;
+        }
+        IndexSearcher next = null;
+        synchronized (this) {
+            if (current == searcher) {
+                current = new IndexSearcher(reader);
+                generation++;
+                old.decRef();
+                reader = null;
+            }
+            if (current != null && current != searcher && source == null) {
+                next = current;
+                next.getIndexReader().incRef();
+            }
+        }
+        if (reader != null) {
+            // another query made its own reopened reader current first
+            reader.close();
+        }
+        if (next == null) {
+            return searcher;
+        }
+        release(searcher);
+        return next;
+    }
+
+    /**
+     * Obtain a near-real-time searcher over the shared writer, including its uncommitted writes
+     *
+     * @param writer The shared group-commit writer
+     * @param maxStaleness Reuse the current reader if it is younger than this many milliseconds
+     * @param readYourWrites Refresh the reader if any write has been made since it was opened
+     *
+     * @return IndexSearcher A searcher that must be passed to release() when done
+     *
+     * @throws IOException
+     */
+    synchronized IndexSearcher acquire(SharedIndexWriter writer, long maxStaleness, boolean readYourWrites) throws IOException {
+        if (current != null && source != writer) {
+            close();
+        }
+        if (current == null) {
+            openFrom(writer);
+        } else if (writer.lastWrite() > readerSequence
+                && (readYourWrites || System.currentTimeMillis() - openedAt >= maxStaleness)) {
+            IndexReader old = current.getIndexReader();
+            openFrom(writer);
+            old.decRef();
+        }
+        current.getIndexReader().incRef();
+        return current;
+    }
+
+    private void openFrom(SharedIndexWriter writer) throws IOException {
+        // read the sequence first: the reader sees at least every write counted so far
+        long seq = writer.lastWrite();
+        IndexReader reader = writer.openReader();
+        current = new IndexSearcher(reader);
+        generation++;
+        source = writer;
+        readerSequence = seq;
+        openedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The generation of a searcher: it changes whenever the current searcher is replaced
+     *
+     * @param searcher A searcher obtained from acquire()
+     * @return long The generation of the searcher, or -1 if it is no longer current
+     */
+    synchronized long generationOf(IndexSearcher searcher) {
+        return searcher == current ? generation : -1L;
+    }
+
+    /**
+     * Release a searcher obtained from acquire()
+     *
+     * @param searcher The searcher
+     *
+     * @throws IOException
+     */
+    void release(IndexSearcher searcher) throws IOException {
+        if (searcher != null) {
+            searcher.getIndexReader().decRef();
+        }
+    }
+
+    /**
+     * Drop the current searcher. It is closed once in-flight queries release it,
+     * and the next acquire() opens the index afresh.
+     *
+     * @throws IOException
+     */
+    synchronized void close() throws IOException {
+        if (current != null) {
+            IndexReader reader = current.getIndexReader();
+            current = null;
+            source = null;
+            reader.decRef();
+        }
+    }
+}
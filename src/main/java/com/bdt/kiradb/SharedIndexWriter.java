@@ -0,0 +1,370 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived IndexWriter shared by all writers of a KiraDb instance.
+ * <p>
+ * Writes are applied to the writer immediately but only committed in groups:
+ * a background committer thread commits once <code>maxPendingWrites</code>
+ * writes are pending, once the oldest pending write is
+ * <code>maxCommitDelay</code> milliseconds old, or as soon as some caller is
+ * waiting for durability. All writes pending at that moment share the one commit.
+ * <p>
+ * When a write-ahead log is attached, writes are durable once logged and each
+ * commit is a checkpoint that lets the log drop the segments it covers.
+ * <p>
+ * Writes are made between beginApply and endApply. A batch that must be
+ * committed all or nothing, such as the merge of a parallel bulk load, is
+ * applied with applyAtomically, which excludes every other write, commit and
+ * near-real-time reader while it runs.
+ */
+class SharedIndexWriter {
+
+    /**
+     * Changes applied to the writer as one unit
+     */
+    interface Batch {
+        void apply(IndexWriter writer) throws IOException;
+    }
+
+    private final Logger logger = Logger.getLogger(SharedIndexWriter.class.getName());
+
+    private final IndexWriter writer;
+    private final WriteAheadLog log;
+    private final int maxPendingWrites;
+    private final long maxCommitDelay;
+    private final PrimaryKeyFilters keyFilters = new PrimaryKeyFilters();
+
+    // guards the sequence counters below
+    private final Object monitor = new Object();
+    // serializes commits and close
+    private final Object commitLock = new Object();
+    // writes and near-real-time readers share it, an atomic batch holds it alone
+    private final ReadWriteLock applyLock = new ReentrantReadWriteLock();
+
+    private long writeSequence;
+    private long committedSequence;
+    private long firstPendingAt;
+    private int waiters;
+    private boolean closed;
+    private IOException commitFailure;
+
+    private final Thread committer;
+
+    SharedIndexWriter(IndexWriter writer, WriteAheadLog log, int maxPendingWrites, long maxCommitDelay) {
+        this.writer = writer;
+        this.log = log;
+        this.maxPendingWrites = Math.max(1, maxPendingWrites);
+        this.maxCommitDelay = Math.max(1L, maxCommitDelay);
+        this.committer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "KiraDb-group-commit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    IndexWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * @return PrimaryKeyFilters The filters over the keys of the index this writer owns
+     */
+    PrimaryKeyFilters getKeyFilters() {
+        return keyFilters;
+    }
+
+    /**
+     * @return WriteAheadLog The log writes must be appended to, or null if there is none
+     */
+    WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * Take the shared side of the writer before applying a write to it.
+     * Must be followed by endApply.
+     *
+     * @throws IOException if the writer has been closed
+     */
+    void beginApply() throws IOException {
+        applyLock.readLock().lock();
+        synchronized (monitor) {
+            if (closed) {
+                applyLock.readLock().unlock();
+                throw new IOException("index writer closed");
+            }
+        }
+    }
+
+    void endApply() {
+        applyLock.readLock().unlock();
+    }
+
+    /**
+     * Apply a batch and commit it on its own. Writes pending beforehand are
+     * committed first, and no other write, commit or near-real-time reader
+     * runs until the batch is committed, so none sees part of it. If the batch
+     * or its commit fails, the writer is rolled back, which discards only the
+     * batch, and closed.
+     *
+     * @throws IOException if the batch failed and the writer is now closed
+     */
+    void applyAtomically(Batch batch) throws IOException {
+        applyLock.writeLock().lock();
+        try {
+            synchronized (commitLock) {
+                synchronized (monitor) {
+                    if (closed) {
+                        throw new IOException("index writer closed");
+                    }
+                }
+                commit();
+                boolean committed = false;
+                try {
+                    batch.apply(writer);
+                    writeApplied();
+                    commit();
+                    committed = true;
+                } finally {
+                    if (!committed) {
+                        logger.severe("atomic index update failed, rolling back the index writer");
+                        rollback();
+                    }
+                }
+            }
+        } finally {
+            applyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Open a near-real-time reader over the writer, which never sees part of an atomic batch
+     *
+     * @return IndexReader The reader
+     * @throws IOException
+     */
+    IndexReader openReader() throws IOException {
+        beginApply();
+        try {
+            return writer.getReader();
+        } finally {
+            endApply();
+        }
+    }
+
+    /**
+     * @return boolean true once the writer has been closed or rolled back
+     */
+    boolean isClosed() {
+        synchronized (monitor) {
+            return closed;
+        }
+    }
+
+    /**
+     * Record that a write has been applied to the writer
+     *
+     * @return long The sequence number of the write, for use with awaitDurable
+     */
+    long writeApplied() {
+        synchronized (monitor) {
+            if (writeSequence == committedSequence) {
+                firstPendingAt = System.currentTimeMillis();
+            }
+            long seq = ++writeSequence;
+            if (writeSequence - committedSequence >= maxPendingWrites) {
+                monitor.notifyAll();
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * @return long The sequence number of the last write applied
+     */
+    long lastWrite() {
+        synchronized (monitor) {
+            return writeSequence;
+        }
+    }
+
+    /**
+     * Block until the write with the given sequence number has been committed.
+     * Concurrent waiters are grouped into a single commit.
+     *
+     * @param seq The write sequence number
+     * @throws IOException if the commit failed
+     * @throws InterruptedException
+     */
+    void awaitDurable(long seq) throws IOException, InterruptedException {
+        synchronized (monitor) {
+            waiters++;
+            try {
+                monitor.notifyAll();
+                while (committedSequence < seq) {
+                    if (commitFailure != null) {
+                        throw commitFailure;
+                    }
+                    if (closed) {
+                        throw new IOException("index writer closed before commit");
+                    }
+                    monitor.wait();
+                }
+            } finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Commit all pending writes now, on the calling thread. Does nothing once
+     * the writer has been closed or rolled back.
+     *
+     * @throws IOException
+     */
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            long target;
+            synchronized (monitor) {
+                // the committer may have seen the writer open just before close() took commitLock
+                if (closed) {
+                    return;
+                }
+                target = writeSequence;
+            }
+            try {
+                long firstLiveSegment = log != null ? log.roll() : 0L;
+                writer.commit();
+                if (log != null) {
+                    log.checkpointed(firstLiveSegment);
+                }
+            } catch (IOException e) {
+                synchronized (monitor) {
+                    commitFailure = e;
+                    monitor.notifyAll();
+                }
+                throw e;
+            }
+            synchronized (monitor) {
+                commitFailure = null;
+                if (target > committedSequence) {
+                    committedSequence = target;
+                }
+                if (writeSequence > committedSequence) {
+                    firstPendingAt = System.currentTimeMillis();
+                }
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Commit any pending writes, stop the committer and close the writer
+     *
+     * @throws IOException
+     */
+    void close() throws IOException {
+        synchronized (commitLock) {
+            synchronized (monitor) {
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                commit();
+            } finally {
+                synchronized (monitor) {
+                    closed = true;
+                    monitor.notifyAll();
+                }
+                try {
+                    writer.close();
+                } finally {
+                    if (log != null) {
+                        log.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard all uncommitted writes and close the writer
+     *
+     * @throws IOException
+     */
+    void rollback() throws IOException {
+        synchronized (commitLock) {
+            synchronized (monitor) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                monitor.notifyAll();
+            }
+            try {
+                writer.rollback();
+            } finally {
+                if (log != null) {
+                    log.close();
+                }
+            }
+        }
+    }
+
+    private boolean commitDue() {
+        long pending = writeSequence - committedSequence;
+        if (pending == 0) {
+            return false;
+        }
+        return waiters > 0 || pending >= maxPendingWrites
+                || System.currentTimeMillis() - firstPendingAt >= maxCommitDelay;
+    }
+
+    private void commitLoop() {
+        while (true) {
+            synchronized (monitor) {
+                try {
+                    while (!closed && !commitDue()) {
+                        if (writeSequence == committedSequence) {
+                            monitor.wait();
+                        } else {
+                            long remaining = maxCommitDelay - (System.currentTimeMillis() - firstPendingAt);
+                            monitor.wait(Math.max(1L, remaining));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    logger.warning("group commit thread interrupted");
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                commit();
+            } catch (Exception e) {
+                logger.severe("group commit failed: " + e.getMessage());
+                // back off rather than spin on a failing commit
+                synchronized (monitor) {
+                    try {
+                        monitor.wait(maxCommitDelay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
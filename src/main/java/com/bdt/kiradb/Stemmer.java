@@ -1,10 +1,9 @@
 package com.bdt.kiradb;
 
-import java.io.IOException;
-import java.io.StringReader;
-import java.util.Iterator;
 import java.util.Set;
 
+import org.apache.lucene.analysis.CharArraySet;
+
 /**
  * Simple Stemmer class
  * 
@@ -15,63 +14,53 @@ import java.util.Set;
 public class Stemmer {
 
 	public static String stemString(String inStr, Set stopwords) {
-		char[] w = new char[501];
-		PorterStemmer s = new PorterStemmer();
-
-		StringReader in = new StringReader(inStr);
-		StringBuffer result = new StringBuffer();
-		try {
-			while (true)
-
-			{
-				int ch;
-				ch = in.read();
-
-				if (Character.isLetter((char) ch)) {
-					int j = 0;
-					while (true) {
-						ch = Character.toLowerCase((char) ch);
-						w[j] = (char) ch;
-						if (j < 500)
-							j++;
-						ch = in.read();
-						if (!Character.isLetter((char) ch)) {
-							String u = new String(w,0,j);
-
-							Iterator iter = stopwords.iterator();
-							boolean stop = false;
-						    while (iter.hasNext()) {
-						    	String thisStop = (String) iter.next();
-						    	//logger.info("check word: " + u + " against stop word " + thisStop);
-						    	if (u.equals(thisStop)) {
-						    		stop = true;
-						    		break;
-						    	}
-						    }
-						    if (!stop) {
-								/* to test add(char ch) */
-								for (int c = 0; c < j; c++)
-									s.add(w[c]);
-						    	s.stem();
+		StringBuilder result = new StringBuilder();
+		appendStems(inStr, stopwords, new PorterStemmer(), new char[501], result);
+		return result.toString().trim();
+	}
 
-						    	result.append(s.toString());
-						    	result.append(" ");
-						    }
-							break;
+	/**
+	 * Append the stem of each word in inStr that is not a stop word to out,
+	 * each followed by a space, reusing the given stemmer and word buffer
+	 *
+	 * @param inStr The text to stem
+	 * @param stopwords The words to leave out
+	 * @param s The stemmer
+	 * @param w The word buffer, of at least 501 chars
+	 * @param out Where the stems are appended
+	 */
+	static void appendStems(String inStr, Set stopwords, PorterStemmer s, char[] w, StringBuilder out) {
+		int pos = 0;
+		int len = inStr.length();
+		while (true) {
+			int ch = pos < len ? inStr.charAt(pos++) : -1;
 
+			if (Character.isLetter((char) ch)) {
+				int j = 0;
+				while (true) {
+					ch = Character.toLowerCase((char) ch);
+					w[j] = (char) ch;
+					if (j < 500)
+						j++;
+					ch = pos < len ? inStr.charAt(pos++) : -1;
+					if (!Character.isLetter((char) ch)) {
+						boolean stop = stopwords instanceof CharArraySet
+								? ((CharArraySet) stopwords).contains(w, 0, j)
+								: stopwords.contains(new String(w, 0, j));
+						if (!stop) {
+							for (int c = 0; c < j; c++)
+								s.add(w[c]);
+							s.stem();
+							out.append(s.getResultBuffer(), 0, s.getResultLength());
+							out.append(' ');
 						}
+						break;
 					}
 				}
-				if (ch < 0)
-					break;
-				// System.out.print((char) ch);
 			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-
+			if (ch < 0)
+				break;
 		}
-		return result.toString().trim();
 	}
 
 }
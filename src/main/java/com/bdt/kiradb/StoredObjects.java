@@ -0,0 +1,99 @@
+package com.bdt.kiradb;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The layout of objects stored in the index (STORE_MODE_INDEX).
+ * <p>
+ * The stored field holds one flag byte followed by the codec output, either
+ * as is or deflated. Objects smaller than a few dozen bytes, and objects that
+ * do not shrink, are stored uncompressed. Fields without a recognised flag
+ * byte hold codec output directly, as written before the flag was introduced.
+ */
+final class StoredObjects {
+
+    static final byte RAW = 0;
+    static final byte DEFLATED = 1;
+
+    // deflating less than this is not worth it
+    private static final int MIN_COMPRESS_LENGTH = 64;
+
+    private StoredObjects() {
+    }
+
+    /**
+     * @param encoded The codec output
+     * @param compress true to deflate the object when that makes it smaller
+     * @return byte[] The stored field value
+     */
+    static byte[] pack(byte[] encoded, boolean compress) {
+        if (compress && encoded.length >= MIN_COMPRESS_LENGTH) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(encoded);
+                deflater.finish();
+                byte[] buf = new byte[encoded.length];
+                buf[0] = DEFLATED;
+                int n = 1;
+                while (!deflater.finished() && n < buf.length) {
+                    n += deflater.deflate(buf, n, buf.length - n);
+                }
+                if (deflater.finished()) {
+                    byte[] packed = new byte[n];
+                    System.arraycopy(buf, 0, packed, 0, n);
+                    return packed;
+                }
+                // no smaller than the original
+            } finally {
+                deflater.end();
+            }
+        }
+        byte[] packed = new byte[encoded.length + 1];
+        packed[0] = RAW;
+        System.arraycopy(encoded, 0, packed, 1, encoded.length);
+        return packed;
+    }
+
+    /**
+     * Decode a stored field value straight from the buffer it was read into
+     */
+    static <T extends Record> T unpack(RecordCodec codec, byte[] data, int offset, int length)
+            throws IOException, ClassNotFoundException {
+        if (length == 0) {
+            throw new IOException("empty stored object");
+        }
+        switch (data[offset]) {
+        case RAW:
+            return codec.<T>decode(data, offset + 1, length - 1);
+        case DEFLATED:
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, offset + 1, length - 1);
+                byte[] buf = new byte[Math.max(256, length * 4)];
+                int n = 0;
+                while (!inflater.finished()) {
+                    if (n == buf.length) {
+                        byte[] bigger = new byte[buf.length * 2];
+                        System.arraycopy(buf, 0, bigger, 0, n);
+                        buf = bigger;
+                    }
+                    int inflated = inflater.inflate(buf, n, buf.length - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("truncated compressed object");
+                    }
+                    n += inflated;
+                }
+                return codec.<T>decode(buf, 0, n);
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed object: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        default:
+            return codec.<T>decode(data, offset, length);
+        }
+    }
+}
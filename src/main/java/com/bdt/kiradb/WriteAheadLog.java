@@ -0,0 +1,342 @@
+package com.bdt.kiradb;
+
+import org.apache.lucene.index.Term;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the index writes made through a shared writer.
+ * <p>
+ * Every write is appended to the current log segment and fsynced before it is
+ * acknowledged; concurrent writers share one fsync. Lucene commits are then only
+ * checkpoints: before a commit the log is rolled to a new segment, and once the
+ * commit has succeeded the older segments are deleted. Segments left behind by a
+ * crash are replayed into the index on startup.
+ * <p>
+ * Each entry is written as [length][CRC32][op][term field][term text][payload].
+ * Replay stops at the first entry that is incomplete or fails its checksum, which
+ * is what a write torn by a crash looks like.
+ */
+class WriteAheadLog {
+
+    static final byte OP_UPDATE = 1;
+    static final byte OP_DELETE = 2;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int STRIPES = 64;
+    // larger lengths can only come from a corrupt entry
+    private static final int MAX_ENTRY_LENGTH = 256 * 1024 * 1024;
+
+    /**
+     * Receives the entries of the log during replay
+     */
+    interface Replayer {
+        void update(Term t, byte[] payload) throws IOException;
+
+        void delete(Term t) throws IOException;
+    }
+
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+    private final File directory;
+
+    // writers hold the read lock from append until the write reaches the index; roll takes the write lock
+    private final ReentrantReadWriteLock rollLock = new ReentrantReadWriteLock();
+    // writes to the same key are appended and applied in the same order
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Object syncLock = new Object();
+
+    // guarded by this
+    private long segment;
+    private FileOutputStream out;
+    private DataOutputStream data;
+    private long appendedSequence;
+    private boolean closed;
+
+    private volatile long syncedSequence;
+
+    WriteAheadLog(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("cannot create write-ahead log directory " + directory);
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        long[] existing = segmentNumbers(directory);
+        this.segment = existing.length == 0 ? 1L : existing[existing.length - 1] + 1;
+    }
+
+    /**
+     * Begin a write for the given key: append() and the index write must follow, then exit()
+     */
+    void enter(Term t) {
+        rollLock.readLock().lock();
+        stripes[(t.hashCode() & 0x7fffffff) % STRIPES].lock();
+    }
+
+    void exit(Term t) {
+        stripes[(t.hashCode() & 0x7fffffff) % STRIPES].unlock();
+        rollLock.readLock().unlock();
+    }
+
+    /**
+     * Append an entry to the current segment. The entry is not durable until sync() is called.
+     *
+     * @return long The sequence number of the entry, for use with sync
+     */
+    long append(byte op, Term t, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 64);
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(op);
+        body.writeUTF(t.field());
+        body.writeUTF(t.text());
+        body.write(payload);
+        body.flush();
+        byte[] entry = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(entry);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("write-ahead log closed");
+            }
+            if (data == null) {
+                out = new FileOutputStream(segmentFile(directory, segment), true);
+                data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            }
+            data.writeInt(entry.length);
+            data.writeInt((int) crc.getValue());
+            data.write(entry);
+            return ++appendedSequence;
+        }
+    }
+
+    synchronized long lastAppended() {
+        return appendedSequence;
+    }
+
+    /**
+     * Block until the entry with the given sequence number is on disk. A caller
+     * finding another caller's fsync in progress waits for it and, if that fsync
+     * covered its entry, returns without one of its own.
+     *
+     * @param seq The entry sequence number
+     * @throws IOException
+     */
+    void sync(long seq) throws IOException {
+        if (syncedSequence >= seq) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedSequence >= seq) {
+                return;
+            }
+            FileOutputStream file;
+            long target;
+            synchronized (this) {
+                target = appendedSequence;
+                if (data == null) {
+                    // rolled since the append, which synced the entry
+                    syncedSequence = target;
+                    return;
+                }
+                data.flush();
+                file = out;
+            }
+            file.getChannel().force(false);
+            syncedSequence = target;
+        }
+    }
+
+    /**
+     * Close the current segment and start a new one. Every entry in the closed
+     * segments has been applied to the index writer by the time this returns.
+     *
+     * @return long The number of the new segment; older segments may be deleted
+     * once the index has been committed
+     * @throws IOException
+     */
+    long roll() throws IOException {
+        rollLock.writeLock().lock();
+        try {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    closeSegment();
+                    segment++;
+                    return segment;
+                }
+            }
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the segments older than the given one, now that the index holds their entries
+     */
+    void checkpointed(long firstLiveSegment) {
+        for (long n : segmentNumbers(directory)) {
+            if (n < firstLiveSegment) {
+                File f = segmentFile(directory, n);
+                if (!f.delete()) {
+                    logger.warning("cannot delete write-ahead log segment " + f);
+                }
+            }
+        }
+    }
+
+    void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closeSegment();
+            }
+        }
+    }
+
+    // caller holds syncLock and this
+    private void closeSegment() throws IOException {
+        if (data == null) {
+            return;
+        }
+        try {
+            data.flush();
+            out.getChannel().force(false);
+            syncedSequence = appendedSequence;
+        } finally {
+            data.close();
+            data = null;
+            out = null;
+        }
+    }
+
+    static boolean hasSegments(File directory) {
+        return segmentNumbers(directory).length > 0;
+    }
+
+    static void deleteSegments(File directory) {
+        for (long n : segmentNumbers(directory)) {
+            File f = segmentFile(directory, n);
+            if (!f.delete()) {
+                logger.warning("cannot delete write-ahead log segment " + f);
+            }
+        }
+    }
+
+    /**
+     * Pass every entry of the log, oldest first, to the replayer, stopping at a torn entry
+     *
+     * @return int The number of entries replayed
+     * @throws IOException
+     */
+    static int replay(File directory, Replayer replayer) throws IOException {
+        int count = 0;
+        for (long n : segmentNumbers(directory)) {
+            File f = segmentFile(directory, n);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    byte[] entry;
+                    int checksum;
+                    try {
+                        if (length <= 0 || length > MAX_ENTRY_LENGTH) {
+                            throw new EOFException();
+                        }
+                        checksum = in.readInt();
+                        entry = new byte[length];
+                        in.readFully(entry);
+                    } catch (EOFException e) {
+                        logger.warning("ignoring torn entry at the end of write-ahead log segment " + f);
+                        return count;
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(entry);
+                    if ((int) crc.getValue() != checksum) {
+                        logger.warning("ignoring entry with bad checksum in write-ahead log segment " + f);
+                        return count;
+                    }
+                    apply(entry, replayer);
+                    count++;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return count;
+    }
+
+    private static void apply(byte[] entry, Replayer replayer) throws IOException {
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(entry));
+        byte op = body.readByte();
+        Term t = new Term(body.readUTF(), body.readUTF());
+        byte[] payload = new byte[body.available()];
+        body.readFully(payload);
+        switch (op) {
+        case OP_UPDATE:
+            replayer.update(t, payload);
+            break;
+        case OP_DELETE:
+            replayer.delete(t);
+            break;
+        default:
+            throw new IOException("unknown write-ahead log operation " + op);
+        }
+    }
+
+    private static File segmentFile(File directory, long n) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%016d", n) + SEGMENT_SUFFIX);
+    }
+
+    private static long[] segmentNumbers(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                numbers[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                logger.warning("ignoring unexpected file in write-ahead log directory: " + name);
+            }
+        }
+        long[] result = Arrays.copyOf(numbers, count);
+        Arrays.sort(result);
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+package com.bdt.kiradb;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * The original KiraDB object format: XStream XML object streams.
+ * <p>
+ * Handles any object graph XStream can, at the cost of size and parse time.
+ * Also reads plain XStream XML documents (as written by XStream.toXML).
+ */
+public class XStreamRecordCodec implements RecordCodec {
+
+    private static final String ENCODING = "UTF-8";
+    private static final String OBJECT_STREAM = "<object-stream";
+
+    private final XStream xstream;
+
+    public XStreamRecordCodec() {
+        this(new XStream());
+    }
+
+    /**
+     * @param xstream A configured XStream instance
+     */
+    public XStreamRecordCodec(XStream xstream) {
+        this.xstream = xstream;
+    }
+
+    @Override
+    public byte[] encode(Record r) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = xstream.createObjectOutputStream(bos);
+        oos.writeObject(r);
+        // Flush and close the ObjectOutputStream.
+        //
+        oos.flush();
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T extends Record> T decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        try {
+            String xml = new String(data, offset, length, ENCODING);
+            if (!xml.trim().startsWith(OBJECT_STREAM)) {
+                return (T) xstream.fromXML(xml);
+            }
+            ObjectInputStream ois = xstream.createObjectInputStream(new ByteArrayInputStream(data, offset, length));
+            try {
+                return (T) ois.readObject();
+            } finally {
+                ois.close();
+            }
+        } catch (XStreamException e) {
+            throw new IOException("cannot decode XML object: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return "text/xml";
+    }
+}
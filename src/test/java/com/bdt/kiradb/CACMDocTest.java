@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -44,6 +45,8 @@ public class CACMDocTest {
     	System.out.println("Indexing  " + files.size() + " documents...");
 
     	int nDocs = 0;
+    	BulkLoadSession session = db.beginBulkLoad(BulkLoadSession.DEFAULT_RAM_BUFFER_MB,
+    			Runtime.getRuntime().availableProcessors());
     	for (File f : files) {
         	//System.out.println("Found document: " + f.getName());
         	String baseName = f.getName();
@@ -78,11 +81,13 @@ public class CACMDocTest {
         	doc.setTitle(title);
         	doc.setBody(fData);
 
-        	db.storeObject(doc);
+        	session.add(doc);
         	nDocs++;
 
     	}
-        System.out.println("Indexed docs: " + nDocs);
+    	session.finish();
+        System.out.println("Indexed docs: " + nDocs + " in " + session.getElapsedMillis() + "ms ("
+                + Math.round(session.getDocsPerSecond()) + " docs/s)");
 
         long startTime = System.nanoTime();
     	List<Record> qResults = db.executeQuery(new TextDocument(), TextDocument.BODY, "system", Integer.MAX_VALUE, 0, null, true);
@@ -96,6 +101,17 @@ public class CACMDocTest {
 
         assertTrue("The query should have matched exactly 719 documents", qResults.size() == 719);
 
+        // the ten most relevant, ranked without sorting every match
+        Query ranked = new Query(new TextDocument());
+        ranked.whereMatches(TextDocument.BODY, "system");
+        ranked.setSortByRelevance(true);
+        ranked.setLimit(10);
+        startTime = System.nanoTime();
+        QueryResult<Record> top = db.executeQuery(ranked);
+        System.out.println("Ranked query duration: " + (System.nanoTime() - startTime)/1000000000.0f + "s");
+        assertEquals("The ranked query should count every match", 719, top.getTotalHits());
+        assertEquals(10, top.size());
+
 
     }
 
@@ -0,0 +1,98 @@
+package com.bdt.kiradb;
+
+import com.bdt.kiradb.mykdbapp.Expense;
+import org.apache.lucene.document.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Prints the bytes allocated per record by buildDocument, with and without
+ * reusing the thread's DocumentTemplate. The figures depend on the JIT and
+ * the JDK, so nothing is asserted; like CACMDocTest this is excluded from the
+ * default build, run it with -Dtest=DocumentAllocationTest.
+ */
+public class DocumentAllocationTest {
+	private static final int RECORDS = 20000;
+
+	KiraDb db;
+
+	@Before
+	public void setup() throws KiraCorruptIndexException, IOException {
+		db = new KiraDb(new File("KiraDBIndex"));
+	}
+
+	@After
+	public void teardown() throws IOException {
+		db.deleteIndex();
+	}
+
+	@Test
+	public void testAllocationPerRecord() throws IOException {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Skipping allocation benchmark, thread allocation counters not available");
+			return;
+		}
+		com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) mx;
+		long tid = Thread.currentThread().getId();
+
+		Expense e = new Expense();
+		e.setTxId("alloc1");
+		e.setAmount(new BigDecimal("19.99"));
+		e.setCategory("Household");
+		e.setDate(new Date());
+		e.setMemo("Replacement light bulbs for the kitchen and hallway");
+		e.setPayee("Hardware Store");
+		RecordDescriptor dr = e.descriptor();
+
+		for (int i = 0; i < RECORDS; i++) {
+			db.buildDocument(e, dr);
+			buildUnshared(e, dr);
+		}
+		long before = tmx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < RECORDS; i++) {
+			buildUnshared(e, dr);
+		}
+		long unshared = (tmx.getThreadAllocatedBytes(tid) - before) / RECORDS;
+		before = tmx.getThreadAllocatedBytes(tid);
+		for (int i = 0; i < RECORDS; i++) {
+			db.buildDocument(e, dr);
+		}
+		long reused = (tmx.getThreadAllocatedBytes(tid) - before) / RECORDS;
+		System.out.println("buildDocument allocates " + unshared + " bytes per record with a new template, "
+				+ reused + " bytes reusing the thread's template");
+	}
+
+	/**
+	 * The document buildDocument builds, from a new template and so new
+	 * Document and Field objects
+	 */
+	private Document buildUnshared(Record r, RecordDescriptor dr) throws IOException {
+		DocumentTemplate template = new DocumentTemplate(dr.getRecordName());
+		Document doc = template.begin();
+		template.add("type", FieldType.STRING, dr.getRecordName());
+		Field pk = dr.getPrimaryKey();
+		template.add(template.primaryKeyField(pk.getName()), pk.getType(), pk.getValue());
+		List<Field> fields = dr.getFields();
+		if (fields != null) {
+			for (Field f : fields) {
+				if (f.getValue() != null) {
+					template.add(f.getName(), f.getType(), f.getValue());
+				}
+			}
+		}
+		if ((dr.getStoreMode() & RecordDescriptor.STORE_MODE_INDEX) != 0) {
+			template.addBinary("object", StoredObjects.pack(db.getRecordCodec().encode(r), false));
+		}
+		return doc;
+	}
+}
@@ -0,0 +1,120 @@
+package com.bdt.kiradb;
+
+import com.bdt.kiradb.mykdbapp.Expense;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DocumentTemplateTest {
+	KiraDb db;
+
+	@Before
+	public void setup() throws KiraCorruptIndexException, IOException {
+		db = new KiraDb(new File("KiraDBIndex"));
+	}
+
+	@After
+	public void teardown() throws IOException {
+		db.deleteIndex();
+	}
+
+	@Test
+	public void testFieldsReused() throws Exception {
+		Expense e = new Expense();
+		e.setTxId("reuse1");
+		e.setAmount(new BigDecimal("19.99"));
+		e.setCategory("Household");
+		e.setDate(new Date());
+		e.setMemo("Replacement light bulbs");
+		Document doc = db.buildDocument(e, e.descriptor());
+		Fieldable category = doc.getFieldable(Expense.CATEGORY);
+		Fieldable memo = doc.getFieldable(Expense.MEMO);
+		Fieldable[] date = doc.getFieldables(Expense.DATE);
+
+		// the next record of the same type on this thread fills in the same fields
+		Expense next = new Expense();
+		next.setTxId("reuse2");
+		next.setAmount(new BigDecimal("5.00"));
+		next.setCategory("Garden");
+		next.setDate(new Date());
+		next.setMemo("Seed packets");
+		Document nextDoc = db.buildDocument(next, next.descriptor());
+		assertTrue("field instances should be reused", category == nextDoc.getFieldable(Expense.CATEGORY));
+		assertTrue(memo == nextDoc.getFieldable(Expense.MEMO));
+		Fieldable[] nextDate = nextDoc.getFieldables(Expense.DATE);
+		assertEquals("stored and numeric date fields", 2, nextDate.length);
+		for (int i = 0; i < date.length; i++) {
+			assertTrue("date field instances should be reused", date[i] == nextDate[i]);
+		}
+		assertEquals("Garden", nextDoc.get(Expense.CATEGORY));
+
+		// another thread builds its own document
+		final Document[] other = new Document[1];
+		final Exception[] failure = new Exception[1];
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Expense x = new Expense();
+					x.setTxId("reuse3");
+					x.setCategory("Travel");
+					other[0] = db.buildDocument(x, x.descriptor());
+				} catch (Exception ex) {
+					failure[0] = ex;
+				}
+			}
+		});
+		t.start();
+		t.join();
+		assertNull(failure[0]);
+		assertTrue("threads should not share documents", other[0] != nextDoc);
+		assertTrue("threads should not share fields", other[0].getFieldable(Expense.CATEGORY) != category);
+		assertEquals("the other thread should not change this thread's document", "Garden", nextDoc.get(Expense.CATEGORY));
+	}
+
+	@Test
+	public void testIndexedForm() throws IOException {
+		Date when = new Date();
+		Expense e = new Expense();
+		e.setTxId("form1");
+		e.setCategory("Household");
+		e.setDate(when);
+		e.setMemo("The Running Foxes were jumping over lazy dogs");
+		e.setPayee("Pet Store");
+
+		Document doc = db.buildDocument(e, e.descriptor());
+		Calendar c = Calendar.getInstance();
+		c.setTime(when);
+		String date = String.format("%04d%02d%02d%02d%02d%02d.%04d",
+				c.get(Calendar.YEAR), c.get(Calendar.MONTH), c.get(Calendar.DAY_OF_MONTH),
+				c.get(Calendar.HOUR_OF_DAY), c.get(Calendar.MINUTE), c.get(Calendar.SECOND), c.get(Calendar.MILLISECOND));
+		assertEquals("dates should be indexed as before", date, doc.get(Expense.DATE));
+		assertEquals("full text should be indexed as before",
+				e.getMemo().toLowerCase() + "\n" + Stemmer.stemString(e.getMemo(), StandardAnalyzer.STOP_WORDS_SET),
+				doc.get(Expense.MEMO));
+		assertEquals("form1", doc.get("ex_txId"));
+
+		// the next record of the same type reuses the document
+		Expense next = new Expense();
+		next.setTxId("form2");
+		next.setCategory("Garden");
+		Document nextDoc = db.buildDocument(next, next.descriptor());
+		assertTrue("documents should be reused", doc == nextDoc);
+		assertEquals("form2", nextDoc.get("ex_txId"));
+		assertEquals("Garden", nextDoc.get(Expense.CATEGORY));
+		assertNull("null fields should not be carried over", nextDoc.get(Expense.MEMO));
+		assertEquals("type, key and category fields", 3, nextDoc.getFields().size());
+	}
+}
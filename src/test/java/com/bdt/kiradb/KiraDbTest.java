@@ -3,18 +3,25 @@ package com.bdt.kiradb;
 import com.bdt.kiradb.mykdbapp.Expense;
 import com.bdt.kiradb.mykdbapp.Person;
 import com.bdt.kiradb.mykdbapp.TextDocument;
+import com.bdt.kiradb.mykdbapp.Track;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.lucene.index.IndexWriter;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -337,6 +344,1230 @@ public class KiraDbTest {
     	}
     }
 
+    @Test
+    public void testSearcherRefresh() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        // the shared searcher must pick up every committed write
+        for (int i = 0; i < 20; i++) {
+            Person xp = new Person();
+            xp.setAccount("r" + i);
+            xp.setName("Refresh " + i);
+            xp.setCreatedAt(new Date());
+            db.storeObject(xp);
+            List<Person> all = db.executeQuery(new Person(), (String)null, null, 100, 0, null, true);
+            assertEquals("query should see the write just made", i + 1, all.size());
+            Person np = db.retrieveObjectByPrimaryKey(new Person(), xp.getAccount());
+            assertNotNull("retrieve should see the write just made", np);
+        }
+        db.removeObjectByPrimaryKey(new Person(), "r0");
+        assertNull("retrieve should see the remove", db.retrieveObjectByPrimaryKey(new Person(), "r0"));
+        db.close();
+        List<Person> all = db.executeQuery(new Person(), (String)null, null, 100, 0, null, true);
+        assertEquals("searcher should reopen after close", 19, all.size());
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 500; i++) {
+            Person xp = new Person();
+            xp.setAccount("b" + i);
+            xp.setName("Bulk Person " + i);
+            xp.setCreatedAt(new Date());
+            people.add(xp);
+        }
+        BulkLoadSession session = db.storeObjects(people);
+        assertTrue("session should be finished", session.isFinished());
+        assertEquals("all records should be indexed", people.size(), session.getDocumentCount());
+        assertTrue("docs/s should be reported", session.getDocsPerSecond() > 0);
+        System.out.println("bulk loaded " + session.getDocumentCount() + " docs at " + session.getDocsPerSecond() + " docs/s");
+
+        List<Person> all = db.executeQuery(new Person(), (String)null, null, 1000, 0, null, true);
+        assertEquals("Incorrect number of records", people.size(), all.size());
+
+        // reloading replaces rather than duplicates
+        people.get(7).setName("Renamed");
+        BulkLoadSession again = db.beginBulkLoad(64.0);
+        again.addAll(people);
+        again.finish();
+        all = db.executeQuery(new Person(), (String)null, null, 1000, 0, null, true);
+        assertEquals("bulk reload should not duplicate records", people.size(), all.size());
+        Person np = db.retrieveObjectByPrimaryKey(new Person(), "b7");
+        assertEquals("bulk reload should replace the record", "Renamed", np.getName());
+    }
+
+    @Test
+    public void testParallelBulkLoad() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 1000; i++) {
+            Person xp = new Person();
+            xp.setAccount("p" + i);
+            xp.setName("Parallel Person " + i);
+            xp.setCreatedAt(new Date());
+            people.add(xp);
+        }
+        // a later copy of a key in the same load replaces the earlier one
+        Person dup = new Person();
+        dup.setAccount("p3");
+        dup.setName("Duplicate");
+        dup.setCreatedAt(new Date());
+        people.add(dup);
+
+        BulkLoadSession session = db.storeObjects(people, 4);
+        assertEquals("session should have used 4 workers", 4, session.getThreads());
+
+        List<Person> all = db.executeQuery(new Person(), (String)null, null, 2000, 0, null, true);
+        assertEquals("Incorrect number of records", 1000, all.size());
+        Person np = db.retrieveObjectByPrimaryKey(new Person(), "p3");
+        assertEquals("duplicate key should keep the last copy", "Duplicate", np.getName());
+
+        // merging into a non-empty index replaces existing documents
+        List<Person> changed = new ArrayList<Person>();
+        for (int i = 0; i < 100; i++) {
+            Person xp = new Person();
+            xp.setAccount("p" + i);
+            xp.setName("Changed " + i);
+            xp.setCreatedAt(new Date());
+            changed.add(xp);
+        }
+        db.storeObjects(changed, 3);
+        all = db.executeQuery(new Person(), (String)null, null, 2000, 0, null, true);
+        assertEquals("parallel reload should not duplicate records", 1000, all.size());
+        np = db.retrieveObjectByPrimaryKey(new Person(), "p42");
+        assertEquals("parallel reload should replace the record", "Changed 42", np.getName());
+    }
+
+    @Test
+    public void testFailedParallelMerge() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File indexDir = new File(Utils.makeTemporaryDirectory(), "index");
+        // every merge fails once it has been applied, before it is committed
+        KiraDb gdb = new KiraDb(indexDir, true) {
+            @Override
+            BulkLoadSession newBulkLoadSession(IndexWriter writer, SharedIndexWriter shared, double ramBufferMB,
+                                               int threads, File workDir) {
+                return new BulkLoadSession(this, writer, shared, ramBufferMB, threads, workDir) {
+                    @Override
+                    SharedIndexWriter.Batch createMergeBatch() {
+                        final SharedIndexWriter.Batch merge = super.createMergeBatch();
+                        return new SharedIndexWriter.Batch() {
+                            @Override
+                            public void apply(IndexWriter main) throws IOException {
+                                merge.apply(main);
+                                throw new IOException("merge failed");
+                            }
+                        };
+                    }
+                };
+            }
+        };
+        gdb.setGroupCommit(1000, 60000L);
+        gdb.setNearRealTime(0L);
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 100; i++) {
+            Person xp = new Person();
+            xp.setAccount("m" + i);
+            xp.setName("Original " + i);
+            xp.setCreatedAt(new Date());
+            people.add(xp);
+        }
+        gdb.storeObjects(people);
+
+        // a write still pending when the merge starts
+        Person pending = new Person();
+        pending.setAccount("pending");
+        pending.setName("Pending");
+        pending.setCreatedAt(new Date());
+        gdb.storeObject(pending);
+
+        BulkLoadSession session = gdb.beginBulkLoad(BulkLoadSession.DEFAULT_RAM_BUFFER_MB, 3);
+        for (int i = 0; i < 50; i++) {
+            Person xp = new Person();
+            xp.setAccount("m" + i);
+            xp.setName("Reloaded " + i);
+            xp.setCreatedAt(new Date());
+            session.add(xp);
+        }
+        try {
+            session.finish();
+            assertTrue("the merge should have failed", false);
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(session.isFinished());
+
+        Person np = gdb.retrieveObjectByPrimaryKey(new Person(), "m42");
+        assertNotNull("a failed merge should keep the replaced records", np);
+        assertEquals("Original 42", np.getName());
+        assertEquals(101, gdb.countQuery(new Query(new Person())));
+
+        // the shared writer is reopened for later writes
+        Person later = new Person();
+        later.setAccount("later");
+        later.setName("Later");
+        later.setCreatedAt(new Date());
+        gdb.storeObject(later);
+        gdb.close();
+
+        KiraDb reopened = new KiraDb(indexDir, true);
+        assertEquals("Original 7", ((Person) reopened.retrieveObjectByPrimaryKey(new Person(), "m7")).getName());
+        assertNotNull(reopened.retrieveObjectByPrimaryKey(new Person(), "pending"));
+        assertNotNull(reopened.retrieveObjectByPrimaryKey(new Person(), "later"));
+        assertEquals(102, reopened.countQuery(new Query(new Person())));
+        gdb.deleteIndex();
+    }
+
+    @Test
+    public void testGroupCommit() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File indexDir = new File(Utils.makeTemporaryDirectory(), "index");
+        final KiraDb gdb = new KiraDb(indexDir, true);
+        gdb.setGroupCommit(1000, 60000L);
+        assertTrue("group commit should be enabled", gdb.isGroupCommit());
+
+        final int nThreads = 4;
+        final int perThread = 25;
+        Thread[] threads = new Thread[nThreads];
+        final Exception[] failure = new Exception[1];
+        for (int t = 0; t < nThreads; t++) {
+            final int base = t * perThread;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            Person xp = new Person();
+                            xp.setAccount("g" + (base + i));
+                            xp.setName("Group Commit " + (base + i));
+                            xp.setCreatedAt(new Date());
+                            gdb.storeObject(xp);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull("concurrent writers should not fail", failure[0]);
+
+        // nothing is committed yet: the limits are far away
+        KiraDb reader = new KiraDb(indexDir, true);
+        List<Person> before = reader.executeQuery(new Person(), (String)null, null, 1000, 0, null, true);
+        assertEquals("uncommitted writes should not be visible", 0, before.size());
+
+        gdb.sync();
+
+        List<Person> after = reader.executeQuery(new Person(), (String)null, null, 1000, 0, null, true);
+        assertEquals("all writes should be visible after sync", nThreads * perThread, after.size());
+
+        gdb.removeObjectByPrimaryKey(new Person(), "g0");
+        gdb.close();
+        List<Person> removed = reader.executeQuery(new Person(), (String)null, null, 1000, 0, null, true);
+        assertEquals("close should commit the pending remove", nThreads * perThread - 1, removed.size());
+
+        gdb.deleteIndex();
+    }
+
+    @Test
+    public void testPrimaryKeyFilter() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File indexDir = new File(Utils.makeTemporaryDirectory(), "index");
+        KiraDb gdb = new KiraDb(indexDir, true);
+        gdb.setGroupCommit(1000, 60000L);
+        for (int i = 0; i < 20; i++) {
+            Person xp = new Person();
+            xp.setAccount("bloom" + i);
+            xp.setName("Bloom " + i);
+            xp.setCreatedAt(new Date());
+            gdb.storeObject(xp);
+        }
+        gdb.sync();
+        assertNull("missing keys should not be found", gdb.retrieveObjectByPrimaryKey(new Person(), "nobody"));
+        assertNotNull(gdb.retrieveObjectByPrimaryKey(new Person(), "bloom3"));
+
+        // keys written after the filter was built
+        Person late = new Person();
+        late.setAccount("late");
+        late.setName("Late");
+        late.setCreatedAt(new Date());
+        gdb.storeObject(late);
+        gdb.sync();
+        assertNotNull("keys written later should pass the filter", gdb.retrieveObjectByPrimaryKey(new Person(), "late"));
+
+        // keys written by a bulk load
+        List<Person> bulk = new ArrayList<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person xp = new Person();
+            xp.setAccount("bulk" + i);
+            xp.setName("Bulk " + i);
+            xp.setCreatedAt(new Date());
+            bulk.add(xp);
+        }
+        gdb.storeObjects(bulk);
+        assertNotNull("bulk loaded keys should pass the filter", gdb.retrieveObjectByPrimaryKey(new Person(), "bulk7"));
+        assertEquals(2, gdb.retrieveObjectsByPrimaryKeys(new Person(), Arrays.asList("bulk1", "nobody", "late")).size());
+
+        gdb.close();
+        assertTrue("filters should be saved with the index", new File(indexDir, PrimaryKeyFilters.FILE_NAME).exists());
+
+        // reloaded, and still complete
+        gdb = new KiraDb(indexDir, true);
+        gdb.setGroupCommit(1000, 60000L);
+        assertNotNull(gdb.retrieveObjectByPrimaryKey(new Person(), "bloom19"));
+        assertNotNull(gdb.retrieveObjectByPrimaryKey(new Person(), "bulk0"));
+        assertNull(gdb.retrieveObjectByPrimaryKey(new Person(), "nobody"));
+        gdb.close();
+        gdb.deleteIndex();
+    }
+
+    @Test
+    public void testNearRealTime() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File indexDir = new File(Utils.makeTemporaryDirectory(), "index");
+        KiraDb ndb = new KiraDb(indexDir, true);
+        ndb.setGroupCommit(1000, 60000L);
+        ndb.setNearRealTime(0L);
+        assertTrue("near-real-time should be enabled", ndb.isNearRealTime());
+
+        Person xp = new Person();
+        xp.setAccount("nrt1");
+        xp.setName("Near Real Time");
+        xp.setCreatedAt(new Date());
+        ndb.storeObject(xp);
+
+        // visible to the writing instance without a commit, not to others
+        List<Person> own = ndb.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("own write should be visible before commit", 1, own.size());
+        KiraDb other = new KiraDb(indexDir, true);
+        List<Person> others = other.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("uncommitted write should not be visible to other instances", 0, others.size());
+
+        // with a long staleness allowance the open reader is reused...
+        ndb.setNearRealTime(60000L);
+        xp.setAccount("nrt2");
+        ndb.storeObject(xp);
+        List<Person> stale = ndb.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("reader within staleness bound should be reused", 1, stale.size());
+
+        // ...unless the query asks to read its own writes
+        Query query = new Query(new Person());
+        query.setReadYourWrites(true);
+        List<Record> fresh = ndb.executeQuery(query);
+        assertEquals("read-your-writes query should see the latest write", 2, fresh.size());
+
+        ndb.removeObjectByPrimaryKey(new Person(), "nrt1");
+        fresh = ndb.executeQuery(query);
+        assertEquals("read-your-writes query should see the remove", 1, fresh.size());
+
+        // bulk loads, on the calling thread and merged from workers
+        for (int threads = 1; threads <= 2; threads++) {
+            List<Person> bulk = new ArrayList<Person>();
+            for (int i = 0; i < 10; i++) {
+                Person bp = new Person();
+                bp.setAccount("nrtbulk" + threads + "-" + i);
+                bp.setName("Bulk " + i);
+                bp.setCreatedAt(new Date());
+                bulk.add(bp);
+            }
+            ndb.storeObjects(bulk, threads);
+            fresh = ndb.executeQuery(query);
+            assertEquals("read-your-writes query should see the bulk load", 1 + 10 * threads, fresh.size());
+        }
+
+        ndb.close();
+        ndb.deleteIndex();
+    }
+
+    @Test
+    public void testWriteAheadLog() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File tmp = Utils.makeTemporaryDirectory();
+        File indexDir = new File(tmp, "index");
+        KiraDb wdb = new KiraDb(indexDir, true);
+        wdb.setWriteAheadLog(100000, 600000L);
+        assertTrue("write-ahead log should be enabled", wdb.isWriteAheadLog());
+
+        for (int i = 0; i < 3; i++) {
+            Person xp = new Person();
+            xp.setAccount("w" + i);
+            xp.setName("Logged Write " + i);
+            xp.setCreatedAt(new Date());
+            wdb.storeObject(xp);
+        }
+        wdb.removeObjectByPrimaryKey(new Person(), "w1");
+
+        // copying the directory now captures what a crash would leave: only the log holds the writes
+        File crashDir = new File(tmp, "crashed");
+        FileUtils.copyDirectory(indexDir, crashDir);
+        File[] segments = new File(crashDir, "wal").listFiles();
+        assertNotNull("log directory should exist", segments);
+        assertEquals("one log segment expected", 1, segments.length);
+        // a torn tail is ignored
+        FileOutputStream torn = new FileOutputStream(segments[0], true);
+        torn.write(new byte[] { 0, 0, 1, 0, 42 });
+        torn.close();
+
+        KiraDb recovered = new KiraDb(crashDir, true);
+        List<Person> results = recovered.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("replay should restore logged writes", 2, results.size());
+        assertNull("replay should apply logged removes", recovered.retrieveObjectByPrimaryKey(new Person(), "w1"));
+        assertEquals("replayed log should be deleted", 0, new File(crashDir, "wal").listFiles().length);
+
+        // a checkpoint commits the index and drops the log
+        wdb.commit();
+        assertEquals("checkpoint should delete log segments", 0, new File(indexDir, "wal").listFiles().length);
+
+        wdb.close();
+        wdb.deleteIndex();
+        recovered.deleteIndex();
+    }
+
+    @Test
+    public void testWriteAheadLogCodec() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File tmp = Utils.makeTemporaryDirectory();
+        File indexDir = new File(tmp, "index");
+        KiraDb wdb = new KiraDb(indexDir, true);
+        wdb.setRecordCodec(new ReversedCodec());
+        wdb.setWriteAheadLog(100000, 600000L);
+        Person xp = new Person();
+        xp.setAccount("c1");
+        xp.setName("Custom Codec");
+        xp.setCreatedAt(new Date());
+        wdb.storeObject(xp);
+
+        File crashDir = new File(tmp, "crashed");
+        FileUtils.copyDirectory(indexDir, crashDir);
+        assertEquals("one log segment expected", 1, new File(crashDir, "wal").listFiles().length);
+
+        // the log is replayed with the codec set after construction
+        KiraDb recovered = new KiraDb(crashDir, true).setRecordCodec(new ReversedCodec());
+        Person p = recovered.retrieveObjectByPrimaryKey(new Person(), "c1");
+        assertNotNull("replay should restore a record written with a custom codec", p);
+        assertEquals("replayed record should decode", "Custom Codec", p.getName());
+
+        wdb.close();
+        wdb.deleteIndex();
+        recovered.deleteIndex();
+    }
+
+    /**
+     * A codec whose output the default codec cannot read
+     */
+    private static class ReversedCodec implements RecordCodec {
+        private final RecordCodec codec = new BinaryRecordCodec();
+
+        @Override
+        public byte[] encode(Record r) throws IOException {
+            byte[] data = codec.encode(r);
+            return reverse(data, 0, data.length);
+        }
+
+        @Override
+        public <T extends Record> T decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+            return codec.<T>decode(reverse(data, offset, length), 0, length);
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        private static byte[] reverse(byte[] data, int offset, int length) {
+            byte[] reversed = new byte[length];
+            for (int i = 0; i < length; i++) {
+                reversed[i] = data[offset + length - 1 - i];
+            }
+            return reversed;
+        }
+    }
+
+    @Test
+    public void testMigrateRecords() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        // write as earlier versions did
+        db.setRecordCodec(new XStreamRecordCodec());
+        for (int i = 0; i < 5; i++) {
+            Person xp = new Person();
+            xp.setAccount("m" + i);
+            xp.setName("Migrated " + i);
+            xp.setCreatedAt(new Date());
+            db.storeObject(xp);
+        }
+        db.setRecordCodec(new BinaryRecordCodec());
+        Person before = db.retrieveObjectByPrimaryKey(new Person(), "m3");
+        assertEquals("XML objects should still be readable", "Migrated 3", before.getName());
+
+        assertEquals("every object should be migrated", 5, db.migrateRecords(new Person()));
+
+        List<Person> after = db.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("migration should not change the record count", 5, after.size());
+        Person migrated = db.retrieveObjectByPrimaryKey(new Person(), "m3");
+        assertEquals("migrated object should be intact", "Migrated 3", migrated.getName());
+
+        // compressed and uncompressed objects can be mixed
+        db.setCompressObjects(true);
+        assertEquals("every object should be rewritten compressed", 5, db.migrateRecords(new Person()));
+        after = db.executeQuery(new Person(), (String)null, null, 10, 0, null, true);
+        assertEquals("compression should not change the record count", 5, after.size());
+        for (Person p : after) {
+            assertTrue("compressed object should be intact", p.getName().startsWith("Migrated "));
+        }
+    }
+
+    @Test
+    public void testLazyResults() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        File tmp = Utils.makeTemporaryDirectory();
+        FileSystemKiraDb fdb = new FileSystemKiraDb(new File(tmp, "index"), true, new File(tmp, "store"));
+        for (int i = 0; i < 3; i++) {
+            Person xp = new Person();
+            xp.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+            xp.setAccount("lazy" + i);
+            xp.setName("Lazy " + i);
+            xp.setCreatedAt(new Date(1000L * i));
+            fdb.storeObject(xp);
+        }
+        // a missing object only fails when it is accessed
+        assertTrue("backing file should exist", new File(tmp, "store/person/lazy1").delete());
+
+        Person query = new Person();
+        query.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+        List<Person> results = fdb.executeQuery(query, (String)null, null, 10, 0, null, true);
+        assertEquals("all hits should be listed", 3, results.size());
+        LazyRecordList<Person> lazy = (LazyRecordList<Person>) results;
+        assertFalse("objects should not be loaded by the query", lazy.isLoaded(0));
+        assertEquals("primary keys should be available without loading", "lazy2", lazy.getPrimaryKey(0));
+
+        Person first = results.get(0);
+        assertEquals("accessed object should be loaded", "Lazy 2", first.getName());
+        assertTrue("accessed object should be marked loaded", lazy.isLoaded(0));
+        assertTrue("objects should be loaded once", first == results.get(0));
+        assertEquals("Lazy 0", results.get(2).getName());
+        try {
+            results.get(1);
+            assertTrue("missing object should fail when accessed", false);
+        } catch (RuntimeException e) {
+            assertTrue("failure should carry the KiraException", e.getCause() instanceof KiraException);
+        }
+        fdb.deleteIndex();
+    }
+
+    @Test
+    public void testSelectFields() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        Expense e = new Expense();
+        e.setTxId("select1");
+        e.setCategory("Garden");
+        e.setPayee("Nursery");
+        e.setMemo("tulip bulbs");
+        e.setDate(new Date());
+        db.storeObject(e);
+
+        Query query = new Query(new Expense());
+        query.whereMatches(Expense.CATEGORY, "Garden");
+        query.select(Expense.CATEGORY, Expense.MEMO);
+        List<Record> results = db.executeQuery(query);
+        assertEquals("query should match the expense", 1, results.size());
+        Record r = results.get(0);
+        assertFalse("selected fields should not deserialize the object", r instanceof Expense);
+        assertEquals("primary key should be returned", "select1", r.descriptor().getPrimaryKey().getValue());
+        assertEquals("only the selected fields should be returned", 2, r.descriptor().getFields().size());
+        assertEquals("Garden", r.descriptor().getFields().get(0).getValue());
+        // FULLTEXT fields are stored with their indexed text
+        assertTrue(((String)r.descriptor().getFields().get(1).getValue()).startsWith("tulip bulbs"));
+    }
+
+    @Test
+    public void testAnnotatedRecord() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        RecordSchema schema = RecordSchema.forClass(Track.class);
+        assertTrue("schema should be compiled once per class", schema == new Track().schema());
+        assertEquals("track", schema.getRecordName());
+        assertEquals("trackId", schema.getPrimaryKeyName());
+        assertEquals(FieldType.DATE, schema.getFieldType(Track.RELEASED));
+        assertEquals(FieldType.NUMBER, schema.getFieldType(Track.PLAYS));
+        assertNull("unannotated members are not fields", schema.getFieldType("lyrics"));
+        try {
+            schema.getDescriptor().setStoreMode(RecordDescriptor.STORE_MODE_NONE);
+            assertTrue("schema descriptor should not be modifiable", false);
+        } catch (UnsupportedOperationException e) {
+        }
+
+        for (int i = 0; i < 3; i++) {
+            Track t = new Track();
+            t.setId("track" + i);
+            t.setArtist(i < 2 ? "Annotations" : "Reflection");
+            t.setTitle("Song number " + i);
+            t.setReleasedAt(new Date(1000000L * i));
+            t.setPlays(10 * i);
+            t.setLyrics("la la " + i);
+            db.storeObject(t);
+        }
+        RecordDescriptor dr = new Track().descriptor();
+        assertEquals(FieldType.STRING, dr.getFieldByName(Track.ARTIST).getType());
+
+        Track t = db.retrieveObjectByPrimaryKey(new Track(), "track1");
+        assertNotNull("annotated record should be retrievable", t);
+        assertEquals("Song number 1", t.getTitle());
+        assertEquals("la la 1", t.getLyrics());
+        assertEquals(10, t.getPlays());
+
+        List<Track> results = db.executeQuery(new Track(), Track.ARTIST, "Annotations", 10, 0, null, false);
+        assertEquals("query on annotated field", 2, results.size());
+        // sorted on the DATE field by default, newest first
+        assertEquals("track1", results.get(0).getId());
+    }
+
+    @Test
+    public void testNumericFields() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        long day = 24L * 60 * 60 * 1000;
+        long now = System.currentTimeMillis();
+        int[] plays = { 300, 5, 40, 1200 };
+        for (int i = 0; i < plays.length; i++) {
+            Track t = new Track();
+            t.setId("num" + i);
+            t.setArtist("Numbers");
+            t.setTitle("Track " + i);
+            t.setPlays(plays[i]);
+            // released 0, 20, 40 and 60 days ago
+            t.setReleasedAt(new Date(now - 20 * i * day));
+            db.storeObject(t);
+        }
+
+        // numbers sort numerically, not as strings
+        Query query = new Query(new Track());
+        query.setSortField(Track.PLAYS, false);
+        List<Track> results = db.executeQuery(query);
+        assertEquals(4, results.size());
+        assertEquals(5, results.get(0).getPlays());
+        assertEquals(40, results.get(1).getPlays());
+        assertEquals(300, results.get(2).getPlays());
+        assertEquals(1200, results.get(3).getPlays());
+
+        query = new Query(new Track());
+        query.whereBetween(Track.RELEASED, new Date(now - 30 * day), new Date(now));
+        results = db.executeQuery(query);
+        assertEquals("released in the last 30 days", 2, results.size());
+        // newest first by default
+        assertEquals("num0", results.get(0).getId());
+
+        query = new Query(new Track());
+        query.whereGreaterThan(Track.PLAYS, 40);
+        query.whereLessThan(Track.RELEASED, new Date(now - 30 * day));
+        results = db.executeQuery(query);
+        assertEquals("more than 40 plays and older than 30 days", 1, results.size());
+        assertEquals(1200, results.get(0).getPlays());
+
+        query = new Query(new Track());
+        query.whereMatches(Track.PLAYS, "40");
+        results = db.executeQuery(query);
+        assertEquals("exact numeric match", 1, results.size());
+        assertEquals("num2", results.get(0).getId());
+
+        try {
+            new Query(new Track()).whereBetween(Track.ARTIST, 1, 2);
+            assertTrue("ranges on STRING fields should be rejected", false);
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testCursorPaging() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 25; i++) {
+            Person xp = new Person();
+            xp.setAccount("page" + i);
+            xp.setName("Page " + i);
+            // groups of three share a date, so pages also break ties
+            xp.setCreatedAt(new Date(1000000L * (i / 3)));
+            people.add(xp);
+        }
+        db.storeObjects(people);
+
+        List<Person> all = db.executeQuery(new Person(), (String)null, null, 100, 0, null, true);
+        assertEquals(25, all.size());
+        assertNull("a partial page has no next cursor", ((LazyRecordList<Person>) all).getNextCursor());
+
+        List<String> paged = new ArrayList<String>();
+        QueryCursor cursor = null;
+        int pages = 0;
+        do {
+            Query query = new Query(new Person());
+            query.setLimit(10);
+            // cursors survive being passed around as strings
+            query.setCursor(cursor == null ? null : QueryCursor.parse(cursor.toString()));
+            List<Person> page = db.executeQuery(query);
+            for (Person p : page) {
+                paged.add(p.getAccount());
+            }
+            assertEquals("total hits should count every match", 25, db.getTotalHits());
+            cursor = ((LazyRecordList<Person>) page).getNextCursor();
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals("cursor pages should match one big query", 25, paged.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(all.get(i).getAccount(), paged.get(i));
+        }
+
+        // and on a STRING sort field, with records that are not stored
+        String[] categories = { "Travel", "Food", "Books", "Food", "Travel" };
+        for (int i = 0; i < categories.length; i++) {
+            Expense e = new Expense();
+            e.setTxId("cursor" + i);
+            e.setCategory(categories[i]);
+            db.storeObject(e);
+        }
+        Query query = new Query(new Expense());
+        query.setSortField(Expense.CATEGORY, false);
+        query.setLimit(2);
+        List<Record> page = db.executeQuery(query);
+        assertEquals("Books", page.get(0).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+        assertEquals("Food", page.get(1).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+        query.setCursor(((LazyRecordList<Record>) page).getNextCursor());
+        page = db.executeQuery(query);
+        assertEquals("Food", page.get(0).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+        assertEquals("Travel", page.get(1).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+        query.setCursor(((LazyRecordList<Record>) page).getNextCursor());
+        page = db.executeQuery(query);
+        assertEquals(1, page.size());
+        assertEquals("Travel", page.get(0).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+    }
+
+    @Test
+    public void testIterateQuery() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        int n = 2500;
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < n; i++) {
+            Person xp = new Person();
+            xp.setAccount("iter" + i);
+            xp.setName("Iter " + i);
+            xp.setCreatedAt(new Date(1000L * ((i * 7919) % n)));
+            people.add(xp);
+        }
+        db.storeObjects(people);
+
+        // index order
+        Set<String> seen = new HashSet<String>();
+        RecordIterator<Person> it = db.iterateQuery(new Query(new Person()));
+        while (it.hasNext()) {
+            assertTrue("records should be returned once", seen.add(it.next().getAccount()));
+        }
+        assertEquals("every record should be returned", n, seen.size());
+        it.close();
+
+        // sorted, across several chunks
+        Query query = new Query(new Person());
+        query.setSortField("createAt", false);
+        it = db.iterateQuery(query);
+        int count = 0;
+        long last = -1;
+        while (it.hasNext()) {
+            Person p = it.next();
+            assertTrue("records should come in sort order", p.getCreatedAt().getTime() > last);
+            last = p.getCreatedAt().getTime();
+            count++;
+        }
+        assertEquals(n, count);
+
+        // abandoned iterators are closed explicitly
+        it = db.iterateQuery(new Query(new Person()));
+        assertTrue(it.hasNext());
+        it.next();
+        it.close();
+        assertFalse("closed iterators have no more records", it.hasNext());
+        it.close();
+    }
+
+    @Test
+    public void testConcurrentQueries() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        final int nThreads = 4;
+        final int perThread = 20;
+        Thread[] threads = new Thread[nThreads];
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < nThreads; t++) {
+            final String category = "Category" + t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            Expense e = new Expense();
+                            e.setTxId(category + "-" + i);
+                            e.setCategory(category);
+                            e.setDate(new Date());
+                            e.setMemo("concurrent");
+                            db.storeObject(e);
+
+                            // every query sees this thread's writes, whatever the others do
+                            Query query = new Query(new Expense());
+                            query.whereMatches(Expense.CATEGORY, category);
+                            query.setLimit(5);
+                            QueryResult<Expense> result = db.executeQuery(query);
+                            assertEquals(i + 1, result.getTotalHits());
+                            assertEquals(Math.min(i + 1, 5), result.size());
+                            assertTrue(result.getQueryString().contains(category));
+                            assertTrue(result.getQuery() == query);
+                            assertEquals("thread-local total hits should be this thread's",
+                                    i + 1, db.getTotalHits());
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        QueryResult<Expense> all = db.executeQuery(new Expense(), (String)null, null, 1, 0, null, false);
+        assertEquals(nThreads * perThread, all.getTotalHits());
+        assertTrue(all.getSearchNanos() > 0);
+    }
+
+    @Test
+    public void testRepeatedQueries() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        String[] memos = { "tulip bulbs", "tulip vase", "light bulbs" };
+        for (int i = 0; i < memos.length; i++) {
+            Expense e = new Expense();
+            e.setTxId("repeat" + i);
+            e.setCategory("Garden");
+            e.setPayee("Nursery");
+            e.setMemo(memos[i]);
+            e.setDate(new Date(1000L * i));
+            db.storeObject(e);
+        }
+        Person p = new Person();
+        p.setAccount("repeat0");
+        p.setName("Tulip Bulbs");
+        p.setCreatedAt(new Date());
+        db.storeObject(p);
+
+        // the second time round the parsed queries and type filter are reused
+        for (int round = 0; round < 2; round++) {
+            Query both = new Query(new Expense());
+            both.whereMatches(Expense.MEMO, "tulip bulbs");
+            QueryResult<Expense> result = db.executeQuery(both);
+            assertEquals("every term of a full-text query should match", 1, result.getTotalHits());
+            assertEquals("repeat0", result.getPrimaryKey(0));
+
+            Query garden = new Query(new Expense());
+            garden.whereMatches(Expense.CATEGORY, "Garden");
+            assertEquals(3, db.countQuery(garden));
+            assertEquals("other record types should be filtered out", 3, db.countQuery(new Query(new Expense())));
+            assertEquals(1, db.countQuery(new Query(new Person())));
+        }
+    }
+
+    @Test
+    public void testQueryCache() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        db.setQueryCache(100);
+        for (int i = 0; i < 5; i++) {
+            Expense e = new Expense();
+            e.setTxId("cached" + i);
+            e.setCategory("Travel");
+            e.setDate(new Date(1000L * i));
+            e.setMemo("cached");
+            db.storeObject(e);
+        }
+        Query query = new Query(new Expense());
+        query.whereMatches(Expense.CATEGORY, "Travel");
+        QueryResult<Expense> first = db.executeQuery(query);
+        assertEquals(0, db.getQueryCacheHits());
+        assertEquals(1, db.getQueryCacheMisses());
+
+        // an equal query, built afresh
+        Query again = new Query(new Expense());
+        again.whereMatches(Expense.CATEGORY, "Travel");
+        QueryResult<Expense> second = db.executeQuery(again);
+        assertEquals("an equal query should be answered from the cache", 1, db.getQueryCacheHits());
+        assertEquals(first.getTotalHits(), second.getTotalHits());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.getPrimaryKey(i), second.getPrimaryKey(i));
+        }
+        assertTrue("cached results should be loaded separately", first.get(0) != second.get(0));
+
+        // only keys are cached: the selected fields are read again
+        Query selected = new Query(new Expense());
+        selected.whereMatches(Expense.CATEGORY, "Travel");
+        selected.select(Expense.CATEGORY);
+        db.executeQuery(selected);
+        List<Record> fromCache = db.executeQuery(selected);
+        assertEquals(2, db.getQueryCacheHits());
+        assertEquals(5, fromCache.size());
+        assertEquals("Travel", fromCache.get(4).descriptor().getFieldByName(Expense.CATEGORY).getValue());
+
+        Query otherPage = new Query(new Expense());
+        otherPage.whereMatches(Expense.CATEGORY, "Travel");
+        otherPage.setStart(2);
+        assertEquals(3, db.executeQuery(otherPage).size());
+        assertEquals("a different page is a different query", 2, db.getQueryCacheHits());
+
+        // a write invalidates the cache
+        Expense e = new Expense();
+        e.setTxId("cached5");
+        e.setCategory("Travel");
+        e.setDate(new Date(5000L));
+        db.storeObject(e);
+        assertEquals("new writes should be seen", 6, db.executeQuery(again).getTotalHits());
+        assertEquals(2, db.getQueryCacheHits());
+        db.executeQuery(again);
+        assertEquals(3, db.getQueryCacheHits());
+
+        db.setQueryCache(0);
+        db.executeQuery(again);
+        assertEquals("a disabled cache counts nothing", 0, db.getQueryCacheHits() + db.getQueryCacheMisses());
+    }
+
+    @Test
+    public void testPreparedQuery() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        String[] categories = { "Travel", "Home Office", "Travel", "Home Office", "Garden" };
+        String[] memos = { "train ticket", "desk lamp", "plane ticket", "printer paper", "seed packets" };
+        for (int i = 0; i < categories.length; i++) {
+            Expense e = new Expense();
+            e.setTxId("prepared" + i);
+            e.setCategory(categories[i]);
+            e.setMemo(memos[i]);
+            e.setDate(new Date(1000L * i));
+            db.storeObject(e);
+        }
+        Query template = new Query(new Expense());
+        template.whereMatches(Expense.CATEGORY, ":cat");
+        template.whereLessThan(Expense.DATE, new Date(4000L));
+        PreparedQuery prepared = db.prepare(template);
+        assertEquals(1, prepared.getParameterNames().size());
+        assertTrue(prepared.getParameterNames().contains("cat"));
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("cat", "Travel");
+        QueryResult<Expense> travel = prepared.execute(values);
+        assertEquals(2, travel.getTotalHits());
+
+        // values are matched whole, spaces and all
+        values.put("cat", "Home Office");
+        assertEquals(2, prepared.execute(values).getTotalHits());
+        values.put("cat", "Garden");
+        assertEquals("the fixed constraints should still apply", 0, prepared.execute(values).getTotalHits());
+
+        // full-text parameters need every word
+        Query byMemo = new Query(new Expense());
+        byMemo.whereMatches(Expense.MEMO, ":words");
+        PreparedQuery memoQuery = db.prepare(byMemo);
+        values.clear();
+        values.put("words", "Ticket");
+        assertEquals(2, memoQuery.execute(values).getTotalHits());
+        values.put("words", "Plane ticket");
+        QueryResult<Expense> plane = memoQuery.execute(values);
+        assertEquals(1, plane.getTotalHits());
+        assertEquals("prepared2", plane.getPrimaryKey(0));
+
+        try {
+            prepared.execute(new HashMap<String, String>());
+            assertTrue("a missing parameter should fail", false);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBooleanQueries() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        String[] categories = { "Travel", "Meals", "Travel", "Household", "Meals", "Garden" };
+        String[] memos = { "train ticket", "client lunch", "plane ticket", "light bulbs", "team dinner", "seeds" };
+        for (int i = 0; i < categories.length; i++) {
+            Expense e = new Expense();
+            e.setTxId("bool" + i);
+            e.setCategory(categories[i]);
+            e.setMemo(memos[i]);
+            e.setDate(new Date(1000L * i));
+            db.storeObject(e);
+        }
+        Query anyOf = new Query(new Expense());
+        anyOf.whereAnyOf(Expense.CATEGORY, "Travel", "Meals");
+        anyOf.setSortField(Expense.DATE, true);
+        QueryResult<Expense> travelOrMeals = db.executeQuery(anyOf);
+        assertEquals(4, travelOrMeals.getTotalHits());
+        assertEquals("results should be sorted together", "bool4", travelOrMeals.getPrimaryKey(0));
+        assertEquals("bool0", travelOrMeals.getPrimaryKey(3));
+
+        // paged as one result set
+        anyOf.setStart(1);
+        anyOf.setLimit(2);
+        QueryResult<Expense> page = db.executeQuery(anyOf);
+        assertEquals(2, page.size());
+        assertEquals("bool2", page.getPrimaryKey(0));
+        assertEquals("bool1", page.getPrimaryKey(1));
+
+        Query not = new Query(new Expense());
+        not.whereNot(Expense.CATEGORY, "Travel");
+        assertEquals("a query of only exclusions should match the rest", 4, db.countQuery(not));
+        not.whereNot(Expense.MEMO, "dinner");
+        assertEquals(3, db.countQuery(not));
+
+        // trips before 2s, or any meals, but no lunches
+        Query earlyTravel = new Query(new Expense());
+        earlyTravel.whereMatches(Expense.CATEGORY, "Travel");
+        earlyTravel.whereLessThan(Expense.DATE, new Date(2000L));
+        Query meals = new Query(new Expense());
+        meals.whereMatches(Expense.CATEGORY, "Meals");
+        Query nested = new Query(new Expense());
+        nested.whereAnyOf(earlyTravel, meals);
+        nested.whereNot(Expense.MEMO, "lunch");
+        nested.setSortField(Expense.DATE);
+        QueryResult<Expense> results = db.executeQuery(nested);
+        assertEquals(2, results.getTotalHits());
+        assertEquals("bool0", results.getPrimaryKey(0));
+        assertEquals("bool4", results.getPrimaryKey(1));
+
+        // groups are fixed constraints of a prepared query
+        nested.whereMatches(Expense.MEMO, ":word");
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("word", "dinner");
+        assertEquals(1, db.prepare(nested).execute(values).getTotalHits());
+    }
+
+    @Test
+    public void testRelevanceAndMultiKeySort() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        String[] categories = { "Travel", "Meals", "Travel", "Travel", "Meals" };
+        String[] memos = { "ticket for the train to the coast and back again", "lunch",
+                "ticket ticket", "plane ticket", "dinner ticket voucher for the conference hotel restaurant" };
+        for (int i = 0; i < categories.length; i++) {
+            Expense e = new Expense();
+            e.setTxId("rank" + i);
+            e.setCategory(categories[i]);
+            e.setMemo(memos[i]);
+            e.setDate(new Date(1000L * i));
+            db.storeObject(e);
+        }
+        Query relevant = new Query(new Expense());
+        relevant.whereMatches(Expense.MEMO, "ticket");
+        relevant.setSortByRelevance(true);
+        QueryResult<Expense> ranked = db.executeQuery(relevant);
+        assertEquals(4, ranked.getTotalHits());
+        assertEquals("the most mentions in the shortest memo ranks first", "rank2", ranked.getPrimaryKey(0));
+        assertEquals("rank3", ranked.getPrimaryKey(1));
+
+        // relevance pages follow on from each other
+        List<String> paged = new ArrayList<String>();
+        relevant.setLimit(1);
+        QueryCursor cursor = null;
+        do {
+            relevant.setCursor(cursor == null ? null : QueryCursor.parse(cursor.toString()));
+            QueryResult<Expense> page = db.executeQuery(relevant);
+            for (int i = 0; i < page.size(); i++) {
+                paged.add(page.getPrimaryKey(i));
+            }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        assertEquals(4, paged.size());
+        for (int i = 0; i < paged.size(); i++) {
+            assertEquals(ranked.getPrimaryKey(i), paged.get(i));
+        }
+
+        // category ascending, then newest first
+        Query byCategory = new Query(new Expense());
+        byCategory.addSortField(Expense.CATEGORY, false);
+        byCategory.addSortField(Expense.DATE, true);
+        assertEquals(2, byCategory.getSortFields().size());
+        QueryResult<Expense> sorted = db.executeQuery(byCategory);
+        String[] expected = { "rank4", "rank1", "rank3", "rank2", "rank0" };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], sorted.getPrimaryKey(i));
+        }
+        byCategory.setLimit(2);
+        QueryResult<Expense> page = db.executeQuery(byCategory);
+        byCategory.setCursor(QueryCursor.parse(page.getNextCursor().toString()));
+        page = db.executeQuery(byCategory);
+        assertEquals("rank3", page.getPrimaryKey(0));
+        assertEquals("rank2", page.getPrimaryKey(1));
+
+        // iteration follows the same order
+        byCategory.setCursor(null);
+        RecordIterator<Record> it = db.iterateQuery(byCategory);
+        try {
+            for (int i = 0; i < expected.length; i++) {
+                assertTrue(it.hasNext());
+                assertEquals(expected[i], it.next().descriptor().getPrimaryKey().getValue());
+            }
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+
+        // setSortField starts the sort fields again
+        byCategory.setSortField(Expense.DATE);
+        assertEquals(1, byCategory.getSortFields().size());
+    }
+
+    @Test
+    public void testCountQuery() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        Query none = new Query(new Expense());
+        assertEquals("an empty index has no matches", 0, db.countQuery(none));
+        assertFalse(db.exists(none));
+
+        for (int i = 0; i < 30; i++) {
+            Expense e = new Expense();
+            e.setTxId("count" + i);
+            e.setCategory(i % 3 == 0 ? "Travel" : "Household");
+            e.setDate(new Date(1000L * i));
+            e.setMemo("counted");
+            db.storeObject(e);
+        }
+        Query travel = new Query(new Expense());
+        travel.whereMatches(Expense.CATEGORY, "Travel");
+        travel.setLimit(1);
+        assertEquals("the limit should not cap the count", 10, db.countQuery(travel));
+        assertTrue(db.exists(travel));
+        assertEquals(db.countQuery(travel), db.executeQuery(travel).getTotalHits());
+
+        Query early = new Query(new Expense());
+        early.whereLessThan(Expense.DATE, new Date(5000L));
+        assertEquals(5, db.countQuery(early));
+
+        Query missing = new Query(new Expense());
+        missing.whereMatches(Expense.CATEGORY, "Groceries");
+        assertEquals(0, db.countQuery(missing));
+        assertFalse(db.exists(missing));
+        assertEquals("other record types should not be counted", 0, db.countQuery(new Query(new Person())));
+    }
+
+    @Test
+    public void testBatchedBackingStoreFetch() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        // no cache, so that every object comes from the store
+        KiraDb db = new KiraDb(new File(Utils.makeTemporaryDirectory(), "index"), true);
+        SlowBackingStore store = new SlowBackingStore();
+        store.setFetchThreads(4);
+        db.setBackingStore(store);
+        for (int i = 0; i < 20; i++) {
+            Person xp = new Person();
+            xp.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+            xp.setAccount("batch" + i);
+            xp.setName("Batch " + i);
+            xp.setCreatedAt(new Date(1000L * i));
+            db.storeObject(xp);
+        }
+        Person query = new Person();
+        query.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+        QueryResult<Person> results = db.executeQuery(query, (String)null, null, 20, 0, null, false);
+        assertEquals(20, results.size());
+        assertEquals("objects should not be fetched by the query", 0, store.fetches.get());
+
+        // a single access fetches a single object
+        assertEquals(results.getPrimaryKey(0), results.get(0).getAccount());
+        assertEquals("only the accessed object should be fetched", 1, store.fetches.get());
+        assertFalse(results.isLoaded(1));
+
+        results.prefetch(1, 5);
+        assertEquals("a range should be fetched on request", 5, store.fetches.get());
+        assertTrue(results.isLoaded(4));
+        assertFalse(results.isLoaded(5));
+        store.maxConcurrent.set(0);
+        results.prefetch();
+        assertEquals("the rest of the page should be fetched at once", 20, store.fetches.get());
+        assertTrue("objects should be fetched concurrently", store.maxConcurrent.get() > 1);
+        assertTrue("no more than the fetch threads should run at once", store.maxConcurrent.get() <= 4);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(results.isLoaded(i));
+            assertEquals("objects should come back in hit order", results.getPrimaryKey(i), results.get(i).getAccount());
+        }
+        assertEquals("loaded objects should not be fetched again", 20, store.fetches.get());
+        db.deleteIndex();
+    }
+
+    @Test
+    public void testRetrieveObjectsByPrimaryKeys() throws IOException, InterruptedException, KiraException, ClassNotFoundException {
+        List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 50; i++) {
+            Person xp = new Person();
+            xp.setAccount("multi" + i);
+            xp.setName("Multi " + i);
+            xp.setCreatedAt(new Date());
+            people.add(xp);
+        }
+        db.storeObjects(people);
+
+        List<String> keys = new ArrayList<String>();
+        keys.add("multi42");
+        keys.add("multi7");
+        keys.add("nobody");
+        keys.add("multi19");
+        keys.add("multi7");
+        Map<String, Person> found = db.retrieveObjectsByPrimaryKeys(new Person(), keys);
+        assertEquals("missing keys should be left out", 3, found.size());
+        assertEquals("results should follow the order of the keys",
+                new ArrayList<String>(Arrays.asList("multi42", "multi7", "multi19")),
+                new ArrayList<String>(found.keySet()));
+        assertEquals("Multi 7", found.get("multi7").getName());
+        assertTrue(db.retrieveObjectsByPrimaryKeys(new Person(), new ArrayList<String>()).isEmpty());
+
+        // objects in a backing store are fetched in one batch
+        KiraDb bdb = new KiraDb(new File(Utils.makeTemporaryDirectory(), "index"), true);
+        SlowBackingStore store = new SlowBackingStore();
+        bdb.setBackingStore(store);
+        for (int i = 0; i < 10; i++) {
+            Person xp = new Person();
+            xp.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+            xp.setAccount("multi" + i);
+            xp.setName("Multi " + i);
+            xp.setCreatedAt(new Date());
+            bdb.storeObject(xp);
+        }
+        Person query = new Person();
+        query.setStoreMode(RecordDescriptor.STORE_MODE_BACKING);
+        Map<String, Person> fetched = bdb.retrieveObjectsByPrimaryKeys(query, Arrays.asList("multi3", "multi1", "gone"));
+        assertEquals(2, fetched.size());
+        assertEquals("Multi 3", fetched.get("multi3").getName());
+        assertEquals("each distinct key should be fetched once", 3, store.fetches.get());
+        assertTrue("keys should be fetched concurrently", store.maxConcurrent.get() > 1);
+        bdb.deleteIndex();
+    }
+
+    /**
+     * An in-memory store with the latency of a remote one
+     */
+    private static class SlowBackingStore extends BackingStore {
+        final Map<String, byte[]> objects = new java.util.concurrent.ConcurrentHashMap<String, byte[]>();
+        final java.util.concurrent.atomic.AtomicInteger fetches = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.atomic.AtomicInteger concurrent = new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.atomic.AtomicInteger maxConcurrent = new java.util.concurrent.atomic.AtomicInteger();
+
+        @Override
+        void storeObject(RecordCodec codec, Record r) throws IOException {
+            objects.put(makeKey(r), codec.encode(r));
+        }
+
+        @Override
+        <T extends Record> T retrieveObject(RecordCodec codec, Record r, String value) throws IOException, ClassNotFoundException {
+            fetches.incrementAndGet();
+            int now = concurrent.incrementAndGet();
+            while (true) {
+                int max = maxConcurrent.get();
+                if (now <= max || maxConcurrent.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(20L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            byte[] data = objects.get(makeKey(r, value));
+            return data == null ? null : codec.<T>decode(data, 0, data.length);
+        }
+
+        @Override
+        void removeObject(RecordCodec codec, Record r, String value) {
+            objects.remove(makeKey(r, value));
+        }
+
+        @Override
+        <T extends Record> T firstObject(RecordCodec codec, Record r) {
+            return null;
+        }
+
+        @Override
+        <T extends Record> T nextObject(RecordCodec codec, Record r) {
+            return null;
+        }
+    }
+
     /*
     @Test
     public void testSomeResource() {
@@ -0,0 +1,52 @@
+package com.bdt.kiradb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrimaryKeyFilterTest {
+
+	@Test
+	public void testNoFalseNegatives() throws Exception {
+		int n = 10000;
+		PrimaryKeyFilter filter = new PrimaryKeyFilter(n);
+		for (int i = 0; i < n; i++) {
+			filter.add("key" + i);
+		}
+		for (int i = 0; i < n; i++) {
+			assertTrue("added keys must always be found", filter.mightContain("key" + i));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < n; i++) {
+			if (filter.mightContain("missing" + i)) {
+				falsePositives++;
+			}
+		}
+		System.out.println("false positives: " + falsePositives + " of " + n);
+		assertTrue("about 1% of missing keys should pass", falsePositives < n * 3 / 100);
+		assertFalse(filter.isFull());
+		filter.add("one more");
+		assertTrue("a filter past its size should report it", filter.isFull());
+	}
+
+	@Test
+	public void testPersist() throws Exception {
+		PrimaryKeyFilter filter = new PrimaryKeyFilter(100);
+		for (int i = 0; i < 100; i++) {
+			filter.add("p" + i);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		filter.write(new DataOutputStream(bytes));
+		PrimaryKeyFilter read = PrimaryKeyFilter.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		for (int i = 0; i < 100; i++) {
+			assertTrue("keys should survive a round trip", read.mightContain("p" + i));
+		}
+		assertTrue(read.getCount() == 100);
+	}
+}
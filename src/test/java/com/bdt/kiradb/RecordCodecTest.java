@@ -0,0 +1,171 @@
+package com.bdt.kiradb;
+
+import com.bdt.kiradb.mykdbapp.Expense;
+import com.bdt.kiradb.mykdbapp.Person;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordCodecTest {
+
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		RecordCodec codec = new BinaryRecordCodec();
+
+		Expense e = new Expense();
+		e.setTxId("9901");
+		e.setAmount(new BigDecimal("12.34"));
+		e.setCategory("Household");
+		e.setDate(new Date());
+		e.setMemo("light bulbs");
+		e.setPayee("Hardware Store");
+
+		byte[] data = codec.encode(e);
+		assertTrue("binary data should carry the format header", BinaryRecordCodec.isBinary(data, 0, data.length));
+		Expense d = codec.decode(data, 0, data.length);
+		assertEquals("txId should survive a round trip", e.getTxId(), d.getTxId());
+		assertEquals("amount should survive a round trip", e.getAmount(), d.getAmount());
+		assertEquals("date should survive a round trip", e.getDate(), d.getDate());
+		assertEquals("memo should survive a round trip", e.getMemo(), d.getMemo());
+
+		byte[] xml = new XStreamRecordCodec().encode(e);
+		System.out.println("binary: " + data.length + " bytes, XML: " + xml.length + " bytes");
+		assertTrue("binary encoding should be smaller than XML", data.length < xml.length);
+	}
+
+	@Test
+	public void testReadsXml() throws Exception {
+		Person p = new Person();
+		p.setAccount("1234");
+		p.setName("Legacy Person");
+		p.setCreatedAt(new Date());
+
+		// objects written by earlier versions are XStream XML
+		byte[] xml = new XStreamRecordCodec().encode(p);
+		Person d = new BinaryRecordCodec().decode(xml, 0, xml.length);
+		assertEquals("XML objects should be readable by the binary codec", p.getName(), d.getName());
+		assertEquals("store mode should survive", p.getStoreMode(), d.getStoreMode());
+	}
+
+	@Test
+	public void testPlatformSuperclass() throws Exception {
+		ObservedRecord r = new ObservedRecord();
+		r.name = "observed";
+		byte[] data = new BinaryRecordCodec().encode(r);
+		// the byte after the magic and version tells how the body was written
+		assertEquals("a record extending a JDK class should use the fallback codec", 1, data[4]);
+		ObservedRecord d = new BinaryRecordCodec().decode(data, 0, data.length);
+		assertEquals("fallback record should survive a round trip", r.name, d.name);
+	}
+
+	/**
+	 * A record whose superclass state belongs to the JDK
+	 */
+	public static class ObservedRecord extends java.util.Observable implements Record {
+		String name;
+
+		@Override
+		public RecordDescriptor descriptor() {
+			RecordDescriptor dr = new RecordDescriptor("observed");
+			dr.setPrimaryKey(new Field("id", FieldType.STRING, name));
+			return dr;
+		}
+
+		@Override
+		public String getRecordName() {
+			return "observed";
+		}
+
+		@Override
+		public String getPrimaryKeyName() {
+			return "id";
+		}
+	}
+
+	@Test
+	public void testContainerSubclass() throws Exception {
+		TaggedRecord r = new TaggedRecord();
+		r.tags = new Tags();
+		r.tags.add("travel");
+		r.tags.source = "import";
+		r.recent = new LinkedHashMap<String, String>(16, 0.75f, true);
+		r.recent.put("a", "1");
+		r.recent.put("b", "2");
+		r.recent.get("a");
+		byte[] data = new BinaryRecordCodec().encode(r);
+		assertEquals("a container subclass should use the fallback codec", 1, data[4]);
+		TaggedRecord d = new BinaryRecordCodec().decode(data, 0, data.length);
+		assertEquals("container contents should survive a round trip", r.tags, d.tags);
+		assertEquals("container subclass fields should survive a round trip", "import", d.tags.source);
+
+		r.tags = null;
+		data = new BinaryRecordCodec().encode(r);
+		assertEquals("an access-ordered map should use the fallback codec", 1, data[4]);
+		d = new BinaryRecordCodec().decode(data, 0, data.length);
+		assertEquals("map contents should survive a round trip", r.recent, d.recent);
+	}
+
+	/**
+	 * A list carrying state of its own
+	 */
+	public static class Tags extends ArrayList<String> {
+		String source;
+	}
+
+	/**
+	 * A record holding containers the binary format cannot describe
+	 */
+	public static class TaggedRecord implements Record {
+		Tags tags;
+		LinkedHashMap<String, String> recent;
+
+		@Override
+		public RecordDescriptor descriptor() {
+			RecordDescriptor dr = new RecordDescriptor("tagged");
+			dr.setPrimaryKey(new Field("id", FieldType.STRING, "1"));
+			return dr;
+		}
+
+		@Override
+		public String getRecordName() {
+			return "tagged";
+		}
+
+		@Override
+		public String getPrimaryKeyName() {
+			return "id";
+		}
+	}
+
+	@Test
+	public void testStoredObjects() throws Exception {
+		RecordCodec codec = new BinaryRecordCodec();
+		Person p = new Person();
+		p.setAccount("5678");
+		StringBuilder name = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			name.append("Repetitive Name ");
+		}
+		p.setName(name.toString());
+		byte[] encoded = codec.encode(p);
+
+		byte[] raw = StoredObjects.pack(encoded, false);
+		assertEquals("uncompressed objects carry a flag byte", encoded.length + 1, raw.length);
+		byte[] packed = StoredObjects.pack(encoded, true);
+		assertTrue("compressible objects should shrink", packed.length < encoded.length / 2);
+
+		// decode from the middle of a larger buffer, as read from the index
+		byte[] buf = new byte[packed.length + 10];
+		System.arraycopy(packed, 0, buf, 5, packed.length);
+		Person d = StoredObjects.unpack(codec, buf, 5, packed.length);
+		assertEquals("compressed object should survive a round trip", p.getName(), d.getName());
+		d = StoredObjects.unpack(codec, raw, 0, raw.length);
+		assertEquals("uncompressed object should survive a round trip", p.getName(), d.getName());
+	}
+}
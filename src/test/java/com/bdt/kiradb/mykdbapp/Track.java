@@ -0,0 +1,79 @@
+package com.bdt.kiradb.mykdbapp;
+
+import java.util.Date;
+
+import com.bdt.kiradb.AnnotatedRecord;
+import com.bdt.kiradb.FieldType;
+import com.bdt.kiradb.KiraField;
+import com.bdt.kiradb.KiraPrimaryKey;
+import com.bdt.kiradb.KiraRecord;
+import com.bdt.kiradb.RecordDescriptor;
+
+@KiraRecord(name = "track", storeMode = RecordDescriptor.STORE_MODE_INDEX)
+public class Track extends AnnotatedRecord {
+
+	public static final String ARTIST = "artist";
+	public static final String TITLE = "title";
+	public static final String RELEASED = "released";
+	public static final String PLAYS = "plays";
+
+	@KiraPrimaryKey(name = "trackId")
+	private String id;
+	@KiraField
+	private String artist;
+	@KiraField(type = FieldType.FULLTEXT)
+	private String title;
+	@KiraField(name = RELEASED, type = FieldType.DATE)
+	private Date releasedAt;
+	@KiraField(type = FieldType.NUMBER)
+	private int plays;
+	private String lyrics;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public void setArtist(String artist) {
+		this.artist = artist;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public Date getReleasedAt() {
+		return releasedAt;
+	}
+
+	public void setReleasedAt(Date releasedAt) {
+		this.releasedAt = releasedAt;
+	}
+
+	public int getPlays() {
+		return plays;
+	}
+
+	public void setPlays(int plays) {
+		this.plays = plays;
+	}
+
+	public String getLyrics() {
+		return lyrics;
+	}
+
+	public void setLyrics(String lyrics) {
+		this.lyrics = lyrics;
+	}
+}